@@ -67,7 +67,12 @@ object DeviceInfo {
 
     @JvmStatic
     fun freeSpace(): String {
+        return freeSpaceBytes().toString()
+    }
+
+    @JvmStatic
+    fun freeSpaceBytes(): Long {
         // profiled on a Pixel 6, it takes less than a millisecond.
-        return android.os.StatFs("/data").availableBytes.toString()
+        return android.os.StatFs("/data").availableBytes
     }
 }
\ No newline at end of file
@@ -525,7 +525,8 @@ class MainService : Service() {
 
         // These are currently syncronous (block) unless they say otherwise, profiling was done
         // on a Pixel 6. No-action always measures 0-1ms.
-        do_new_files_check(now)  // always 10s of ms (30-70ms)
+        do_new_files_check(now)  // only closes expired files, new files are made when streams next write.
+        do_storage_budget_check()  // <1ms unless storage is low, then it evicts a few files.
         accelerometer_logic(now)
         gyro_logic(now)  // on action ~20-50ms, off action 10-20ms
         gps_logic(now)  // on acction <10-20ms, off action ~2ms (yes two)
@@ -672,12 +673,16 @@ class MainService : Service() {
     }
 
     fun do_new_files_check(now: Long) {
-        val event_string = getString(R.string.create_new_data_files_intent)
-        val periodicity = PersistentData.getCreateNewDataFilesFrequency()
-        val new_files_action = {
-            TextFileManager.makeNewFilesForEverything()
-        }
-        do_an_event_session_check(now, event_string, periodicity, new_files_action)
+        // Streams retire their own files as they write, when the files get too big or too old (see
+        // RotationPolicy), this retires the too old files of streams that have gone quiet. It only
+        // touches files that have expired, so it runs on every pass.
+        TextFileManager.rotateExpiredFiles(now)
+    }
+
+    fun do_storage_budget_check() {
+        // Checks the free space on every pass, old and less important data files are evicted while
+        // storage is low (see StoragePolicy), and the raw motion streams are downsampled.
+        TextFileManager.enforceStorageBudget()
     }
 
     fun do_new_surveys_check(now: Long) {
@@ -810,6 +815,7 @@ class MainService : Service() {
     override fun onDestroy() { // Log.w("BackgroundService", "BackgroundService was destroyed.");
         // note: this does not run when the service is killed in a task manager, OR when the stopService() function is called from debugActivity.
         TextFileManager.writeDebugLogStatement("BackgroundService was destroyed.")
+        TextFileManager.syncAll()
         PersistentData.serviceOnDestroy = Date(System.currentTimeMillis()).toLocaleString()
         restartService()
         super.onDestroy()
@@ -817,6 +823,7 @@ class MainService : Service() {
 
     override fun onLowMemory() { // Log.w("BackroundService onLowMemory", "Low memory conditions encountered");
         TextFileManager.writeDebugLogStatement("onLowMemory called.")
+        TextFileManager.syncAll()
         PersistentData.serviceOnLowMemory = Date(System.currentTimeMillis()).toLocaleString()
         restartService()
     }
@@ -824,6 +831,7 @@ class MainService : Service() {
     override fun onTrimMemory(level: Int) {
         // Log.w("BackroundService onTrimMemory", "Trim memory conditions encountered");
         TextFileManager.writeDebugLogStatement("onTrimMemory called.")
+        TextFileManager.syncAll()
         PersistentData.serviceOnTrimMemory = Date(System.currentTimeMillis()).toLocaleString()
         super.onTrimMemory(level)
     }
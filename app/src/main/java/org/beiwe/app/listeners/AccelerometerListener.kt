@@ -4,26 +4,49 @@ import android.content.Context
 import android.content.pm.PackageManager
 import android.hardware.Sensor
 import android.hardware.SensorEvent
-import android.hardware.SensorEventListener
+import android.hardware.SensorEventListener2
 import android.hardware.SensorManager
 import android.util.Log
 import org.beiwe.app.DeviceInfo
+import org.beiwe.app.storage.AsciiRowBuilder
+import org.beiwe.app.storage.AsyncStreamWriter
 import org.beiwe.app.storage.PersistentData
+import org.beiwe.app.storage.RecordQueue
 import org.beiwe.app.storage.TextFileManager
 import java.util.Date
-import java.util.Locale
 
-class AccelerometerListener(appContext: Context) : SensorEventListener {
+class AccelerometerListener(appContext: Context) : SensorEventListener2 {
     companion object {
         @JvmField
         var header = "timestamp,accuracy,x,y,z"
+
+        /** Sensor events are queued here and written to the accel file on a background thread, so
+         * that onSensorChanged never waits on encryption or disk I/O. */
+        @JvmField
+        val writer = AsyncStreamWriter("accel", 4096, 250,
+                { TextFileManager.getAccelFile() }, { record, row -> formatRow(record, row) })
+
+        // values have 16 decimal places in order to avoid scientific notation, always with a '.', the
+        // output is identical to String.format(Locale.US, "%.16f", value) without its garbage.  The
+        // values were floats in the SensorEvent, they are formatted as floats.
+        private fun formatRow(record: RecordQueue.Record, row: AsciiRowBuilder) {
+            row.append(record.timestamp).append(',')
+            if (record.accuracy == RecordQueue.UNKNOWN_ACCURACY)
+                row.append("unknown")
+            else
+                row.append(record.accuracy.toLong())
+            row.append(',').appendFixed(record.v0.toFloat(), 16)
+            row.append(',').appendFixed(record.v1.toFloat(), 16)
+            row.append(',').appendFixed(record.v2.toFloat(), 16)
+        }
     }
 
     private var accelSensorManager: SensorManager? = null
     private var accelSensor: Sensor? = null
     var running: Boolean = false
-    private var accuracy = "unknown"
-    private var lineCount = 0
+    private var accuracy = RecordQueue.UNKNOWN_ACCURACY
+    private var batching = false
+    private var stopAfterFlush = false
 
     var exists: Boolean = appContext.packageManager.hasSystemFeature(PackageManager.FEATURE_SENSOR_ACCELEROMETER)
 
@@ -63,7 +86,21 @@ class AccelerometerListener(appContext: Context) : SensorEventListener {
 //        print("starting accelerometer with delay of $delay_period_microseconds")
 //        print("accelerometer frequency was " + PersistentData.getAccelerometerFrequency())
 
-        if (!accelSensorManager!!.registerListener(this, accelSensor, delay_period_microseconds)) {
+        // with a max report latency the sensor hub batches events, see SensorBatching.kt.
+        val max_report_latency_microseconds = maxReportLatencyMicroseconds(
+                accelSensor, delay_period_microseconds, PersistentData.getAccelerometerMaxReportLatency(), writer.capacity())
+        batching = max_report_latency_microseconds > 0
+
+        // studies that only need features get one summary row per window instead of every sample.
+        writer.setAggregation(PersistentData.getMotionAggregationWindow(), { TextFileManager.getAccelSummaryFile() })
+
+        // the flush from the previous session's turn_off may not have completed yet.
+        if (stopAfterFlush) {
+            accelSensorManager!!.unregisterListener(this)
+            stopAfterFlush = false
+        }
+
+        if (!accelSensorManager!!.registerListener(this, accelSensor, delay_period_microseconds, max_report_latency_microseconds)) {
             Log.e("Accelerometer", "Accelerometer is broken")
             // this one happens occasionally, for 5% of users, across many manufacturers (samsung, motorola, HMD, HUAWEI, Yulong, LGE, OnePlus, Google, OPPO)
             // The other log statements do not.
@@ -76,10 +113,27 @@ class AccelerometerListener(appContext: Context) : SensorEventListener {
     @Synchronized
     fun turn_off() {
         PersistentData.accelerometerStop = Date(System.currentTimeMillis()).toLocaleString()
-        accelSensorManager?.unregisterListener(this)
+        // batched events are still in the sensor's FIFO, have them delivered and stop in onFlushCompleted.
+        if (batching && accelSensorManager?.flush(this) == true)
+            stopAfterFlush = true
+        else {
+            accelSensorManager?.unregisterListener(this)
+            writer.finishWindow()
+        }
+        batching = false
         running = false
     }
 
+    /** Called once the events flushed by turn_off have been delivered. (only triggered by the system.) */
+    @Synchronized
+    override fun onFlushCompleted(sensor: Sensor) {
+        if (stopAfterFlush) {
+            accelSensorManager?.unregisterListener(this)
+            stopAfterFlush = false
+            writer.finishWindow()
+        }
+    }
+
     val accelerometer_off_action: () -> Unit = { turn_off() }
     val accelerometer_on_action: () -> Unit = { turn_on() }
 
@@ -87,7 +141,7 @@ class AccelerometerListener(appContext: Context) : SensorEventListener {
      * (only triggered by the system.)  */
     @Synchronized
     override fun onAccuracyChanged(arg0: Sensor, arg1: Int) {
-        accuracy = arg1.toString()
+        accuracy = arg1
     }
 
     // private var prior_timecode: Long = 0  // purely for debugging
@@ -104,24 +158,8 @@ class AccelerometerListener(appContext: Context) : SensorEventListener {
         // printe("accelerometer milliseconds since prior: ${javaTimeCode-prior_timecode})")
         val values = arg0.values
 
-        // force values to 16 decimal places in order to avoid scientific notation, and force english locale.
-        // String.format is locale-aware, non-us locales may use commas.
-        val value0 = String.format(Locale.US,"%.16f", values[0])
-        val value1 = String.format(Locale.US,"%.16f", values[1])
-        val value2 = String.format(Locale.US,"%.16f", values[2])
-
-        // if the linecount is over 10,000 then we create a new file:
-        if (lineCount > 10000) {
-            TextFileManager.getAccelFile().newFile()
-            lineCount = 0
-        }
-
-        // for testing high speeds print only every 100th line to avoid spam
-        // if (lineCount % 100 == 0)
-        //     printe("accelerometer milliseconds since prior: ${javaTimeCode-prior_timecode})")
-
-        TextFileManager.getAccelFile().writeEncrypted("$javaTimeCode,$accuracy,$value0,$value1,$value2")
-        lineCount++
+        // formatting, encryption, writing and file rotation happen on the writer thread.
+        writer.offer(javaTimeCode, accuracy, values[0].toDouble(), values[1].toDouble(), values[2].toDouble(), 0.0)
         // prior_timecode = javaTimeCode
     }
 }
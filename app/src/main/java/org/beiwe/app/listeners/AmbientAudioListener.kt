@@ -145,8 +145,9 @@ object AmbientAudioListener {
     //TODO: make this thread, not an asynctask
     private class EncryptAmbientAudioFileTask : AsyncTask<Void?, Void?, Void?>() {
         override fun onPreExecute() {
-            // Before doing anything else, set the filename of the encrypted file. This tells
-            // TextFileManager.getAllUploadableFiles NOT to upload it until it's finished writing.
+            // Before doing anything else, set the filename of the encrypted file. The file is only
+            // added to the upload manifest once it is finished, this keeps TextFileManager from
+            // seeding it into a new manifest while it is being written.
             // TODO: currently using null for special behavior; build the special behavior.
             currentlyWritingEncryptedFilename = generateAmbientEncryptedAudioFileName(filenameExtension)
         }
@@ -161,7 +162,7 @@ object AmbientAudioListener {
         }
 
         override fun onPostExecute(arg: Void?) {
-            // Clear the filename, so TextFileManager.getAllUploadableFiles can now upload it
+            // Clear the filename, encryptAudioFile has added the finished file to the upload manifest
             currentlyWritingEncryptedFilename = null
             // Set the Media Recorder back to null to free it up to run again (apparently necessary?)
             mRecorder = null
@@ -12,10 +12,12 @@ import org.beiwe.app.PermissionHandler.checkAccessCoarseLocation
 import org.beiwe.app.PermissionHandler.checkAccessFineLocation
 import org.beiwe.app.printe
 import org.beiwe.app.printi
+import org.beiwe.app.storage.AsciiRowBuilder
+import org.beiwe.app.storage.AsyncStreamWriter
 import org.beiwe.app.storage.PersistentData
+import org.beiwe.app.storage.RecordQueue
 import org.beiwe.app.storage.TextFileManager
 import java.util.Date
-import java.util.Locale
 
 /* Notes/observation on Location Services:
  * We are passing in "0" as the minimum time for location updates to be pushed to us, this results in about
@@ -29,6 +31,21 @@ import java.util.Locale
 class GPSListener(private val appContext: Context) : LocationListener {
     companion object {
         const val header = "timestamp, latitude, longitude, altitude, accuracy"
+
+        /** Location updates are queued here and written to the GPS file on a background thread. */
+        @JvmField
+        val writer = AsyncStreamWriter("gps", 256, 1000,
+                { TextFileManager.getGPSFile() }, { record, row -> formatRow(record, row) })
+
+        // accuracy is a float in the Location object, it is formatted as a float so the output is
+        // identical to what it was when it was formatted directly with String.format(Locale.US, "%.16f").
+        private fun formatRow(record: RecordQueue.Record, row: AsciiRowBuilder) {
+            row.append(record.timestamp).append(TextFileManager.DELIMITER)
+                    .appendFixed(record.v0, 16).append(TextFileManager.DELIMITER)
+                    .appendFixed(record.v1, 16).append(TextFileManager.DELIMITER)
+                    .appendFixed(record.v2, 16).append(TextFileManager.DELIMITER)
+                    .appendFixed(record.v3.toFloat(), 16)
+        }
     }
 
     private val pkgManager: PackageManager = appContext.packageManager
@@ -157,15 +174,8 @@ class GPSListener(private val appContext: Context) : LocationListener {
         // Latitude and longitude offset should be 0 unless GPS fuzzing is enabled
         val latitude = location.latitude + PersistentData.getLatitudeOffset()
         val longitude = (location.longitude + PersistentData.getLongitudeOffset() + 180.0) % 360 - 180.0
-        val data = (
-                javaTimeCode.toString() + TextFileManager.DELIMITER
-                    + String.format(Locale.US, "%.16f", latitude) + TextFileManager.DELIMITER
-                    + String.format(Locale.US, "%.16f", longitude) + TextFileManager.DELIMITER
-                    + String.format(Locale.US, "%.16f", location.altitude) + TextFileManager.DELIMITER
-                    + String.format(Locale.US, "%.16f", location.accuracy)
-                )
         // note, altitude is notoriously inaccurate, getAccuracy only applies to latitude/longitude
-        TextFileManager.getGPSFile().writeEncrypted(data)
+        writer.offer(javaTimeCode, RecordQueue.UNKNOWN_ACCURACY, latitude, longitude, location.altitude, location.accuracy.toDouble())
     }
 
     /*  We do not actually need to implement any of the following overrides.
@@ -4,26 +4,49 @@ import android.content.Context
 import android.content.pm.PackageManager
 import android.hardware.Sensor
 import android.hardware.SensorEvent
-import android.hardware.SensorEventListener
+import android.hardware.SensorEventListener2
 import android.hardware.SensorManager
 import android.util.Log
 import org.beiwe.app.DeviceInfo
+import org.beiwe.app.storage.AsciiRowBuilder
+import org.beiwe.app.storage.AsyncStreamWriter
 import org.beiwe.app.storage.PersistentData
+import org.beiwe.app.storage.RecordQueue
 import org.beiwe.app.storage.TextFileManager
 import java.util.Date
-import java.util.Locale
 
-class GyroscopeListener(private val appContext: Context) : SensorEventListener {
+class GyroscopeListener(private val appContext: Context) : SensorEventListener2 {
     companion object {
         @JvmField
         var header = "timestamp,accuracy,x,y,z"
+
+        /** Sensor events are queued here and written to the gyro file on a background thread, so
+         * that onSensorChanged never waits on encryption or disk I/O. */
+        @JvmField
+        val writer = AsyncStreamWriter("gyro", 4096, 250,
+                { TextFileManager.getGyroFile() }, { record, row -> formatRow(record, row) })
+
+        // values have 16 decimal places in order to avoid scientific notation, always with a '.', the
+        // output is identical to String.format(Locale.US, "%.16f", value) without its garbage.  The
+        // values were floats in the SensorEvent, they are formatted as floats.
+        private fun formatRow(record: RecordQueue.Record, row: AsciiRowBuilder) {
+            row.append(record.timestamp).append(',')
+            if (record.accuracy == RecordQueue.UNKNOWN_ACCURACY)
+                row.append("unknown")
+            else
+                row.append(record.accuracy.toLong())
+            row.append(',').appendFixed(record.v0.toFloat(), 16)
+            row.append(',').appendFixed(record.v1.toFloat(), 16)
+            row.append(',').appendFixed(record.v2.toFloat(), 16)
+        }
     }
 
     private var gyroSensorManager: SensorManager? = null
     private var gyroSensor: Sensor? = null
     var running: Boolean = false
-    private var accuracy ="unknown"
-    private var lineCount = 0
+    private var accuracy = RecordQueue.UNKNOWN_ACCURACY
+    private var batching = false
+    private var stopAfterFlush = false
 
     var exists: Boolean = appContext.packageManager.hasSystemFeature(PackageManager.FEATURE_SENSOR_GYROSCOPE)
 
@@ -63,7 +86,21 @@ class GyroscopeListener(private val appContext: Context) : SensorEventListener {
 //        print("starting gyro with delay of $delay_period_microseconds")
 //        print("gyro frequency was " + PersistentData.getGyroscopeFrequency())
 
-        if (!gyroSensorManager!!.registerListener(this, gyroSensor, delay_period_microseconds)) {
+        // with a max report latency the sensor hub batches events, see SensorBatching.kt.
+        val max_report_latency_microseconds = maxReportLatencyMicroseconds(
+                gyroSensor, delay_period_microseconds, PersistentData.getGyroscopeMaxReportLatency(), writer.capacity())
+        batching = max_report_latency_microseconds > 0
+
+        // studies that only need features get one summary row per window instead of every sample.
+        writer.setAggregation(PersistentData.getMotionAggregationWindow(), { TextFileManager.getGyroSummaryFile() })
+
+        // the flush from the previous session's turn_off may not have completed yet.
+        if (stopAfterFlush) {
+            gyroSensorManager!!.unregisterListener(this)
+            stopAfterFlush = false
+        }
+
+        if (!gyroSensorManager!!.registerListener(this, gyroSensor, delay_period_microseconds, max_report_latency_microseconds)) {
             Log.e("Gyroscope", "Gyroscope is broken")
             TextFileManager.writeDebugLogStatement("Trying to start gyroscope session, device cannot find gyroscope.")
         } else
@@ -73,10 +110,27 @@ class GyroscopeListener(private val appContext: Context) : SensorEventListener {
     @Synchronized
     fun turn_off() {
         PersistentData.gyroscopeStop = Date(System.currentTimeMillis()).toLocaleString()
-        gyroSensorManager?.unregisterListener(this)
+        // batched events are still in the sensor's FIFO, have them delivered and stop in onFlushCompleted.
+        if (batching && gyroSensorManager?.flush(this) == true)
+            stopAfterFlush = true
+        else {
+            gyroSensorManager?.unregisterListener(this)
+            writer.finishWindow()
+        }
+        batching = false
         running = false
     }
 
+    /** Called once the events flushed by turn_off have been delivered. (only triggered by the system.) */
+    @Synchronized
+    override fun onFlushCompleted(sensor: Sensor) {
+        if (stopAfterFlush) {
+            gyroSensorManager?.unregisterListener(this)
+            stopAfterFlush = false
+            writer.finishWindow()
+        }
+    }
+
     val gyro_off_action: () -> Unit = { turn_off() }
     val gyro_on_action: () -> Unit = { turn_on() }
 
@@ -84,7 +138,7 @@ class GyroscopeListener(private val appContext: Context) : SensorEventListener {
      * (only triggered by the system.)  */
     @Synchronized
     override fun onAccuracyChanged(arg0: Sensor, arg1: Int) {
-        accuracy = arg1.toString()
+        accuracy = arg1
     }
 
     // private var prior_timecode: Long = 0
@@ -97,15 +151,7 @@ class GyroscopeListener(private val appContext: Context) : SensorEventListener {
         // print("gyro milliseconds since prior: ${javaTimeCode-prior_timecode})")
         // prior_timecode = javaTimeCode
         val values = arg0.values
-        val value0 = String.format(Locale.US, "%.16f", values[0])
-        val value1 = String.format(Locale.US, "%.16f", values[1])
-        val value2 = String.format(Locale.US, "%.16f", values[2])
-        // if the linecount is over 10,000 then we create a new file:
-        if (lineCount > 10000) {
-            TextFileManager.getGyroFile().newFile()
-            lineCount = 0
-        }
-        TextFileManager.getGyroFile().writeEncrypted("$javaTimeCode,$accuracy,$value0,$value1,$value2")
-        lineCount++
+        // formatting, encryption, writing and file rotation happen on the writer thread.
+        writer.offer(javaTimeCode, accuracy, values[0].toDouble(), values[1].toDouble(), values[2].toDouble(), 0.0)
     }
 }
\ No newline at end of file
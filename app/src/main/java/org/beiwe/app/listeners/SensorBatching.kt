@@ -0,0 +1,32 @@
+package org.beiwe.app.listeners
+
+import android.hardware.Sensor
+
+/* Hardware sensor batching.
+ * When a sensor is registered with a max report latency the sensor hub collects events in its FIFO
+ * and delivers them in bursts, so the CPU wakes up once per burst instead of once per sample.
+ * Timestamps come from the events, so they are unaffected.  A burst arrives all at once on the
+ * sensor thread, the AsyncStreamWriter queue absorbs it and the writer thread drains it as one batch.
+ *
+ * Accelerometer and gyroscope are non-wakeup sensors: when the FIFO fills while the CPU sleeps
+ * the oldest events are overwritten, so the latency is capped to what the FIFO can hold. */
+
+/** @return the max report latency to register the sensor with in microseconds, 0 if batching is
+ * off or the sensor has no FIFO.
+ * @param periodMicroseconds the sampling period the sensor is registered with
+ * @param requestedMilliseconds the max report latency from the study settings, 0 for no batching
+ * @param queueCapacity the capacity of the listener's AsyncStreamWriter */
+fun maxReportLatencyMicroseconds(
+        sensor: Sensor?, periodMicroseconds: Int, requestedMilliseconds: Long, queueCapacity: Int
+): Int {
+    if (sensor == null || requestedMilliseconds <= 0 || periodMicroseconds <= 0)
+        return 0
+    if (sensor.fifoMaxEventCount <= 0)
+        return 0  // this sensor cannot batch, events are delivered as they happen.
+
+    // the FIFO may be shared with other sensors and the hub may deliver a little late, leave room.
+    // A burst must also fit in the writer queue.
+    val burstEvents = minOf(sensor.fifoMaxEventCount * 8L / 10, queueCapacity / 2L)
+    val latency = minOf(requestedMilliseconds * 1000L, burstEvents * periodMicroseconds)
+    return minOf(latency, Int.MAX_VALUE.toLong()).toInt()
+}
@@ -45,10 +45,9 @@ public class WifiListener {
 					data.append("\n");
 				}
 				
-				// Create a new file, write the data to it, and close the file
-				TextFileManager.getWifiLogFile().newFile(); //note: the file name's timestamp is actually relevant, so we always make a new file.
+				// The wifi log rotates after every record, so this creates a new file, writes the data to it, and closes the file.
+				// note: the file name's timestamp is actually relevant, so we always make a new file.
 				TextFileManager.getWifiLogFile().writeEncrypted(data.toString());
-				TextFileManager.getWifiLogFile().closeFile();
 //				Log.d("WIFI", "DONE GONE DID SCAN.");
 			} // and provide a debug log statement for data researchers if we cannot get scan data right now.
 		} else {
@@ -9,6 +9,7 @@ import org.beiwe.app.CrashHandler;
 import org.beiwe.app.DeviceInfo;
 import org.beiwe.app.PermissionHandler;
 import org.beiwe.app.R;
+import org.beiwe.app.storage.EncryptionEngine;
 import org.beiwe.app.storage.PersistentData;
 import org.beiwe.app.storage.SetDeviceSettings;
 import org.beiwe.app.storage.TextFileManager;
@@ -259,6 +260,7 @@ public class PostRequest {
 		}
 		TextFileManager.getKeyFile().deleteSafely();
 		TextFileManager.getKeyFile().safeWritePlaintext(key);
+		EncryptionEngine.keyFileChanged();  // file keys made with an old key would be unreadable
 		return httpResponse;
 	}
 	
@@ -402,6 +404,7 @@ public class PostRequest {
 		synchronized (FILE_UPLOAD_LOCK) {
 			//long stopTime = System.currentTimeMillis() + PersistentData.getUploadDataFilesFrequencyMilliseconds();
 			long stopTime = System.currentTimeMillis() + 1000 * 60 * 60; //One hour to upload files
+			TextFileManager.bundleSmallFiles();  // small files go up in bundles, when the study allows it
 			String[] files = TextFileManager.getAllUploadableFiles();
 			// Log.i("uploading", "uploading " + files.length + " files");
 			File file = null;
@@ -413,9 +416,13 @@ public class PostRequest {
 				return;
 			}
 			
-			for (String fileName: TextFileManager.getAllUploadableFiles()) {
+			for (String fileName: files) {
 				try {
-					file = new File(appContext.getFilesDir() + "/" + fileName);
+					file = TextFileManager.getFile(fileName);
+					if (!file.exists()) {  // deleted behind our back, drop it from the manifest
+						TextFileManager.delete(fileName);
+						continue;
+					}
 					
 					if (PostRequest.doFileUpload(file, uploadUrl, stopTime) == 200) {
 						TextFileManager.delete(fileName);
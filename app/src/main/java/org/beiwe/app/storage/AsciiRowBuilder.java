@@ -0,0 +1,645 @@
+package org.beiwe.app.storage;
+
+import java.util.Arrays;
+
+/**A reusable byte buffer for building one line of a data file, with locale independent number
+ * formatting that does not allocate.
+ *
+ * Sensor rows used to be built with String.format(Locale.US, "%.16f", value) and string templates,
+ * several short lived Strings per sample, and then String.getBytes() for the encryption.  At
+ * 100 Hz for weeks at a time that garbage adds up.  Each AsyncStreamWriter owns one of these and
+ * reuses it for every row, the finished row is copied straight into the file's encryption buffer.
+ *
+ * appendFixed produces exactly the characters String.format(Locale.US, "%.Nf", value) produces.
+ * It is a port of the JDK's algorithm (FloatingDecimal.dtoa, FormattedFloatingDecimal.applyPrecision
+ * and Formatter.addZeros): the shortest digit string that identifies the double is generated first,
+ * and that digit string is then rounded half up to the requested number of decimal places.  That
+ * double rounding is part of what String.format outputs, so it is reproduced here, rounding the
+ * exact binary value directly would give different digits for some values.
+ * Floats are formatted the way Formatter formats a boxed Float, by widening them to double first.
+ *
+ * Not thread safe, each thread needs its own instance. */
+public class AsciiRowBuilder {
+
+	// FloatingDecimal constants, for doubles.
+	private static final int EXP_SHIFT = 52;
+	private static final long FRACT_HOB = 1L << EXP_SHIFT;
+	private static final long EXP_ONE = 1023L << EXP_SHIFT;
+	private static final long SIGNIF_BIT_MASK = 0x000FFFFFFFFFFFFFL;
+	private static final long EXP_BIT_MASK = 0x7FF0000000000000L;
+	private static final long SIGN_BIT_MASK = 0x8000000000000000L;
+	private static final int EXP_BIAS = 1023;
+	private static final int MAX_SMALL_BIN_EXP = 62;
+	private static final int MIN_SMALL_BIN_EXP = -(63 / 3);
+
+	// approximate number of bits in 5^i.
+	private static final int[] N_5_BITS = {
+		0, 3, 5, 7, 10, 12, 14, 17, 19, 21, 24, 26, 28, 31, 33, 35, 38, 40, 42, 45, 47, 49, 52, 54, 56, 59, 61
+	};
+	// insignificantDigitsNumber[i] is the number of decimal digits of 2^i, minus one.
+	private static final int[] INSIGNIFICANT_DIGITS_NUMBER = {
+		0, 0, 0, 0, 1, 1, 1, 2, 2, 2, 3, 3, 3, 3,
+		4, 4, 4, 5, 5, 5, 6, 6, 6, 6, 7, 7, 7,
+		8, 8, 8, 9, 9, 9, 9, 10, 10, 10, 11, 11, 11,
+		12, 12, 12, 12, 13, 13, 13, 14, 14, 14,
+		15, 15, 15, 15, 16, 16, 16, 17, 17, 17,
+		18, 18, 18, 19
+	};
+	private static final int[] SMALL_5_POW = new int[14];
+	private static final long[] LONG_5_POW = new long[27];
+	static {
+		SMALL_5_POW[0] = 1;
+		for (int i = 1; i < SMALL_5_POW.length; i++) {
+			SMALL_5_POW[i] = SMALL_5_POW[i - 1] * 5;
+		}
+		LONG_5_POW[0] = 1L;
+		for (int i = 1; i < LONG_5_POW.length; i++) {
+			LONG_5_POW[i] = LONG_5_POW[i - 1] * 5L;
+		}
+	}
+
+	private static final byte[] NAN = {'N', 'a', 'N'};
+	private static final byte[] INFINITY = {'I', 'n', 'f', 'i', 'n', 'i', 't', 'y'};
+	private static final byte[] LONG_MIN_VALUE = {
+		'-', '9', '2', '2', '3', '3', '7', '2', '0', '3', '6', '8', '5', '4', '7', '7', '5', '8', '0', '8'
+	};
+
+	// Every double has fewer than 20 shortest digits, developLongDigits fills from the end of the array.
+	private static final int MAX_DIGITS = 20;
+	// Big enough for the exact arithmetic on any double: 5^~340 * 2^~1180 and a few factors of 10.
+	private static final int BIG_WORDS = 96;
+
+	private byte[] buffer;
+	private int length = 0;
+
+	// digit generation state, reused between calls.
+	private final byte[] digits = new byte[MAX_DIGITS];
+	private int firstDigitIndex;
+	private int nDigits;
+	private int decExponent;
+
+	// scratch numbers for the arithmetic that does not fit in a long, little endian 32 bit words.
+	private final int[] bigB = new int[BIG_WORDS];
+	private final int[] bigS = new int[BIG_WORDS];
+	private final int[] bigM = new int[BIG_WORDS];
+	private final int[] bigTenS = new int[BIG_WORDS];
+	private final int[] bigScratch = new int[BIG_WORDS];
+
+	public AsciiRowBuilder (int initialCapacity) {
+		this.buffer = new byte[initialCapacity];
+	}
+
+	/** Empties the row, keeps the buffer. */
+	public void reset () {
+		this.length = 0;
+	}
+
+	/** @return the buffer holding the row, only the first length() bytes are valid. */
+	public byte[] buffer () {
+		return this.buffer;
+	}
+
+	public int length () {
+		return this.length;
+	}
+
+	/** Appends a character, it must be ascii. */
+	public AsciiRowBuilder append (char c) {
+		this.ensureCapacity(1);
+		this.buffer[this.length++] = (byte) c;
+		return this;
+	}
+
+	/** Appends a string, it must be ascii. */
+	public AsciiRowBuilder append (String ascii) {
+		int count = ascii.length();
+		this.ensureCapacity(count);
+		for (int i = 0; i < count; i++) {
+			this.buffer[this.length++] = (byte) ascii.charAt(i);
+		}
+		return this;
+	}
+
+	/** Appends the value exactly as Long.toString would. */
+	public AsciiRowBuilder append (long value) {
+		if (value == Long.MIN_VALUE) {
+			return this.appendBytes(LONG_MIN_VALUE);
+		}
+		this.ensureCapacity(20);
+		if (value < 0) {
+			this.buffer[this.length++] = '-';
+			value = -value;
+		}
+		int start = this.length;
+		do {
+			this.buffer[this.length++] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		// digits were written least significant first.
+		for (int i = start, j = this.length - 1; i < j; i++, j--) {
+			byte swap = this.buffer[i];
+			this.buffer[i] = this.buffer[j];
+			this.buffer[j] = swap;
+		}
+		return this;
+	}
+
+	/** Appends the value exactly as String.format(Locale.US, "%.{precision}f", value) would. */
+	public AsciiRowBuilder appendFixed (float value, int precision) {
+		// Formatter widens floats to double before formatting them.
+		return this.appendFixed((double) value, precision);
+	}
+
+	/** Appends the value exactly as String.format(Locale.US, "%.{precision}f", value) would. */
+	public AsciiRowBuilder appendFixed (double value, int precision) {
+		if (Double.isNaN(value)) {
+			return this.appendBytes(NAN);
+		}
+		// Formatter's test, which puts a sign on -0.0.
+		if (Double.compare(value, 0.0) == -1) {
+			this.append('-');
+		}
+		value = Math.abs(value);
+		if (Double.isInfinite(value)) {
+			return this.appendBytes(INFINITY);
+		}
+
+		if (value == 0.0) {
+			this.digits[0] = '0';
+			this.firstDigitIndex = 0;
+			this.nDigits = 1;
+			this.decExponent = 0;
+		} else {
+			this.toShortestDigits(value);
+		}
+		int exp = this.applyPrecision(this.decExponent + precision);
+		this.fillDecimal(exp, precision);
+		return this;
+	}
+
+	private AsciiRowBuilder appendBytes (byte[] bytes) {
+		this.ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, this.buffer, this.length, bytes.length);
+		this.length += bytes.length;
+		return this;
+	}
+
+	private void ensureCapacity (int extra) {
+		if (this.length + extra > this.buffer.length) {
+			this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.length + extra));
+		}
+	}
+
+	/*###############################################################################
+	############## Digit generation, ported from FloatingDecimal ####################
+	###############################################################################*/
+
+	/** Fills digits, firstDigitIndex, nDigits and decExponent for a finite value > 0, the way
+	 * FloatingDecimal.getBinaryToASCIIConverter(value, false) does. */
+	private void toShortestDigits (double value) {
+		long dBits = Double.doubleToRawLongBits(value);
+		long fractBits = dBits & SIGNIF_BIT_MASK;
+		int binExp = (int) ((dBits & EXP_BIT_MASK) >> EXP_SHIFT);
+		int nSignificantBits;
+		if (binExp == 0) {
+			// normalize denormalized numbers.
+			int leadingZeros = Long.numberOfLeadingZeros(fractBits);
+			int shift = leadingZeros - (63 - EXP_SHIFT);
+			fractBits <<= shift;
+			binExp = 1 - shift;
+			nSignificantBits = 64 - leadingZeros;
+		} else {
+			fractBits |= FRACT_HOB;
+			nSignificantBits = EXP_SHIFT + 1;
+		}
+		binExp -= EXP_BIAS;
+		this.dtoa(binExp, fractBits, nSignificantBits);
+	}
+
+	private void dtoa (int binExp, long fractBits, int nSignificantBits) {
+		final int tailZeros = Long.numberOfTrailingZeros(fractBits);
+		// number of significant bits of fractBits.
+		final int nFractBits = EXP_SHIFT + 1 - tailZeros;
+		// number of significant bits to the right of the point.
+		int nTinyBits = Math.max(0, nFractBits - binExp - 1);
+		if (binExp <= MAX_SMALL_BIN_EXP && binExp >= MIN_SMALL_BIN_EXP) {
+			// integers that fit in a long are easy.
+			if (nTinyBits < LONG_5_POW.length && (nFractBits + N_5_BITS[nTinyBits]) < 64 && nTinyBits == 0) {
+				int insignificant;
+				if (binExp > nSignificantBits) {
+					insignificant = insignificantDigitsForPow2(binExp - nSignificantBits - 1);
+				} else {
+					insignificant = 0;
+				}
+				if (binExp >= EXP_SHIFT) {
+					fractBits <<= (binExp - EXP_SHIFT);
+				} else {
+					fractBits >>>= (EXP_SHIFT - binExp);
+				}
+				this.developLongDigits(fractBits, insignificant);
+				return;
+			}
+		}
+
+		// The general case: find B, S and decExp with value = (B / S) * 10^decExp and 1 <= B / S < 10,
+		// and M, half an ulp of the value scaled like B.  Digits are B / S, we stop once the remainder
+		// is within M of either end.
+		int decExp = estimateDecExp(fractBits, binExp);
+		int B5 = Math.max(0, -decExp);
+		int B2 = B5 + nTinyBits + binExp;
+		int S5 = Math.max(0, decExp);
+		int S2 = S5 + nTinyBits;
+		int M5 = B5;
+		int M2 = B2 - nSignificantBits;
+
+		fractBits >>>= tailZeros;
+		B2 -= nFractBits - 1;
+		int common2factor = Math.min(B2, S2);
+		B2 -= common2factor;
+		S2 -= common2factor;
+		M2 -= common2factor;
+
+		// for exact powers of two the next smaller double is only half as far away.
+		if (nFractBits == 1) {
+			M2 -= 1;
+		}
+		if (M2 < 0) {
+			B2 -= M2;
+			S2 -= M2;
+			M2 = 0;
+		}
+
+		int ndigit = 0;
+		boolean low, high;
+		long lowDigitDifference;
+		int q;
+
+		// binary digits needed to represent B and 10 * S, approximately.
+		int Bbits = nFractBits + B2 + ((B5 < N_5_BITS.length) ? N_5_BITS[B5] : (B5 * 3));
+		int tenSbits = S2 + 1 + (((S5 + 1) < N_5_BITS.length) ? N_5_BITS[(S5 + 1)] : ((S5 + 1) * 3));
+		if (Bbits < 64 && tenSbits < 64) {
+			if (Bbits < 32 && tenSbits < 32) {
+				// all ints.
+				int b = ((int) fractBits * SMALL_5_POW[B5]) << B2;
+				int s = SMALL_5_POW[S5] << S2;
+				int m = SMALL_5_POW[M5] << M2;
+				int tens = s * 10;
+				q = b / s;
+				b = 10 * (b % s);
+				m *= 10;
+				low = (b < m);
+				high = (b + m > tens);
+				if ((q == 0) && !high) {
+					// the decExp estimate was one too high, drop the leading zero.
+					decExp--;
+				} else {
+					this.digits[ndigit++] = (byte) ('0' + q);
+				}
+				// Formatter always asks for at least two digits.
+				high = low = false;
+				while (!low && !high) {
+					q = b / s;
+					b = 10 * (b % s);
+					m *= 10;
+					if (m > 0L) {
+						low = (b < m);
+						high = (b + m > tens);
+					} else {
+						// m overflowed, it is certainly larger than b, and b + m larger than tens.
+						low = true;
+						high = true;
+					}
+					this.digits[ndigit++] = (byte) ('0' + q);
+				}
+				lowDigitDifference = (b << 1) - tens;
+			} else {
+				// all longs.
+				long b = (fractBits * LONG_5_POW[B5]) << B2;
+				long s = LONG_5_POW[S5] << S2;
+				long m = LONG_5_POW[M5] << M2;
+				long tens = s * 10L;
+				q = (int) (b / s);
+				b = 10L * (b % s);
+				m *= 10L;
+				low = (b < m);
+				high = (b + m > tens);
+				if ((q == 0) && !high) {
+					decExp--;
+				} else {
+					this.digits[ndigit++] = (byte) ('0' + q);
+				}
+				high = low = false;
+				while (!low && !high) {
+					q = (int) (b / s);
+					b = 10 * (b % s);
+					m *= 10;
+					if (m > 0L) {
+						low = (b < m);
+						high = (b + m > tens);
+					} else {
+						low = true;
+						high = true;
+					}
+					this.digits[ndigit++] = (byte) ('0' + q);
+				}
+				lowDigitDifference = (b << 1) - tens;
+			}
+		} else {
+			// exact arithmetic.  Unlike the int and long cases the high test is inclusive here.
+			int[] B = this.bigB, S = this.bigS, M = this.bigM, tenS = this.bigTenS;
+			setPow52(S, S5, S2);
+			setMulPow52(B, fractBits, B5, B2);
+			setPow52(M, M5 + 1, M2 + 1);  // M is multiplied by 10 before the first comparison.
+			setPow52(tenS, S5 + 1, S2 + 1);
+
+			q = quoRemIteration(B, S);
+			low = compare(B, M) < 0;
+			high = this.addAndCompare(B, M, tenS) >= 0;
+			if ((q == 0) && !high) {
+				decExp--;
+			} else {
+				this.digits[ndigit++] = (byte) ('0' + q);
+			}
+			high = low = false;
+			while (!low && !high) {
+				q = quoRemIteration(B, S);
+				multiply(M, 10);
+				low = compare(B, M) < 0;
+				high = this.addAndCompare(B, M, tenS) >= 0;
+				this.digits[ndigit++] = (byte) ('0' + q);
+			}
+			if (high && low) {
+				lowDigitDifference = this.addAndCompare(B, B, tenS);
+			} else {
+				lowDigitDifference = 0L;
+			}
+		}
+		this.decExponent = decExp + 1;
+		this.firstDigitIndex = 0;
+		this.nDigits = ndigit;
+
+		// round the last digit based on the stopping condition.
+		if (high) {
+			if (low) {
+				if (lowDigitDifference == 0L) {
+					// a tie, round to even.
+					if ((this.digits[this.firstDigitIndex + this.nDigits - 1] & 1) != 0) {
+						this.roundup();
+					}
+				} else if (lowDigitDifference > 0) {
+					this.roundup();
+				}
+			} else {
+				this.roundup();
+			}
+		}
+	}
+
+	/** Digits of an integer value, discarding the given number of insignificant low order digits. */
+	private void developLongDigits (long lvalue, int insignificantDigits) {
+		int decExponent = 0;
+		if (insignificantDigits != 0) {
+			long pow10 = LONG_5_POW[insignificantDigits] << insignificantDigits;
+			long residue = lvalue % pow10;
+			lvalue /= pow10;
+			decExponent += insignificantDigits;
+			if (residue >= (pow10 >> 1)) {
+				lvalue++;
+			}
+		}
+		int digitno = this.digits.length - 1;
+		int c = (int) (lvalue % 10L);
+		lvalue /= 10L;
+		while (c == 0) {
+			decExponent++;
+			c = (int) (lvalue % 10L);
+			lvalue /= 10L;
+		}
+		while (lvalue != 0L) {
+			this.digits[digitno--] = (byte) (c + '0');
+			decExponent++;
+			c = (int) (lvalue % 10L);
+			lvalue /= 10;
+		}
+		this.digits[digitno] = (byte) (c + '0');
+		this.decExponent = decExponent + 1;
+		this.firstDigitIndex = digitno;
+		this.nDigits = this.digits.length - digitno;
+	}
+
+	/** Adds one to the last digit, a carry out of the first digit makes it "1" with a larger exponent. */
+	private void roundup () {
+		int i = this.firstDigitIndex + this.nDigits - 1;
+		int q = this.digits[i];
+		if (q == '9') {
+			while (q == '9' && i > this.firstDigitIndex) {
+				this.digits[i] = '0';
+				q = this.digits[--i];
+			}
+			if (q == '9') {
+				this.decExponent += 1;
+				this.digits[this.firstDigitIndex] = '1';
+				return;
+			}
+		}
+		this.digits[i] = (byte) (q + 1);
+	}
+
+	/** Estimates floor(log10(value)), may be one too high. */
+	private static int estimateDecExp (long fractBits, int binExp) {
+		double d2 = Double.longBitsToDouble(EXP_ONE | (fractBits & SIGNIF_BIT_MASK));
+		double d = (d2 - 1.5D) * 0.289529654D + 0.176091259 + (double) binExp * 0.301029995663981;
+		long dBits = Double.doubleToRawLongBits(d);
+		int exponent = (int) ((dBits & EXP_BIT_MASK) >> EXP_SHIFT) - EXP_BIAS;
+		boolean isNegative = (dBits & SIGN_BIT_MASK) != 0;
+		if (exponent >= 0 && exponent < 52) {
+			long mask = SIGNIF_BIT_MASK >> exponent;
+			int r = (int) (((dBits & SIGNIF_BIT_MASK) | FRACT_HOB) >> (EXP_SHIFT - exponent));
+			return isNegative ? (((mask & dBits) == 0L) ? -r : -r - 1) : r;
+		} else if (exponent < 0) {
+			return (((dBits & ~SIGN_BIT_MASK) == 0) ? 0 : ((isNegative) ? -1 : 0));
+		} else {
+			return (int) d;
+		}
+	}
+
+	private static int insignificantDigitsForPow2 (int p2) {
+		if (p2 > 1 && p2 < INSIGNIFICANT_DIGITS_NUMBER.length) {
+			return INSIGNIFICANT_DIGITS_NUMBER[p2];
+		}
+		return 0;
+	}
+
+	/*###############################################################################
+	######### Rounding and layout, ported from FormattedFloatingDecimal #############
+	###############################################################################*/
+
+	/** Rounds the digits half up so that only the first prec remain, the rest become '0'.
+	 * @return the decimal exponent, one larger if the rounding carried out of the first digit. */
+	private int applyPrecision (int prec) {
+		int first = this.firstDigitIndex;
+		int n = this.nDigits;
+		if (prec >= n || prec < 0) {
+			return this.decExponent;
+		}
+		if (prec == 0) {
+			// only one digit, 0 or 1, is left.
+			if (this.digits[first] >= '5') {
+				this.digits[first] = '1';
+				Arrays.fill(this.digits, first + 1, first + n, (byte) '0');
+				return this.decExponent + 1;
+			} else {
+				Arrays.fill(this.digits, first, first + n, (byte) '0');
+				return this.decExponent;
+			}
+		}
+		int q = this.digits[first + prec];
+		if (q >= '5') {
+			int i = prec;
+			q = this.digits[first + --i];
+			if (q == '9') {
+				while (q == '9' && i > 0) {
+					q = this.digits[first + --i];
+				}
+				if (q == '9') {
+					this.digits[first] = '1';
+					Arrays.fill(this.digits, first + 1, first + n, (byte) '0');
+					return this.decExponent + 1;
+				}
+			}
+			this.digits[first + i] = (byte) (q + 1);
+			Arrays.fill(this.digits, first + i + 1, first + n, (byte) '0');
+		} else {
+			Arrays.fill(this.digits, first + prec, first + n, (byte) '0');
+		}
+		return this.decExponent;
+	}
+
+	/** Writes 0.d1d2d3... * 10^exp with exactly precision decimal places. */
+	private void fillDecimal (int exp, int precision) {
+		int first = this.firstDigitIndex;
+		int n = this.nDigits;
+		this.ensureCapacity(Math.max(exp, 1) + 1 + precision);
+		int written = 0;  // fraction digits written
+		if (exp > 0) {
+			int integerDigits = Math.min(n, exp);
+			System.arraycopy(this.digits, first, this.buffer, this.length, integerDigits);
+			this.length += integerDigits;
+			for (int i = integerDigits; i < exp; i++) {
+				this.buffer[this.length++] = '0';
+			}
+			if (precision > 0) {
+				this.buffer[this.length++] = '.';
+			}
+			int t = Math.max(0, Math.min(n - exp, precision));
+			if (t > 0) {
+				System.arraycopy(this.digits, first + exp, this.buffer, this.length, t);
+				this.length += t;
+			}
+			written = t;
+		} else {
+			this.buffer[this.length++] = '0';
+			if (precision > 0) {
+				this.buffer[this.length++] = '.';
+			}
+			int zeros = Math.min(-exp, precision);
+			for (int i = 0; i < zeros; i++) {
+				this.buffer[this.length++] = '0';
+			}
+			int t = Math.max(0, Math.min(n, precision + exp));
+			System.arraycopy(this.digits, first, this.buffer, this.length, t);
+			this.length += t;
+			written = zeros + t;
+		}
+		for (int i = written; i < precision; i++) {
+			this.buffer[this.length++] = '0';
+		}
+	}
+
+	/*###############################################################################
+	################ Fixed size big integers for the exact case #####################
+	###############################################################################*/
+	// Numbers are little endian arrays of 32 bit words, all BIG_WORDS long, high words zero.
+
+	/** value = 5^p5 * 2^p2 */
+	private static void setPow52 (int[] value, int p5, int p2) {
+		setMulPow52(value, 1L, p5, p2);
+	}
+
+	/** value = start * 5^p5 * 2^p2 */
+	private static void setMulPow52 (int[] value, long start, int p5, int p2) {
+		Arrays.fill(value, 0);
+		value[0] = (int) start;
+		value[1] = (int) (start >>> 32);
+		while (p5 >= 13) {
+			multiply(value, SMALL_5_POW[13]);
+			p5 -= 13;
+		}
+		multiply(value, SMALL_5_POW[p5]);
+		shiftLeft(value, p2);
+	}
+
+	/** value *= factor, factor must fit in 32 unsigned bits. */
+	private static void multiply (int[] value, long factor) {
+		long carry = 0;
+		for (int i = 0; i < BIG_WORDS; i++) {
+			long product = (value[i] & 0xFFFFFFFFL) * factor + carry;
+			value[i] = (int) product;
+			carry = product >>> 32;
+		}
+	}
+
+	private static void shiftLeft (int[] value, int bits) {
+		int words = bits >>> 5;
+		int shift = bits & 31;
+		if (shift == 0) {
+			for (int i = BIG_WORDS - 1; i >= words; i--) {
+				value[i] = value[i - words];
+			}
+		} else {
+			for (int i = BIG_WORDS - 1; i > words; i--) {
+				value[i] = (value[i - words] << shift) | (value[i - words - 1] >>> (32 - shift));
+			}
+			value[words] = value[0] << shift;
+		}
+		for (int i = 0; i < words; i++) {
+			value[i] = 0;
+		}
+	}
+
+	private static int compare (int[] a, int[] b) {
+		for (int i = BIG_WORDS - 1; i >= 0; i--) {
+			if (a[i] != b[i]) {
+				return (a[i] & 0xFFFFFFFFL) < (b[i] & 0xFFFFFFFFL) ? -1 : 1;
+			}
+		}
+		return 0;
+	}
+
+	/** @return the sign of (a + b) - c. */
+	private int addAndCompare (int[] a, int[] b, int[] c) {
+		long carry = 0;
+		for (int i = 0; i < BIG_WORDS; i++) {
+			long sum = (a[i] & 0xFFFFFFFFL) + (b[i] & 0xFFFFFFFFL) + carry;
+			this.bigScratch[i] = (int) sum;
+			carry = sum >>> 32;
+		}
+		return compare(this.bigScratch, c);
+	}
+
+	/** q = b / s, b = 10 * (b % s), return q.  The quotient is always below 10. */
+	private static int quoRemIteration (int[] b, int[] s) {
+		int q = 0;
+		while (compare(b, s) >= 0) {
+			long borrow = 0;
+			for (int i = 0; i < BIG_WORDS; i++) {
+				long difference = (b[i] & 0xFFFFFFFFL) - (s[i] & 0xFFFFFFFFL) - borrow;
+				b[i] = (int) difference;
+				borrow = (difference >>> 63);
+			}
+			q++;
+		}
+		multiply(b, 10);
+		return q;
+	}
+}
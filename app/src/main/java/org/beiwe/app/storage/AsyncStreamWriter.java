@@ -0,0 +1,225 @@
+package org.beiwe.app.storage;
+
+import android.util.Log;
+
+import org.beiwe.app.BuildConfig;
+import org.beiwe.app.CrashHandler;
+
+import java.util.ArrayList;
+
+/**Decouples high frequency data sources from the disk and from encryption.
+ * Sensor callbacks offer records to a RecordQueue, which is cheap and never blocks on I/O.  A
+ * dedicated writer thread wakes up every batchIntervalMillis, or sooner when a burst of records
+ * fills half the queue, drains everything that has arrived, formats it, and hands it to the
+ * TextFileManager.  Rows are formatted into one reused AsciiRowBuilder, so the steady state write
+ * path does not allocate per record.
+ * With setAggregation the records are summarized into time windows by a WindowAggregator on the
+ * writer thread, and only the summary rows are written.
+ * Files are rotated by the TextFileManager's RotationPolicy, on the writer thread, so the callbacks never wait on a newFile(). */
+public class AsyncStreamWriter {
+
+	/** Supplies the TextFileManager to write to, looked up for each batch because
+	 * TextFileManager.initialize() may replace the instances. */
+	public interface FileProvider {
+		TextFileManager get();
+	}
+
+	/** Turns one record into one line of the output file (without a newline) by appending it to row,
+	 * row is empty when this is called. */
+	public interface RecordFormatter {
+		void format(RecordQueue.Record record, AsciiRowBuilder row);
+	}
+
+	// all writers, so that their queues can be drained before the app may be killed.
+	private static final ArrayList<AsyncStreamWriter> writers = new ArrayList<AsyncStreamWriter>();
+
+	// report queue overflows to the debug log at most this often.
+	private static final long DROP_REPORT_INTERVAL_MILLIS = 60 * 1000;
+
+	private final String name;
+	private final RecordQueue queue;
+	private final long batchIntervalMillis;
+	private final FileProvider fileProvider;
+	private final RecordFormatter formatter;
+
+	// only touched while holding drainLock.
+	private final Object drainLock = new Object();
+	private final RecordQueue.Record[] batch;
+	private final AsciiRowBuilder row = new AsciiRowBuilder(256);
+	private long writtenCount = 0;
+	private long reportedDroppedCount = 0;
+	private long lastDropReportMillis = 0;
+	// when set, records are summarized and only one row per window is written, to the summary file.
+	private WindowAggregator aggregator = null;
+	private FileProvider summaryFileProvider = null;
+
+	/** Creates the writer and starts its thread.
+	 * @param name Used for the thread name and in debug log statements.
+	 * @param capacity The maximum number of records waiting to be written, records beyond this are dropped.
+	 * @param batchIntervalMillis How long the writer thread waits between batches.
+	 * @param fileProvider Supplies the file to write to.
+	 * @param formatter Turns records into lines. */
+	public AsyncStreamWriter (String name, int capacity, long batchIntervalMillis,
+	                          FileProvider fileProvider, RecordFormatter formatter) {
+		this.name = name;
+		this.queue = new RecordQueue(capacity);
+		this.batchIntervalMillis = batchIntervalMillis;
+		this.fileProvider = fileProvider;
+		this.formatter = formatter;
+		this.batch = RecordQueue.newRecordArray(capacity);
+
+		synchronized (writers) {
+			writers.add(this);
+		}
+		Thread thread = new Thread(new Runnable() {
+			@Override public void run () {
+				writerLoop();
+			}
+		}, name + " writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Queues a record, safe to call from any thread, does not allocate or block on I/O.
+	 * @return false if the queue was full and the record was dropped. */
+	public boolean offer (long timestamp, int accuracy, double v0, double v1, double v2, double v3) {
+		return this.queue.offer(timestamp, accuracy, v0, v1, v2, v3);
+	}
+
+	public int capacity () {
+		return this.queue.capacity();
+	}
+
+	public long getEnqueuedCount () {
+		return this.queue.getEnqueuedCount();
+	}
+
+	public long getDroppedCount () {
+		return this.queue.getDroppedCount();
+	}
+
+	public long getWrittenCount () {
+		synchronized (this.drainLock) {
+			return this.writtenCount;
+		}
+	}
+
+	/** Writes everything currently queued, on the calling thread. */
+	public void drain () {
+		synchronized (this.drainLock) {
+			int count;
+			while ((count = this.queue.drainTo(this.batch)) > 0) {
+				this.writeBatch(count);
+			}
+			this.reportDrops();
+		}
+	}
+
+	/** Summarizes records into windows of windowMillis and writes one row per window to the file
+	 * from summaryFileProvider, instead of writing the records.  0 writes the records again.
+	 * Records already queued and an unfinished window are written with the old setting. */
+	public void setAggregation (long windowMillis, FileProvider summaryFileProvider) {
+		synchronized (this.drainLock) {
+			if (this.aggregator != null && this.aggregator.getWindowMillis() == windowMillis) {
+				this.summaryFileProvider = summaryFileProvider;
+				return;
+			}
+			this.finishWindow();
+			this.aggregator = (windowMillis > 0) ? new WindowAggregator(windowMillis) : null;
+			this.summaryFileProvider = summaryFileProvider;
+		}
+	}
+
+	/** Writes everything queued and, when aggregating, the summary of the unfinished window.
+	 * Call this at the end of a recording session. */
+	public void finishWindow () {
+		synchronized (this.drainLock) {
+			this.drain();
+			if (this.aggregator != null) {
+				this.row.reset();
+				if (this.aggregator.finish(this.row)) {
+					this.summaryFileProvider.get().writeEncrypted(this.row.buffer(), this.row.length());
+				}
+			}
+		}
+	}
+
+	/** Drains the queues of all writers, call this when the app may be about to get killed. */
+	public static void drainAll () {
+		ArrayList<AsyncStreamWriter> all;
+		synchronized (writers) {
+			all = new ArrayList<AsyncStreamWriter>(writers);
+		}
+		for (AsyncStreamWriter writer : all) {
+			writer.drain();
+		}
+	}
+
+	private void writerLoop () {
+		while (true) {
+			try {
+				this.queue.awaitRecords();
+				this.drain();
+				// waiting lets records accumulate so that the next batch is larger, a burst that
+				// fills half the queue is written right away.
+				this.queue.awaitHalfFull(this.batchIntervalMillis);
+			} catch (InterruptedException e) {
+				Log.e("AsyncStreamWriter", this.name + " writer thread interrupted, exiting.");
+				return;
+			} catch (Exception e) {
+				// an error in one batch must not kill the thread, the next batch may succeed.
+				Log.e("AsyncStreamWriter", this.name + " error writing batch: " + e.getMessage());
+				e.printStackTrace();
+				if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+					CrashHandler.writeCrashlog(e, TextFileManager.getAppContext());
+			}
+		}
+	}
+
+	/** Writes the first count records of batch. */
+	private void writeBatch (int count) {
+		if (this.aggregator != null) {
+			this.aggregateBatch(count);
+			return;
+		}
+		this.writeRange(this.fileProvider.get(), 0, count);
+		this.writtenCount += count;
+	}
+
+	/** Adds the first count records of batch to the aggregator, writes the rows of finished windows. */
+	private void aggregateBatch (int count) {
+		for (int i = 0; i < count; i++) {
+			RecordQueue.Record record = this.batch[i];
+			this.row.reset();
+			if (this.aggregator.add(record.timestamp, record.v0, record.v1, record.v2, this.row)) {
+				this.summaryFileProvider.get().writeEncrypted(this.row.buffer(), this.row.length());
+			}
+		}
+		this.writtenCount += count;
+	}
+
+	/** Writes batch records start through end - 1, as binary records or as formatted lines. */
+	private void writeRange (TextFileManager file, int start, int end) {
+		if (file.writesRecords()) {
+			file.writeEncryptedRecords(this.batch, start, end);
+			return;
+		}
+		for (int i = start; i < end; i++) {
+			this.row.reset();
+			this.formatter.format(this.batch[i], this.row);
+			file.writeEncrypted(this.row.buffer(), this.row.length());
+		}
+	}
+
+	private void reportDrops () {
+		long dropped = this.queue.getDroppedCount();
+		long now = System.currentTimeMillis();
+		if (dropped > this.reportedDroppedCount && now - this.lastDropReportMillis > DROP_REPORT_INTERVAL_MILLIS) {
+			TextFileManager.writeDebugLogStatement(
+				this.name + " write queue was full, " + (dropped - this.reportedDroppedCount) + " records dropped."
+			);
+			this.reportedDroppedCount = dropped;
+			this.lastDropReportMillis = now;
+		}
+	}
+}
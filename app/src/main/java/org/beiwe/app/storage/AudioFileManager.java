@@ -6,12 +6,13 @@ import android.util.Log;
 import org.beiwe.app.BuildConfig;
 import org.beiwe.app.CrashHandler;
 
-import java.io.DataInputStream;
-import java.io.File;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.InvalidKeyException;
 import java.security.spec.InvalidKeySpecException;
 
@@ -20,97 +21,117 @@ import java.security.spec.InvalidKeySpecException;
 
 public class AudioFileManager {
 	
+	// container format recordings are encrypted in frames of this many bytes of audio.
+	private static final int CONTAINER_FRAME_AUDIO_BYTES = 64 * 1024;
+	
+	/** The files deleted here are unencrypted recordings, they are overwritten before they are deleted. */
 	public static void delete (String fileName) {
-		TextFileManager.delete(fileName);
+		TextFileManager.shred(fileName);
 	}
 	
 	/** Filename includes the time the recording is encrypted. */
 	public static String generateNewEncryptedAudioFileName (String surveyId, String filenameExtension) {
 		String timecode = ((Long) (System.currentTimeMillis() / 1000L)).toString();
 		String patientId = PersistentData.getPatientID();
-		return patientId + "_voiceRecording_" + surveyId + "_" + timecode + filenameExtension;
+		return patientId + "_voiceRecording_" + surveyId + "_" + timecode + filenameExtension + containerExtension();
 	}
 	
 	/** slighly different name for ambient audio file */
 	public static String generateAmbientEncryptedAudioFileName (String filenameExtension) {
 		String timecode = ((Long) (System.currentTimeMillis() / 1000L)).toString();
-		return PersistentData.getPatientID() + "_ambientAudio_" + timecode + filenameExtension;
+		return PersistentData.getPatientID() + "_ambientAudio_" + timecode + filenameExtension + containerExtension();
+	}
+	
+	/** The name decides the format the recording is encrypted in, see encryptAudioFile(). */
+	private static String containerExtension () {
+		return PersistentData.getUseGcmContainerFormat() ? FileFormat.CONTAINER_EXTENSION : "";
 	}
 	
-	/** Reads in the existing temporary audio file and encrypts it. Generates AES keys as needed.
-	 * Behavior is to spend as little time writing the file as possible, at the expense of memory.*/
+	/** Encrypts the temporary audio file into an audio file for upload: the encrypted AES key on the
+	 * first line, the encrypted audio on the second.  The recording is encrypted as it is read, a
+	 * buffer at a time, so memory use does not depend on the length of the recording.
+	 * If the file name ends in FileFormat.CONTAINER_EXTENSION the audio is written in the container
+	 * format instead, the format line on the second line and then the binary frames. */
 	public static void encryptAudioFile (String unencryptedTempAudioFilePath, String filename, Context appContext) {
 		if (unencryptedTempAudioFilePath != null) {
-			// If the audio file has been written to, encrypt the audio file
-			byte[] aesKey = EncryptionEngine.newAESKey();
-			String encryptedRSA = null;
-			String encryptedAudio = null;
+			// If the audio file has been written to, encrypt the audio file.  The output is open until it is in
+			// the manifest, so that if we die before that the next process repairs or removes it.
+			TextFileManager.setFileOpen(filename, true);
 			try {
-				encryptedRSA = EncryptionEngine.encryptRSA(aesKey);
-				encryptedAudio = EncryptionEngine.encryptAES(readInAudioFile(unencryptedTempAudioFilePath, appContext), aesKey);
+				FileKeyPool.FileKey fileKey = FileKeyPool.take();
+				InputStream inStream = new FileInputStream(unencryptedTempAudioFilePath);
+				try {
+					OutputStream outStream = new BufferedOutputStream(TextFileManager.openForAppend(filename), 64 * 1024);
+					try {
+						outStream.write(fileKey.encryptedKey.getBytes());
+						outStream.write('\n');
+						if (FileFormat.isContainerFile(filename)) {
+							writeContainerFrames(inStream, outStream, fileKey.aesKey);
+						} else {
+							EncryptionEngine.encryptAES(inStream, outStream, fileKey.aesKey);
+							outStream.write('\n');
+						}
+					} finally {
+						outStream.close();
+					}
+				} finally {
+					inStream.close();
+				}
+				// the recording is finished, index it for upload.
+				TextFileManager.addFinishedFile(filename, filename.contains("_ambientAudio_") ? FileManifest.AMBIENT_AUDIO_STREAM : FileManifest.AUDIO_STREAM);
 			} catch (InvalidKeySpecException e) {
 				Log.e("AudioFileManager", "encrypted write operation to the audio file without a keyFile.");
 				if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
 					CrashHandler.writeCrashlog(e, appContext);
+				TextFileManager.delete(filename);
+				return;
 			} catch (InvalidKeyException e) {
 				Log.e("AudioFileManager", "encrypted write operation to the audio file without an aes key? how is that even...");
 				if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
 					CrashHandler.writeCrashlog(e, appContext);
+				TextFileManager.delete(filename);
+				return;
+			} catch (FileNotFoundException e) {
+				Log.e("AudioRecording", "could not open " + unencryptedTempAudioFilePath + " or " + filename + ": " + e.getMessage());
+				if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+					CrashHandler.writeCrashlog(e, appContext);
+				TextFileManager.delete(filename);
+				return;
+			} catch (IOException e) {
+				Log.e("AudioRecording", "error in the write operation: " + e.getMessage());
+				e.printStackTrace();
+				if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+					CrashHandler.writeCrashlog(e, appContext);
+				TextFileManager.delete(filename);  // a partial recording cannot be decrypted
+				return;
+			} finally {
+				TextFileManager.setFileOpen(filename, false);
 			}
-			writePlaintext(encryptedRSA, filename, appContext);
-			writePlaintext(encryptedAudio, filename, appContext);
 		}
 	}
 	
-	/** Writes string data to a the audio file. */
-	public static synchronized void writePlaintext (String data, String outputFileName, Context appContext) {
-		FileOutputStream outStream;
-		try {  //We use MODE_APPEND because... we know it works.
-			outStream = appContext.openFileOutput(outputFileName, Context.MODE_APPEND);
-			outStream.write((data).getBytes());
-			outStream.write("\n".getBytes());
-			outStream.flush();
-			outStream.close();
-		} catch (FileNotFoundException e) {
-			Log.e("AudioRecording", "could not find file to write to, " + outputFileName);
-			e.printStackTrace();
-			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
-				CrashHandler.writeCrashlog(e, appContext);
-		} catch (IOException e) {
-			Log.e("AudioRecording", "error in the write operation: " + e.getMessage());
-			e.printStackTrace();
-			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
-				CrashHandler.writeCrashlog(e, appContext);
-		}
-	}
-	
-	/** Reads a byte array of the current temp audio file's contents.
-	 * @return byte array of file contents. */
-	public static synchronized byte[] readInAudioFile (String unencryptedTempAudioFilePath, Context appContext) {
-		DataInputStream dataInputStream;
-		byte[] data = null;
-		File file = new File(unencryptedTempAudioFilePath);
-		try {  //Read the (data) input stream, into a bytearray.  Catch exceptions.
-			dataInputStream = new DataInputStream(new FileInputStream(file));
-			data = new byte[(int) file.length()];
-			try {
-				dataInputStream.readFully(data);
-			} catch (IOException e) {
-				Log.e("DataFileManager", "error reading " + unencryptedTempAudioFilePath);
-				if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
-					CrashHandler.writeCrashlog(e, appContext);
+	/** Writes the format line of a raw container and the recording in frames, see FileFormat. */
+	private static void writeContainerFrames (InputStream inStream, OutputStream outStream, byte[] aesKey) throws IOException, InvalidKeyException, InvalidKeySpecException {
+		outStream.write(FileFormat.rawContainer().formatLine().getBytes());
+		outStream.write('\n');
+		byte[] buffer = new byte[CONTAINER_FRAME_AUDIO_BYTES];
+		long frameIndex = 0;
+		while (true) {
+			// fill the buffer, so that every frame but the last is full size.
+			int count = 0;
+			int read = 0;
+			while (count < buffer.length && (read = inStream.read(buffer, count, buffer.length - count)) != -1) {
+				count += read;
+			}
+			if (count > 0) {
+				outStream.write(FileFormat.containerFrame(EncryptionEngine.encryptAESGCM(buffer, 0, count, aesKey, frameIndex++, false), false));
+			}
+			if (read == -1) {
+				// the end frame, so that a recording with frames missing from its end is told from a whole one.
+				outStream.write(FileFormat.containerFrame(EncryptionEngine.encryptAESGCM(buffer, 0, 0, aesKey, frameIndex, true), true));
+				return;
 			}
-			dataInputStream.close();
-		} catch (FileNotFoundException e) {
-			Log.e("AudioRecording", "file " + unencryptedTempAudioFilePath + " does not exist");
-			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
-				CrashHandler.writeCrashlog(e, appContext);
-		} catch (IOException e) {
-			Log.e("AudioRecording", "could not close " + unencryptedTempAudioFilePath);
-			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
-				CrashHandler.writeCrashlog(e, appContext);
 		}
-		return data;
 	}
 	
 	/** Used to transform a raw recording file into a wav file.
@@ -0,0 +1,51 @@
+package org.beiwe.app.storage;
+
+/**Decides when small finished files are packed into bundles before an upload, see FileBundler.
+ * Every file costs a POST of its own, and wifi scans, survey timings, power state and bluetooth
+ * files are often a few hundred bytes, so without bundling an upload can be thousands of requests.
+ *
+ * A file is small at smallFileBytes or less.  Nothing is bundled until there are more than
+ * minSmallFiles small files, then the small files of each stream are packed, oldest first, into
+ * bundles of at most maxBundleBytes.  Voice recordings and ambient audio are never bundled, nor are
+ * files of no known stream. */
+public class BundlePolicy {
+
+	// values of zero or below disable bundling.
+	final long smallFileBytes;
+	final int minSmallFiles;
+	final long maxBundleBytes;
+
+	private BundlePolicy (long smallFileBytes, int minSmallFiles, long maxBundleBytes) {
+		this.smallFileBytes = smallFileBytes;
+		this.minSmallFiles = minSmallFiles;
+		this.maxBundleBytes = maxBundleBytes;
+	}
+
+	/** Files of 16KB or less are bundled once there are more than 64 of them, into bundles of up to 1MB. */
+	public static BundlePolicy standard () {
+		return new BundlePolicy(16 * 1024, 64, 1024 * 1024);
+	}
+
+	/** Files are uploaded as they are. */
+	public static BundlePolicy never () {
+		return new BundlePolicy(0, 0, 0);
+	}
+
+	/** @param smallFileBytes files of this size or less are bundled
+	 * @param minSmallFiles bundling waits until there are more small files than this
+	 * @param maxBundleBytes the largest a bundle may get, with the lines that separate its files */
+	public static BundlePolicy limits (long smallFileBytes, int minSmallFiles, long maxBundleBytes) {
+		return new BundlePolicy(smallFileBytes, minSmallFiles, maxBundleBytes);
+	}
+
+	/** @return whether this policy bundles anything. */
+	public boolean bundles () {
+		return this.smallFileBytes > 0 && this.maxBundleBytes > 0;
+	}
+
+	/** @return whether a finished file of a stream is a candidate for a bundle. */
+	public boolean isCandidate (String stream, long size) {
+		return this.bundles() && size <= this.smallFileBytes && stream.length() > 0
+			&& !stream.equals(FileManifest.AUDIO_STREAM) && !stream.equals(FileManifest.AMBIENT_AUDIO_STREAM);
+	}
+}
@@ -0,0 +1,30 @@
+package org.beiwe.app.storage;
+
+/**The files managed by TextFileManager, one TextFileManager instance per constant.
+ * The constants key TextFileManager's stream registry, so looking up a stream is an array access.
+ * To add a data stream add a constant here and register its TextFileManager in TextFileManager.initialize(). */
+public enum DataStream {
+	GPS(true),
+	ACCELEROMETER(true),
+	GYROSCOPE(true),
+	ACCELEROMETER_SUMMARY(true),
+	GYROSCOPE_SUMMARY(true),
+	POWER_STATE(true),
+	CALL_LOG(true),
+	TEXTS_LOG(true),
+	BLUETOOTH_LOG(true),
+	DEBUG_LOG(true),
+	// Files created on specific events/written to in one go.
+	SURVEY_TIMINGS(false),
+	SURVEY_ANSWERS(false),
+	WIFI_LOG(false),
+	// the key file for encryption, persistent and never uploaded.
+	KEY_FILE(false);
+
+	/** Whether makeNewFilesForEverything() starts a new file for this stream. */
+	public final boolean periodic;
+
+	DataStream (boolean periodic) {
+		this.periodic = periodic;
+	}
+}
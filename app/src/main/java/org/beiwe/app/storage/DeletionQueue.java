@@ -0,0 +1,258 @@
+package org.beiwe.app.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**Deletes files on a low priority thread, so that callers such as the uploader, which deletes a
+ * file after every upload, do not wait on the file system or on the locks of the write path.  The
+ * thread waits BATCH_DELAY_MILLIS after a file is queued so that the deletions of a burst go in
+ * batches of up to BATCH_SIZE.
+ *
+ * Queued deletions are written to a journal, one line per file:
+ *     [d or s],[stream],[file name]
+ * and the journal is emptied whenever the queue is.  After a crash load() queues what is left in
+ * it, so every deletion is finished eventually.  With no journal file the queue is kept in memory.
+ * The journal is group-committed like the data files, see SyncPolicy: delete() only writes its line,
+ * and the deleter thread syncs the lines of a burst once, when it wakes up for them, so a line is
+ * at risk for about BATCH_DELAY_MILLIS at most.  A line lost in a power loss leaves its file behind
+ * if the caller's removal from the manifest made it to storage; FileManifest.remove() does not sync
+ * either, so more likely the file is still listed and is uploaded again.  Data is never lost.
+ * shred() syncs its line before the rename, see there.
+ *
+ * Files can also be shredded, overwritten with zeros before they are unlinked, which is for files
+ * that are not encrypted such as temporary audio recordings.  Those files are reused by name, so
+ * shred() renames a file to a name of its own before queueing it, and the original name can be
+ * written again at once.  Flash storage may keep old copies of blocks where the file system cannot
+ * see them, shredding keeps the data from being read back through the file system.
+ *
+ * Has no Android dependencies so that it can be run on a desktop JVM. */
+public class DeletionQueue {
+
+	public static final String JOURNAL_FILE_NAME = "pendingDeletions";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String DELETE = "d";
+	private static final String SHRED = "s";
+	private static final String SHREDDED_NAME_SUFFIX = ".shredding-";
+	private static final int BATCH_SIZE = 256;
+	private static final long BATCH_DELAY_MILLIS = 1000;
+
+	/** A file waiting to be deleted. */
+	private static class Pending {
+		final String stream;
+		final String name;
+		final boolean shred;
+
+		Pending (String stream, String name, boolean shred) {
+			this.stream = stream;
+			this.name = name;
+			this.shred = shred;
+		}
+	}
+
+	private final File journalFile;  // null to keep the queue in memory only
+	private final StorageBackend backend;
+	// the queue and the journal are only touched while holding this.
+	private final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+	private FileOutputStream journal = null;
+	private boolean journalUnsynced = false;
+	private long shredCount = 0;
+	// one batch is deleted at a time, so the journal is only emptied once the deletions in it are done.
+	private final Object drainLock = new Object();
+	private long deletedCount = 0;
+
+	/** @param journalFile where queued deletions are recorded, null keeps them in memory only. */
+	public DeletionQueue (File journalFile, StorageBackend backend) {
+		this.journalFile = journalFile;
+		this.backend = backend;
+	}
+
+	/**Queues the deletions left in the journal by the previous process.  Call this once, before
+	 * start() and before anything is queued.
+	 * @return the names of the files queued. */
+	public synchronized ArrayList<String> load () throws IOException {
+		ArrayList<String> names = new ArrayList<String>();
+		if (this.journalFile == null) {
+			return names;
+		}
+		BufferedReader reader;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.journalFile), UTF_8));
+		} catch (FileNotFoundException e) {
+			return names;
+		}
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// a line cut short by the crash has no name, or part of one; the file of a partial name
+				// does not exist, so deleting it does nothing.
+				String[] fields = line.split(",", 3);
+				if (fields.length < 3 || fields[2].length() == 0) {
+					continue;
+				}
+				this.queue.add(new Pending(fields[1], fields[2], fields[0].equals(SHRED)));
+				names.add(fields[2]);
+			}
+		} finally {
+			reader.close();
+		}
+		return names;
+	}
+
+	/** Starts the thread that deletes queued files. */
+	public void start () {
+		Thread thread = new Thread(new Runnable() {
+			@Override public void run () {
+				deleterLoop();
+			}
+		}, "file deleter");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	private void deleterLoop () {
+		while (true) {
+			try {
+				FileOutputStream unsynced;
+				synchronized (this) {
+					while (this.queue.isEmpty()) {
+						this.wait();
+					}
+					unsynced = this.journalUnsynced ? this.journal : null;
+					this.journalUnsynced = false;
+				}
+				// one sync for the lines of the burst, outside the lock so that delete() never waits on it.
+				if (unsynced != null) {
+					try {
+						unsynced.getFD().sync();
+					} catch (IOException e) {
+						// a drain() closed the journal meanwhile and emptied it, or the sync failed and
+						// the lines are left to the page cache, like the manifest lines of the same files.
+					}
+				}
+				Thread.sleep(BATCH_DELAY_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			this.drain();
+		}
+	}
+
+	/** Queues a file to be deleted.  The file is queued even if the journal cannot be written.  The
+	 * journal line is synced later, on the deleter thread, see the class documentation.
+	 * @throws IOException if the journal cannot be written, the deletion is then lost in a crash. */
+	public void delete (String stream, String name) throws IOException {
+		synchronized (this) {
+			this.queue.add(new Pending(stream, name, false));
+			this.notifyAll();
+			this.appendToJournal(DELETE, stream, name);
+		}
+	}
+
+	/** Renames a file to a name of its own and queues it to be overwritten and deleted, see the class
+	 * documentation.  Does nothing if the file does not exist.
+	 * @throws IOException if the journal cannot be written, the file is then left as it is. */
+	public void shred (String stream, String name) throws IOException {
+		synchronized (this) {
+			if (this.backend.length(stream, name) < 0) {
+				return;
+			}
+			// the journal first, synced: a crash after the rename must not leave a file no one knows
+			// about.  Shredding is rare, temporary audio recordings, so this sync is not batched.
+			String shreddedName = name + SHREDDED_NAME_SUFFIX + System.currentTimeMillis() + "-" + this.shredCount++;
+			this.appendToJournal(SHRED, stream, shreddedName);
+			this.syncJournal();
+			if (this.backend.rename(stream, name, shreddedName)) {
+				this.queue.add(new Pending(stream, shreddedName, true));
+				this.notifyAll();
+			}
+		}
+	}
+
+	/** Deletes everything queued, on the calling thread. */
+	public void drain () {
+		synchronized (this.drainLock) {
+			ArrayList<Pending> batch = new ArrayList<Pending>(BATCH_SIZE);
+			while (true) {
+				batch.clear();
+				synchronized (this) {
+					while (batch.size() < BATCH_SIZE && !this.queue.isEmpty()) {
+						batch.add(this.queue.poll());
+					}
+					if (batch.isEmpty()) {
+						return;
+					}
+				}
+				for (Pending pending : batch) {
+					if (pending.shred) {
+						this.backend.shred(pending.stream, pending.name);
+					} else {
+						this.backend.delete(pending.stream, pending.name);
+					}
+				}
+				synchronized (this) {
+					this.deletedCount += batch.size();
+					if (this.queue.isEmpty()) {
+						this.clearJournal();
+					}
+				}
+			}
+		}
+	}
+
+	/** @return the number of files waiting to be deleted. */
+	public synchronized int size () {
+		return this.queue.size();
+	}
+
+	/** @return the number of files deleted since this was created. */
+	public synchronized long getDeletedCount () {
+		return this.deletedCount;
+	}
+
+	private void appendToJournal (String action, String stream, String name) throws IOException {
+		if (this.journalFile == null) {
+			return;
+		}
+		if (this.journal == null) {
+			this.journal = new FileOutputStream(this.journalFile, true);
+		}
+		// not synced here, see the class documentation.
+		this.journal.write((action + "," + stream + "," + name + "\n").getBytes(UTF_8));
+		this.journalUnsynced = true;
+	}
+
+	/** Forces the journal lines written since the last sync to storage, if there are any. */
+	private void syncJournal () throws IOException {
+		if (this.journal == null || !this.journalUnsynced) {
+			return;
+		}
+		this.journal.getFD().sync();
+		this.journalUnsynced = false;
+	}
+
+	/** Empties the journal, every deletion in it is done. */
+	private void clearJournal () {
+		if (this.journalFile == null) {
+			return;
+		}
+		if (this.journal != null) {
+			try {
+				this.journal.close();
+			} catch (IOException e) {
+				// the journal is deleted next anyway.
+			}
+			this.journal = null;
+		}
+		this.journalUnsynced = false;
+		this.journalFile.delete();
+	}
+}
@@ -3,6 +3,7 @@ package org.beiwe.app.storage;
 
 import android.annotation.SuppressLint;
 import android.util.Base64;
+import android.util.Base64OutputStream;
 import android.util.Log;
 
 import org.spongycastle.crypto.PBEParametersGenerator;
@@ -10,6 +11,10 @@ import org.spongycastle.crypto.digests.SHA256Digest;
 import org.spongycastle.crypto.generators.PKCS5S2ParametersGenerator;
 import org.spongycastle.crypto.params.KeyParameter;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -20,13 +25,17 @@ import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Random;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -45,37 +54,63 @@ public class EncryptionEngine {
 	static final String HASH_ITERATIONS_KEY = "hash_iterations_key";
 	static final String USE_ANONYMIZED_HASHING_KEY = "use_anonymized_hashing";
 	
+	// The salt and iterations are read once, they are needed for every hash.  hashSettingsChanged() drops them.
+	private static volatile byte[] hashSalt = null;
+	private static volatile int hashIterations = 0;
+	
 	// shouldn't we be generating a new salt every time we hash something? FIXME: test thiss
 	// Get salt for pbkdf2 hashing
 	public static byte[] getHashSalt() {
+		byte[] salt = hashSalt;
+		if (salt != null) {
+			return salt;
+		}
 		String saltString = PersistentData.pref.getString(HASH_SALT_KEY, null);
 		// create salt if it does not exist
 		if(saltString == null) {
 			byte[] newSalt = SecureRandom.getSeed(64);
-			PersistentData.putCommit(HASH_SALT_KEY, new String(newSalt));
-			return newSalt;
-		}
-		else {
-			return saltString.getBytes();
+			saltString = new String(newSalt);
+			PersistentData.putCommit(HASH_SALT_KEY, saltString);
 		}
+		// the bytes of the stored string, which is what every later run reads, not newSalt itself.
+		salt = saltString.getBytes();
+		hashSalt = salt;
+		return salt;
 	}
 	
 	// Get iterations for pbkdf2 hashing
 	public static int getHashIterations() {
-		int iterations = PersistentData.pref.getInt(HASH_ITERATIONS_KEY, 0);
+		int iterations = hashIterations;
+		if (iterations != 0) {
+			return iterations;
+		}
+		iterations = PersistentData.pref.getInt(HASH_ITERATIONS_KEY, 0);
 		// create iterations if it does not exist
 		if(iterations == 0) {
 			// create random iteration count from 900 to 1100
-			int newIterations = 1100 - new Random().nextInt(200);
-			PersistentData.putCommit(HASH_ITERATIONS_KEY, newIterations);
-			return newIterations;
-		}
-		else {
-			return iterations;
+			iterations = 1100 - new Random().nextInt(200);
+			PersistentData.putCommit(HASH_ITERATIONS_KEY, iterations);
 		}
+		hashIterations = iterations;
+		return iterations;
+	}
+	
+	/**Drops the salt, iterations and cached hashes read so far, call this when the hashing settings change. */
+	public static void hashSettingsChanged() {
+		hashSalt = null;
+		hashIterations = 0;
+		PBKDF2_CACHE.clear();
+	}
+	
+	/** @return the hits and misses of the PBKDF2 hash cache, for the log. */
+	public static String hashCacheReport() {
+		return PBKDF2_CACHE.report();
 	}
 	
-	private static PublicKey RSAkey = null;
+	private static final HashCache PBKDF2_CACHE = new HashCache(HashCache.CAPACITY);
+	
+	// read on the file key pool's thread too.
+	private static volatile PublicKey RSAkey = null;
 	
 	/*############################################################################
 	 * ############################### Hashing ###################################
@@ -111,17 +146,24 @@ public class EncryptionEngine {
 	}
 
 	/** Takes a string as input, outputs a PBKDF2 hash.
+	 * The hashes of recent inputs are remembered, see HashCache.
 	 * @param input A String to hash.
 	 * @return a Base64 String of the hash result. */
 	public static String PBKDF2Hash (String input) {
 		byte[] salt = getHashSalt();
 		int iterations = getHashIterations();
+		String cached = PBKDF2_CACHE.get(input, salt, iterations);
+		if (cached != null) {
+			return cached;
+		}
 		PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA256Digest());
 		generator.init(PBEParametersGenerator.PKCS5PasswordToUTF8Bytes(input.toCharArray()), salt, iterations);
 
 		// keySize is 512 because we think it is the size of the digest
 		KeyParameter key = (KeyParameter)generator.generateDerivedMacParameters(512);
-		return toBase64String(key.getKey());
+		String hash = toBase64String(key.getKey());
+		PBKDF2_CACHE.put(input, salt, iterations, hash);
+		return hash;
 	}
 	
 	/**Converts a phone number into a 64-character hexadecimal string.
@@ -225,30 +267,21 @@ public class EncryptionEngine {
 		if (RSAkey == null) readKey(); 
 		
 		//create an iv, 16 bytes of data
-		SecureRandom random = new SecureRandom();
-		IvParameterSpec ivSpec = new IvParameterSpec( random.generateSeed(16) );
+		byte[] iv = new byte[16];
+		IV_RANDOM.nextBytes(iv);
+		IvParameterSpec ivSpec = new IvParameterSpec( iv );
 		
-		//initialize an AES encryption cipher, we are using CBC mode.
-		SecretKeySpec secretKeySpec = new SecretKeySpec( aesKey, "AES" );
-		Cipher cipher = null;
-		try { cipher = Cipher.getInstance("AES/CBC/PKCS5Padding"); }
-		catch (NoSuchAlgorithmException e) { // seems unlikely and should fail at the previous AES
-			Log.e("Encryption Engine", "device does not know what AES is, instance 2" );
-			e.printStackTrace();
-			throw new NullPointerException("device is too stupid to live"); }
-		catch (NoSuchPaddingException e) { //seems unlikely
-			Log.e("Encryption Engine", "device does not know what PKCS5 padding is" );
-			e.printStackTrace();
-			throw new NullPointerException("device is too stupid to live"); } 
-		try { cipher.init( Cipher.ENCRYPT_MODE, secretKeySpec, ivSpec ); }
+		//initialize this thread's AES encryption cipher, we are using CBC mode.
+		AESContext context = AES_CONTEXT.get();
+		try { context.cipher.init( Cipher.ENCRYPT_MODE, context.keySpecFor( aesKey ), ivSpec ); }
 		catch (InvalidAlgorithmParameterException e) { //seems unlikely, iv generation failed?
 			Log.e("Encryption Engine", "InvalidAlgorithmParameterException during AES encryption..." );
 			e.printStackTrace();
 			throw new NullPointerException("InvalidAlgorithmParameterException during AES encryption..."); }
 		
 		//encrypt the data
-		try { return toBase64String( ivSpec.getIV() ) + ":" +
-					 toBase64String( cipher.doFinal( plainText ) ); }
+		try { return toBase64String( iv ) + ":" +
+					 toBase64String( context.cipher.doFinal( plainText ) ); }
 		catch (IllegalBlockSizeException e) { //not possible, block size is coded to use the pkcs5 spec
 			Log.e("Encryption Engine", "an impossible error ocurred" );
 			e.printStackTrace(); 
@@ -259,6 +292,147 @@ public class EncryptionEngine {
 			throw new NullPointerException("an unknown error occured in AES encryption."); }
 	}
 	
+	/**Encrypts a stream using provided AES key, as encryptAES(byte[], byte[]) does, but a buffer at a
+	 * time, so that memory use does not depend on the size of the data.  The output is the same: the
+	 * url-safe Base64 Initialization Vector, a colon, and the url-safe Base64 encrypted data.
+	 * @param in the plain text, read to its end but not closed.
+	 * @param out where the encrypted data is written, not closed and not followed by a new line.
+	 * @throws InvalidKeyException
+	 * @throws InvalidKeySpecException
+	 * @throws IOException if in or out fail */
+	public static void encryptAES(InputStream in, OutputStream out, byte[] aesKey) throws InvalidKeyException, InvalidKeySpecException, IOException {
+		if (RSAkey == null) readKey();
+		
+		byte[] iv = new byte[16];
+		IV_RANDOM.nextBytes(iv);
+		AESContext context = AES_CONTEXT.get();
+		try { context.cipher.init( Cipher.ENCRYPT_MODE, context.keySpecFor( aesKey ), new IvParameterSpec( iv ) ); }
+		catch (InvalidAlgorithmParameterException e) { //seems unlikely, iv generation failed?
+			Log.e("Encryption Engine", "InvalidAlgorithmParameterException during AES encryption..." );
+			e.printStackTrace();
+			throw new NullPointerException("InvalidAlgorithmParameterException during AES encryption..."); }
+		
+		out.write( toBase64Array( iv ) );
+		out.write( ':' );
+		// closing the cipher stream pads and encrypts the last block and writes the end of the Base64,
+		// it must not close out.
+		OutputStream base64Out = new Base64OutputStream( new UnclosedOutputStream( out ), Base64.NO_WRAP | Base64.URL_SAFE );
+		CipherOutputStream cipherOut = new CipherOutputStream( base64Out, context.cipher );
+		byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			cipherOut.write(buffer, 0, count);
+		}
+		cipherOut.close();
+	}
+	
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+	
+	/** Length of the nonce and of the authentication tag of encryptAESGCM(). */
+	public static final int GCM_NONCE_BYTES = 12;
+	public static final int GCM_TAG_BYTES = 16;
+	
+	/**Encrypts and authenticates data using provided AES key in GCM mode, for a frame of a container
+	 * format file (see FileFormat).  Nothing is base64 encoded and there is no padding, the output is
+	 * GCM_NONCE_BYTES + length + GCM_TAG_BYTES long.
+	 * @param plainText holds the data at offset through offset + length - 1.
+	 * @param aesKey A byte array, must contain 128 bits, used as the AES key.
+	 * @param frameIndex the position of the frame in its file, authenticated along with the data.
+	 * @param endFrame whether this is the end frame of the file, authenticated along with the data.
+	 * @return the random nonce, followed by the encrypted data and its authentication tag.
+	 * @throws InvalidKeyException
+	 * @throws InvalidKeySpecException */
+	public static byte[] encryptAESGCM(byte[] plainText, int offset, int length, byte[] aesKey, long frameIndex, boolean endFrame) throws InvalidKeyException, InvalidKeySpecException {
+		if (RSAkey == null) readKey();
+		
+		// a nonce must never repeat under a key, 96 random bits per frame are safe for far more frames than a file has.
+		byte[] sealed = new byte[GCM_NONCE_BYTES + length + GCM_TAG_BYTES];
+		byte[] nonce = new byte[GCM_NONCE_BYTES];
+		IV_RANDOM.nextBytes(nonce);
+		System.arraycopy(nonce, 0, sealed, 0, GCM_NONCE_BYTES);
+		
+		AESContext context = AES_CONTEXT.get();
+		Cipher gcm = context.gcmCipher();
+		try { gcm.init( Cipher.ENCRYPT_MODE, context.keySpecFor( aesKey ), new GCMParameterSpec( GCM_TAG_BYTES * 8, nonce ) ); }
+		catch (InvalidAlgorithmParameterException e) { //seems unlikely, the nonce is new every time
+			Log.e("Encryption Engine", "InvalidAlgorithmParameterException during AES GCM encryption..." );
+			e.printStackTrace();
+			throw new NullPointerException("InvalidAlgorithmParameterException during AES GCM encryption..."); }
+		
+		gcm.updateAAD( FileFormat.containerAssociatedData( frameIndex, endFrame ) );
+		try { gcm.doFinal( plainText, offset, length, sealed, GCM_NONCE_BYTES ); }
+		catch (IllegalBlockSizeException | ShortBufferException e) { //not possible, GCM takes any length and sealed is sized for the tag
+			Log.e("Encryption Engine", "an impossible error ocurred" );
+			e.printStackTrace();
+			throw new NullPointerException("device is too stupid to live"); }
+		catch (BadPaddingException e) { //only thrown when decrypting
+			Log.e("Encryption Engine", "an unknown error occured in AES GCM encryption" );
+			e.printStackTrace();
+			throw new NullPointerException("an unknown error occured in AES GCM encryption."); }
+		return sealed;
+	}
+	
+	/** Passes everything through to out except close(), which only flushes. */
+	private static class UnclosedOutputStream extends FilterOutputStream {
+		UnclosedOutputStream(OutputStream out) { super(out); }
+		@Override public void write(byte[] b, int off, int len) throws IOException { this.out.write(b, off, len); }
+		@Override public void close() throws IOException { this.out.flush(); }
+	}
+	
+	/* AES encryption runs once per line or block of every data stream, so the expensive parts are
+	 * only set up once.  IVs come from one SecureRandom, which seeds itself from the system and is
+	 * thread safe; its nextBytes() is what an IV needs, generateSeed() reads fresh entropy and can
+	 * block.  Ciphers are not thread safe, so each thread gets its own, along with the key spec of the
+	 * last key it used: a file keeps its AES key, so that is almost always the one asked for. */
+	private static final SecureRandom IV_RANDOM = new SecureRandom();
+	
+	private static final ThreadLocal<AESContext> AES_CONTEXT = new ThreadLocal<AESContext>() {
+		@Override protected AESContext initialValue() { return new AESContext(); }
+	};
+	
+	private static class AESContext {
+		final Cipher cipher;
+		private Cipher gcmCipher = null;  // only made on threads that write container format files
+		private byte[] key = null;
+		private SecretKeySpec keySpec = null;
+		
+		AESContext() {
+			try { this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding"); }
+			catch (NoSuchAlgorithmException e) { // seems unlikely and should fail at the previous AES
+				Log.e("Encryption Engine", "device does not know what AES is, instance 2" );
+				e.printStackTrace();
+				throw new NullPointerException("device is too stupid to live"); }
+			catch (NoSuchPaddingException e) { //seems unlikely
+				Log.e("Encryption Engine", "device does not know what PKCS5 padding is" );
+				e.printStackTrace();
+				throw new NullPointerException("device is too stupid to live"); }
+		}
+		
+		Cipher gcmCipher() {
+			if (this.gcmCipher == null) {
+				try { this.gcmCipher = Cipher.getInstance("AES/GCM/NoPadding"); }
+				catch (NoSuchAlgorithmException e) { // GCM has been in every Android release we support
+					Log.e("Encryption Engine", "device does not know what AES GCM is" );
+					e.printStackTrace();
+					throw new NullPointerException("device is too stupid to live"); }
+				catch (NoSuchPaddingException e) { //seems unlikely
+					Log.e("Encryption Engine", "device does not know what no padding is" );
+					e.printStackTrace();
+					throw new NullPointerException("device is too stupid to live"); }
+			}
+			return this.gcmCipher;
+		}
+		
+		/** Compared by value, a caller could refill the array it passed last time. */
+		SecretKeySpec keySpecFor(byte[] aesKey) {
+			if (this.keySpec == null || !Arrays.equals(this.key, aesKey)) {
+				this.keySpec = new SecretKeySpec( aesKey, "AES" );
+				this.key = aesKey.clone();
+			}
+			return this.keySpec;
+		}
+	}
+	
 	/* #######################################################################
 	 * ########################## Key Management #############################  
 	 * #####################################################################*/
@@ -282,6 +456,12 @@ public class EncryptionEngine {
 			throw e2; }
 	}
 	
+	/**Forgets the RSA key and the file keys made with it, call this after the key file is rewritten. */
+	public static void keyFileChanged() {
+		RSAkey = null;
+		FileKeyPool.invalidate();
+	}
+	
 	/**Generates a new 128 bit AES Encryption key.
 	 * @return a byte array 128 bits long for use as an AES Encryption key*/
 	public static byte[] newAESKey() {
@@ -0,0 +1,155 @@
+package org.beiwe.app.storage;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**Packs small finished files of a stream into one bundle file, as BundlePolicy decides, so that
+ * they are uploaded in one request.  A bundle keeps its files byte for byte, with their names, so
+ * that the server can split it back into the files it would otherwise have received:
+ *
+ *     #BEIWE_BUNDLE=1
+ *     [file name],[length in bytes]
+ *     [the bytes of the file]
+ *     [file name],[length in bytes]
+ *     ...
+ *
+ * The files are encrypted with a key we cannot read and are copied as they are.  Bundles are named
+ * [patient id]_bundle-[STREAM]_[time].bundle and are finished files of their stream, for eviction
+ * and upload.  TextFileManager.bundleSmallFiles() does the naming, the manifest and the logging.
+ *
+ * Has no Android dependencies so that it can be run on a desktop JVM. */
+public class FileBundler {
+
+	public static final String BUNDLE_HEADER = "#BEIWE_BUNDLE=1";
+	public static final String BUNDLE_EXTENSION = ".bundle";
+	private static final String BUNDLE_NAME_PREFIX = "bundle-";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final BundlePolicy policy;
+	private final FileManifest manifest;
+
+	public FileBundler (BundlePolicy policy, FileManifest manifest) {
+		this.policy = policy;
+		this.manifest = manifest;
+	}
+
+	/**Picks the files to bundle, if there are enough small files.
+	 * @return groups of files of one stream, oldest first, each of which goes in one bundle.  Empty
+	 * if there is nothing to do. */
+	public ArrayList<ArrayList<FileManifest.Entry>> plan () {
+		ArrayList<ArrayList<FileManifest.Entry>> bundles = new ArrayList<ArrayList<FileManifest.Entry>>();
+		if (!this.policy.bundles()) {
+			return bundles;
+		}
+		// the manifest is oldest first, so each stream's candidates are too.
+		LinkedHashMap<String, ArrayList<FileManifest.Entry>> candidates = new LinkedHashMap<String, ArrayList<FileManifest.Entry>>();
+		int candidateCount = 0;
+		for (FileManifest.Entry entry : this.manifest.entries()) {
+			if (!this.policy.isCandidate(entry.stream, entry.size) || isBundle(entry.name)) {
+				continue;
+			}
+			ArrayList<FileManifest.Entry> ofStream = candidates.get(entry.stream);
+			if (ofStream == null) {
+				ofStream = new ArrayList<FileManifest.Entry>();
+				candidates.put(entry.stream, ofStream);
+			}
+			ofStream.add(entry);
+			candidateCount++;
+		}
+		if (candidateCount <= this.policy.minSmallFiles) {
+			return bundles;
+		}
+
+		for (ArrayList<FileManifest.Entry> ofStream : candidates.values()) {
+			ArrayList<FileManifest.Entry> bundle = new ArrayList<FileManifest.Entry>();
+			long bundleBytes = BUNDLE_HEADER.length() + 1;
+			for (FileManifest.Entry entry : ofStream) {
+				long entryBytes = memberLine(entry.name, entry.size).length + entry.size;
+				if (!bundle.isEmpty() && bundleBytes + entryBytes > this.policy.maxBundleBytes) {
+					addBundle(bundles, bundle);
+					bundle = new ArrayList<FileManifest.Entry>();
+					bundleBytes = BUNDLE_HEADER.length() + 1;
+				}
+				bundle.add(entry);
+				bundleBytes += entryBytes;
+			}
+			addBundle(bundles, bundle);
+		}
+		return bundles;
+	}
+
+	/** A bundle of one file would only rename it. */
+	private static void addBundle (ArrayList<ArrayList<FileManifest.Entry>> bundles, ArrayList<FileManifest.Entry> bundle) {
+		if (bundle.size() > 1) {
+			bundles.add(bundle);
+		}
+	}
+
+	/**Writes a bundle of files of a stream to out, which is not closed.
+	 * @throws FileNotFoundException if one of the files is gone, evicted or uploaded since plan().
+	 * @return the number of bytes written. */
+	public static long writeBundle (OutputStream out, StorageBackend backend, ArrayList<FileManifest.Entry> bundle) throws IOException {
+		byte[] buffer = new byte[8192];
+		byte[] header = (BUNDLE_HEADER + "\n").getBytes(UTF_8);
+		out.write(header);
+		long written = header.length;
+		for (FileManifest.Entry entry : bundle) {
+			// the file is finished, but we take its length from storage and not the manifest in case they disagree.
+			long length = backend.length(entry.stream, entry.name);
+			if (length < 0) {
+				throw new FileNotFoundException(entry.name);
+			}
+			byte[] memberLine = memberLine(entry.name, length);
+			out.write(memberLine);
+			written += memberLine.length;
+			InputStream in = backend.openRead(entry.stream, entry.name);
+			try {
+				long remaining = length;
+				while (remaining > 0) {
+					int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (count == -1) {
+						throw new IOException(entry.name + " is shorter than " + length + " bytes");
+					}
+					out.write(buffer, 0, count);
+					remaining -= count;
+				}
+			} finally {
+				in.close();
+			}
+			written += length;
+		}
+		return written;
+	}
+
+	private static byte[] memberLine (String name, long length) {
+		return (name + "," + length + "\n").getBytes(UTF_8);
+	}
+
+	/** @return the name of a bundle of a stream's files. */
+	public static String bundleName (String patientId, String stream, long millis) {
+		return patientId + "_" + BUNDLE_NAME_PREFIX + stream + "_" + millis + BUNDLE_EXTENSION;
+	}
+
+	/** @return whether a file name is that of a bundle. */
+	public static boolean isBundle (String fileName) {
+		return fileName.endsWith(BUNDLE_EXTENSION);
+	}
+
+	/** @return the stream of a bundle, from the part of its name after the patient id, or null if it
+	 * is not the name of a bundle. */
+	public static String streamOfBundle (String nameAfterPatientId) {
+		if (!nameAfterPatientId.startsWith(BUNDLE_NAME_PREFIX) || !isBundle(nameAfterPatientId)) {
+			return null;
+		}
+		int streamEnd = nameAfterPatientId.lastIndexOf('_');
+		if (streamEnd < BUNDLE_NAME_PREFIX.length()) {
+			return null;
+		}
+		return nameAfterPatientId.substring(BUNDLE_NAME_PREFIX.length(), streamEnd);
+	}
+}
@@ -0,0 +1,349 @@
+package org.beiwe.app.storage;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**Describes how the lines of an encrypted TextFileManager file are laid out.
+ *
+ * Every encrypted file starts with the RSA encrypted AES key on its first line.
+ *
+ * Legacy format (version 1): every following line is one line of data, encrypted on its own,
+ * written as "base64(iv):base64(ciphertext)".
+ *
+ * Block format (version 2): the second line is the plaintext format line "#BEIWE_FORMAT=2", which
+ * cannot be mistaken for an encrypted line because '#' is not in the url-safe base64 alphabet.
+ * Every following line is one block, written as "base64(iv):base64(ciphertext)", where the
+ * plaintext is up to maxLinesPerBlock lines of data joined with '\n'.  The csv header is the first block.
+ * Encrypting blocks instead of lines saves an IV, a padding block and a base64 expansion per line.
+ *
+ * Block format files may declare a binary encoding on the format line, e.g.
+ * "#BEIWE_FORMAT=2;encoding=motion_binary".  In that case the first block is still the csv header
+ * as text, and every following block is a run of records encoded by MotionBinaryCodec.
+ *
+ * Block format files may declare ";frame=crc32" on the format line, see framed().  Every encrypted line of such a file (the csv header block and the data blocks, not the key
+ * and format lines) is followed by a frame: "base64(iv):base64(ciphertext):length:crc", where length
+ * is the number of characters before the frame and crc is the CRC32 of those characters, both in
+ * lowercase hex.  A line whose frame does not match was torn by a crash and must be discarded.
+ *
+ * Block format files may declare ";compression=zlib" on the format line.  Then every block after
+ * the csv header is compressed with zlib (RFC 1950) before it is encrypted, each block on its own.
+ *
+ * Container format (version 3) is binary after its first two lines, there is no base64.  The key
+ * line is the same as above, the format line is "#BEIWE_FORMAT=3", with the same encoding and
+ * compression options as the block format, and every following piece of data is a frame:
+ *     [length: 4 bytes][crc: 4 bytes][nonce: 12 bytes][AES-GCM ciphertext and 16 byte tag]
+ * where length is the number of bytes after the crc, crc is the CRC32 of those bytes, both big
+ * endian, and the plaintext is a block as in the block format, or a single line for streams that
+ * are otherwise written in the legacy format.  Files with the encoding "raw" (audio recordings)
+ * have no csv header, their frames are consecutive pieces of one binary file.
+ *
+ * A finished file ends in an end frame: no plaintext, and the top bit of its length set, so that it
+ * can be found without the key.  Each frame is authenticated with 9 bytes of associated data: its
+ * 8 byte big endian index in the file, counting the csv header as frame 0, and 1 for the end frame
+ * or 0 for any other.  So a frame that is changed or moved fails to decrypt, a data frame cannot
+ * pass for the end frame or the other way around, and a file that ends without an end frame was
+ * cut short, whether frames were dropped from its end or the device crashed while writing it.
+ * Anything after the end frame was not written by the device.  A frame whose crc does not match was
+ * torn by a crash, as are all frames after it.  Container files are named like the files they
+ * replace with ".gcm" appended, so that they are told apart on upload.
+ *
+ * EncryptedFileDecoder, in the JVM test sources, reads all three formats. */
+public class FileFormat {
+
+	/** Prefix of the format line of a block format file. */
+	public static final String FORMAT_LINE_PREFIX = "#BEIWE_FORMAT=";
+	public static final int LEGACY_VERSION = 1;
+	public static final int BLOCK_VERSION = 2;
+	public static final int CONTAINER_VERSION = 3;
+
+	/** Values of the encoding option on the format line. */
+	public static final String ENCODING_TEXT = "text";
+	public static final String ENCODING_MOTION_BINARY = "motion_binary";
+	public static final String ENCODING_RAW = "raw";
+	private static final String ENCODING_OPTION = "encoding=";
+	/** The frame option of the format line. */
+	public static final String FRAME_OPTION = "frame=crc32";
+	/** The compression option of the format line. */
+	public static final String COMPRESSION_OPTION = "compression=zlib";
+	private static final int UNCOMPRESSED = -1;
+
+	/** Appended to the names of container format files. */
+	public static final String CONTAINER_EXTENSION = ".gcm";
+	/** The length and crc in front of every frame of a container format file. */
+	public static final int CONTAINER_FRAME_HEADER_BYTES = 8;
+	/** The length of an end frame, header, nonce and tag, see EncryptionEngine.encryptAESGCM(). */
+	public static final int CONTAINER_END_FRAME_BYTES = CONTAINER_FRAME_HEADER_BYTES + 12 + 16;
+	// set in the length of the end frame.
+	private static final int CONTAINER_END_FLAG = 0x80000000;
+	// the largest block is well under this, a larger length is garbage and must not be allocated.
+	private static final int MAX_CONTAINER_FRAME_BYTES = 16 * 1024 * 1024;
+
+	private final int maxLinesPerBlock;
+	private final int maxBytesPerBlock;
+	private final String encoding;
+	private final int compressionLevel;
+	private final boolean container;
+	private final boolean framed;
+
+	private FileFormat (int maxLinesPerBlock, int maxBytesPerBlock, String encoding, int compressionLevel, boolean container, boolean framed) {
+		this.maxLinesPerBlock = maxLinesPerBlock;
+		this.maxBytesPerBlock = maxBytesPerBlock;
+		this.encoding = encoding;
+		this.compressionLevel = compressionLevel;
+		this.container = container;
+		this.framed = framed;
+	}
+
+	/** One encryption per line, no format line.  Files are identical to the ones made before
+	 * the block format existed. */
+	public static FileFormat legacy () {
+		return new FileFormat(1, 0, ENCODING_TEXT, UNCOMPRESSED, false, false);
+	}
+
+	/** A block is encrypted once it holds maxLinesPerBlock lines or maxBytesPerBlock characters,
+	 * whichever comes first. It is also sealed early when the file is flushed or closed. */
+	public static FileFormat blocks (int maxLinesPerBlock, int maxBytesPerBlock) {
+		return new FileFormat(maxLinesPerBlock, maxBytesPerBlock, ENCODING_TEXT, UNCOMPRESSED, false, false);
+	}
+
+	/** Block format where records are written with MotionBinaryCodec instead of as csv rows. */
+	public static FileFormat motionBinaryBlocks (int maxRecordsPerBlock, int maxBytesPerBlock) {
+		return new FileFormat(maxRecordsPerBlock, maxBytesPerBlock, ENCODING_MOTION_BINARY, UNCOMPRESSED, false, false);
+	}
+
+	/** The container format of a binary file written in pieces of any size, see AudioFileManager. */
+	public static FileFormat rawContainer () {
+		return new FileFormat(0, 0, ENCODING_RAW, UNCOMPRESSED, true, false);
+	}
+
+	/** @return this format in a container format file.  The blocks stay the same, a legacy format
+	 * becomes blocks of one line, each in its own frame.  The container's frames replace line frames. */
+	public FileFormat inContainer () {
+		return new FileFormat(this.maxLinesPerBlock, this.maxBytesPerBlock, this.encoding, this.compressionLevel, true, false);
+	}
+
+	/** @return this format with a length and CRC frame after every encrypted line.  Only block format
+	 * files can be framed: legacy files have no format line to declare it on, and servers that only
+	 * read legacy files split every line on its one ':'. */
+	public FileFormat framed () {
+		if (this.isLegacy() || this.container) {
+			throw new IllegalArgumentException("only block format files can be framed");
+		}
+		return new FileFormat(this.maxLinesPerBlock, this.maxBytesPerBlock, this.encoding, this.compressionLevel, false, true);
+	}
+
+	/** @return this format with its blocks compressed at the given Deflater level, 1 (fastest) to 9 (smallest).
+	 * Legacy files have no format line to declare compression on. */
+	public FileFormat compressed (int level) {
+		if (this.isLegacy()) {
+			throw new IllegalArgumentException("legacy files cannot be compressed");
+		}
+		if (level < 1 || level > 9) {
+			throw new IllegalArgumentException("compression level must be 1 through 9, was " + level);
+		}
+		return new FileFormat(this.maxLinesPerBlock, this.maxBytesPerBlock, this.encoding, level, this.container, this.framed);
+	}
+
+	public boolean isCompressed () {
+		return this.compressionLevel != UNCOMPRESSED;
+	}
+
+	public int getCompressionLevel () {
+		return this.compressionLevel;
+	}
+
+	public boolean isLegacy () {
+		return this.maxLinesPerBlock <= 1 && !this.container;
+	}
+
+	public boolean isContainer () {
+		return this.container;
+	}
+
+	public boolean isMotionBinary () {
+		return ENCODING_MOTION_BINARY.equals(this.encoding);
+	}
+
+	public int getVersion () {
+		if (this.container) {
+			return CONTAINER_VERSION;
+		}
+		return this.isLegacy() ? LEGACY_VERSION : BLOCK_VERSION;
+	}
+
+	/** @return whether encrypted lines carry a frame, see framed().  Container format files have
+	 * binary frames of their own. */
+	public boolean isFramed () {
+		return this.framed;
+	}
+
+	/** @return the plaintext line written after the key line of block and container format files. */
+	public String formatLine () {
+		StringBuilder line = new StringBuilder(FORMAT_LINE_PREFIX).append(this.getVersion());
+		if (!ENCODING_TEXT.equals(this.encoding)) {
+			line.append(';').append(ENCODING_OPTION).append(this.encoding);
+		}
+		if (this.isCompressed()) {
+			line.append(';').append(COMPRESSION_OPTION);
+		}
+		if (this.isFramed()) {
+			line.append(';').append(FRAME_OPTION);
+		}
+		return line.toString();
+	}
+
+	/** @return whether a file name is that of a container format file. */
+	public static boolean isContainerFile (String fileName) {
+		return fileName.endsWith(CONTAINER_EXTENSION);
+	}
+
+	/** A frame of a container format file, as read by readContainerFrame(). */
+	public static class ContainerFrame {
+		/** The nonce, ciphertext and tag. */
+		public final byte[] sealed;
+		/** Whether the frame says it is the end frame, to be confirmed by decrypting it. */
+		public final boolean end;
+
+		ContainerFrame (byte[] sealed, boolean end) {
+			this.sealed = sealed;
+			this.end = end;
+		}
+	}
+
+	/** @return the associated data a frame of a container format file is authenticated with. */
+	public static byte[] containerAssociatedData (long frameIndex, boolean endFrame) {
+		byte[] associatedData = new byte[9];
+		for (int i = 0; i < 8; i++) {
+			associatedData[i] = (byte) (frameIndex >>> (56 - 8 * i));
+		}
+		associatedData[8] = (byte) (endFrame ? 1 : 0);
+		return associatedData;
+	}
+
+	/** @return the frame of a container format file holding the nonce, ciphertext and tag made by
+	 * EncryptionEngine.encryptAESGCM().
+	 * @param endFrame whether this is the end frame, which must have been encrypted as one. */
+	public static byte[] containerFrame (byte[] sealed, boolean endFrame) {
+		CRC32 crc = new CRC32();
+		crc.update(sealed);
+		byte[] frame = new byte[CONTAINER_FRAME_HEADER_BYTES + sealed.length];
+		putInt(frame, 0, endFrame ? sealed.length | CONTAINER_END_FLAG : sealed.length);
+		putInt(frame, 4, (int) crc.getValue());
+		System.arraycopy(sealed, 0, frame, CONTAINER_FRAME_HEADER_BYTES, sealed.length);
+		return frame;
+	}
+
+	/**Reads the next frame of a container format file.
+	 * @param available the number of bytes left in the file, Long.MAX_VALUE if it is not known.
+	 * @return the frame, or null if the frame is torn: shorter than its length, of a length that no
+	 * frame has, or with a crc that does not match.
+	 * @throws java.io.EOFException if the file ends in the frame and available was not known. */
+	public static ContainerFrame readContainerFrame (DataInput in, long available) throws IOException {
+		if (available < CONTAINER_FRAME_HEADER_BYTES) {
+			return null;
+		}
+		int header = in.readInt();
+		int expectedCrc = in.readInt();
+		boolean end = (header & CONTAINER_END_FLAG) != 0;
+		int length = header & ~CONTAINER_END_FLAG;
+		// a file cut short by a power loss can end in zeros, a frame is never empty.
+		if (length <= 0 || length > MAX_CONTAINER_FRAME_BYTES || length > available - CONTAINER_FRAME_HEADER_BYTES
+				|| (end && length != CONTAINER_END_FRAME_BYTES - CONTAINER_FRAME_HEADER_BYTES)) {
+			return null;
+		}
+		byte[] sealed = new byte[length];
+		in.readFully(sealed);
+		CRC32 crc = new CRC32();
+		crc.update(sealed);
+		return ((int) crc.getValue() == expectedCrc) ? new ContainerFrame(sealed, end) : null;
+	}
+
+	private static void putInt (byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+
+	/** @return the encrypted line with its length and CRC frame appended. */
+	public static String frameLine (String line) {
+		return line + ":" + Integer.toHexString(line.length()) + ":" + Long.toHexString(crcOf(line, line.length()));
+	}
+
+	/** @return the line without its frame, or null if the frame is missing or does not match. */
+	public static String unframeLine (String line) {
+		int crcStart = line.lastIndexOf(':');
+		int lengthStart = (crcStart > 0) ? line.lastIndexOf(':', crcStart - 1) : -1;
+		if (lengthStart <= 0) {
+			return null;
+		}
+		try {
+			int length = Integer.parseInt(line.substring(lengthStart + 1, crcStart), 16);
+			long crc = Long.parseLong(line.substring(crcStart + 1), 16);
+			if (length != lengthStart || crc != crcOf(line, length)) {
+				return null;
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return line.substring(0, lengthStart);
+	}
+
+	/** The CRC32 of the first length characters of a line, encrypted lines are ascii. */
+	private static long crcOf (String line, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(line.getBytes(), 0, length);
+		return crc.getValue();
+	}
+
+	/** @return whether a block with this many lines and characters is full. */
+	public boolean isBlockFull (int lines, int length) {
+		return lines >= this.maxLinesPerBlock || (this.maxBytesPerBlock > 0 && length >= this.maxBytesPerBlock);
+	}
+
+	/** @return the format version declared by the given second line of a file. */
+	public static int versionOf (String secondLine) {
+		if (secondLine == null || !secondLine.startsWith(FORMAT_LINE_PREFIX)) {
+			return LEGACY_VERSION;
+		}
+		String version = secondLine.substring(FORMAT_LINE_PREFIX.length());
+		int end = version.indexOf(';');
+		return Integer.parseInt(end == -1 ? version : version.substring(0, end));
+	}
+
+	/** @return whether the given second line of a file declares framed lines. */
+	public static boolean framedOf (String secondLine) {
+		return hasOption(secondLine, FRAME_OPTION);
+	}
+
+	/** @return whether the given second line of a file declares compressed blocks. */
+	public static boolean compressedOf (String secondLine) {
+		return hasOption(secondLine, COMPRESSION_OPTION);
+	}
+
+	private static boolean hasOption (String secondLine, String wanted) {
+		if (secondLine == null || !secondLine.startsWith(FORMAT_LINE_PREFIX)) {
+			return false;
+		}
+		for (String option : secondLine.split(";")) {
+			if (option.equals(wanted)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** @return the encoding declared by the given second line of a file, ENCODING_TEXT if there is none. */
+	public static String encodingOf (String secondLine) {
+		if (secondLine == null || !secondLine.startsWith(FORMAT_LINE_PREFIX)) {
+			return ENCODING_TEXT;
+		}
+		for (String option : secondLine.split(";")) {
+			if (option.startsWith(ENCODING_OPTION)) {
+				return option.substring(ENCODING_OPTION.length());
+			}
+		}
+		return ENCODING_TEXT;
+	}
+}
@@ -0,0 +1,122 @@
+package org.beiwe.app.storage;
+
+import android.util.Log;
+
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayDeque;
+
+/**Keeps a few file keys ready: AES keys for new data files, with the AES key already encrypted with
+ * the study's RSA key.  Making one is an AES key generation and an RSA encryption, which used to
+ * happen on the rotation path, once per stream when every file is retired at once.  A low priority
+ * thread refills the pool whenever a key is taken, so a rotation is a dequeue.  If the pool is empty
+ * take() makes a key on the calling thread, as it always used to.
+ *
+ * Keys are only good for the RSA key they were encrypted with: invalidate() drops them, call it
+ * whenever the key file changes.  Until there is a key file there is nothing to refill with, the
+ * thread tries again on the next take() or invalidate(). */
+public class FileKeyPool {
+
+	/** An AES key and that key encrypted with the RSA key, as it is written at the top of a file. */
+	public static class FileKey {
+		public final byte[] aesKey;
+		public final String encryptedKey;
+
+		FileKey (byte[] aesKey, String encryptedKey) {
+			this.aesKey = aesKey;
+			this.encryptedKey = encryptedKey;
+		}
+	}
+
+	// all the streams retire their files at the same time, a few more for surveys and audio.
+	private static final int CAPACITY = 12;
+
+	// the pool, its generation and the refill state are only touched while holding lock.
+	private static final Object lock = new Object();
+	private static final ArrayDeque<FileKey> pool = new ArrayDeque<FileKey>(CAPACITY);
+	private static long generation = 0;  // incremented by invalidate(), keys made before it are dropped.
+	private static boolean refillFailed = false;
+	private static Thread refillThread = null;
+
+	/** @return a file key for the current RSA key, from the pool if it has one.
+	 * @throws InvalidKeySpecException if there is no key file, see EncryptionEngine.encryptRSA(). */
+	public static FileKey take () throws InvalidKeySpecException {
+		synchronized (lock) {
+			FileKey key = pool.poll();
+			refillFailed = false;
+			startRefilling();
+			lock.notifyAll();
+			if (key != null) {
+				return key;
+			}
+		}
+		return newFileKey();
+	}
+
+	/** Drops the pooled keys, call this when the key file changes. */
+	public static void invalidate () {
+		synchronized (lock) {
+			pool.clear();
+			generation++;
+			refillFailed = false;
+			lock.notifyAll();
+		}
+	}
+
+	/** @return the number of keys in the pool. */
+	public static int size () {
+		synchronized (lock) {
+			return pool.size();
+		}
+	}
+
+	private static FileKey newFileKey () throws InvalidKeySpecException {
+		byte[] aesKey = EncryptionEngine.newAESKey();
+		return new FileKey(aesKey, EncryptionEngine.encryptRSA(aesKey));
+	}
+
+	private static void startRefilling () {
+		if (refillThread != null) {
+			return;
+		}
+		refillThread = new Thread(new Runnable() {
+			@Override public void run () {
+				refillLoop();
+			}
+		}, "file key pool");
+		refillThread.setDaemon(true);
+		refillThread.setPriority(Thread.MIN_PRIORITY);
+		refillThread.start();
+	}
+
+	private static void refillLoop () {
+		while (true) {
+			long keyGeneration;
+			try {
+				synchronized (lock) {
+					while (pool.size() >= CAPACITY || refillFailed) {
+						lock.wait();
+					}
+					keyGeneration = generation;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			FileKey key = null;
+			try {
+				key = newFileKey();
+			} catch (InvalidKeySpecException e) {
+				// there is no key file yet, take() or invalidate() wakes us up again.
+			} catch (RuntimeException e) {
+				// the key is invalid, EncryptionEngine logged it; a new key file is needed.
+				Log.e("FileKeyPool", "could not make a file key: " + e.getMessage());
+			}
+			synchronized (lock) {
+				if (key == null) {
+					refillFailed = true;
+				} else if (keyGeneration == generation && pool.size() < CAPACITY) {
+					pool.add(key);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package org.beiwe.app.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.zip.CRC32;
+
+/**An index of the finished data files, the files that are closed and waiting to be uploaded.
+ * Files are added when they are closed and removed when they are deleted, so finding the files to
+ * upload costs the number of files waiting, not a listing of the whole files directory.
+ *
+ * The index is kept in memory in the order the files were finished and is backed by an append-only
+ * file with one line per change:
+ *     +,stream,size,created millis,checksum,file name
+ *     -,file name
+ * The file name goes last so that it can contain anything but a newline.  The checksum is the
+ * CRC32 of the file's contents in hex, empty when it is not known.  Additions are synced before
+ * add() returns, removals are not: an entry whose file is gone is dropped when the manifest is
+ * loaded.  A torn last line is ignored, and the file is rewritten once removals make up most of it.
+ * Without a file the manifest is only kept in memory, for desktop benchmarks.
+ * The index also keeps the files and total bytes of each stream, for StorageBudget.
+ *
+ * Has no Android dependencies so that it can be run on a desktop JVM. */
+public class FileManifest {
+
+	/** The name of the manifest file, it does not start with the patient id so it is never uploaded. */
+	public static final String MANIFEST_FILE_NAME = "fileManifest";
+	/** The streams of audio recordings, which are not written by a TextFileManager: survey voice
+	 * recordings and ambient audio. */
+	public static final String AUDIO_STREAM = "AUDIO";
+	public static final String AMBIENT_AUDIO_STREAM = "AMBIENT_AUDIO";
+	public static final long UNKNOWN_CHECKSUM = -1;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String ADDED = "+";
+	private static final String REMOVED = "-";
+	// the manifest is rewritten when it has at least this many lines that are not live entries, and
+	// they outnumber the live entries.
+	private static final int COMPACT_MIN_DEAD_LINES = 256;
+
+	/** A finished file. */
+	public static class Entry {
+		public final String name;
+		public final String stream;
+		public final long size;
+		public final long createdMillis;
+		public final long checksum;
+
+		Entry (String name, String stream, long size, long createdMillis, long checksum) {
+			this.name = name;
+			this.stream = stream;
+			this.size = size;
+			this.createdMillis = createdMillis;
+			this.checksum = checksum;
+		}
+	}
+
+	/** The files of one stream, oldest first. */
+	private static class StreamFiles {
+		final LinkedHashSet<String> names = new LinkedHashSet<String>();
+		long bytes = 0;
+	}
+
+	private final File file;
+	private final StorageBackend backend;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private final HashMap<String, StreamFiles> streams = new HashMap<String, StreamFiles>();
+	private long totalBytes = 0;
+	private FileOutputStream out = null;
+	private int deadLines = 0;
+
+	/** @param file the manifest file, see load(), null to keep the manifest in memory only.
+	 * @param backend where the files in the manifest are. */
+	public FileManifest (File file, StorageBackend backend) {
+		this.file = file;
+		this.backend = backend;
+	}
+
+	/**Reads the manifest file into memory, dropping entries whose files no longer exist, and
+	 * creates it if there is none.
+	 * @return whether there was a manifest file.  If there was not the caller should add() the
+	 * finished files that already exist. */
+	public synchronized boolean load () throws IOException {
+		this.entries.clear();
+		this.streams.clear();
+		this.totalBytes = 0;
+		this.deadLines = 0;
+		if (this.file == null) {
+			return true;
+		}
+		if (!this.file.exists()) {
+			this.rewrite();
+			return false;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!this.apply(line)) {
+					this.deadLines++;  // a torn line, it is dropped by the rewrite below
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		for (Entry entry : new ArrayList<Entry>(this.entries.values())) {
+			if (this.backend.length(entry.stream, entry.name) < 0) {
+				this.unindex(entry.name);
+				this.deadLines++;
+			}
+		}
+		// a torn line must not get glued to the next record, so anything dropped means a rewrite.
+		if (this.deadLines > 0) {
+			this.rewrite();
+		}
+		return true;
+	}
+
+	/** Applies one line of the manifest file to the in memory index.
+	 * @return false if the line is malformed. */
+	private boolean apply (String line) {
+		if (line.startsWith(REMOVED + ",")) {
+			if (this.unindex(line.substring(2))) {
+				this.deadLines++;  // the line that added it
+			}
+			this.deadLines++;
+			return true;
+		}
+		String[] fields = line.split(",", 6);
+		if (fields.length != 6 || !fields[0].equals(ADDED) || fields[5].length() == 0) {
+			return false;
+		}
+		try {
+			long checksum = fields[4].length() == 0 ? UNKNOWN_CHECKSUM : Long.parseLong(fields[4], 16);
+			Entry entry = new Entry(fields[5], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), checksum);
+			if (this.index(entry)) {
+				this.deadLines++;
+			}
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**Records a finished file.  The record is synced before this returns, so a file that was closed
+	 * and recorded is never lost track of.
+	 * @param checksum the CRC32 of the file, or UNKNOWN_CHECKSUM */
+	public synchronized void add (String name, String stream, long size, long createdMillis, long checksum) throws IOException {
+		Entry entry = new Entry(name, stream, size, createdMillis, checksum);
+		if (this.index(entry)) {
+			this.deadLines++;
+		}
+		this.append(addedLine(entry));
+		if (this.out != null) {
+			this.out.getChannel().force(false);
+		}
+	}
+
+	/** Forgets a file, if it is in the manifest.  Call this when the file is deleted. */
+	public synchronized void remove (String name) throws IOException {
+		if (!this.unindex(name)) {
+			return;
+		}
+		this.deadLines += 2;
+		if (this.deadLines >= COMPACT_MIN_DEAD_LINES && this.deadLines > this.entries.size()) {
+			this.rewrite();
+		} else {
+			this.append(REMOVED + "," + name);
+		}
+	}
+
+	/** @return whether the file is in the manifest. */
+	public synchronized boolean contains (String name) {
+		return this.entries.containsKey(name);
+	}
+
+	/** @return the names of the finished files that start with prefix, oldest first. */
+	public synchronized ArrayList<String> names (String prefix) {
+		ArrayList<String> names = new ArrayList<String>(this.entries.size());
+		for (String name : this.entries.keySet()) {
+			if (name.startsWith(prefix)) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+
+	/** @return a copy of the entries, oldest first. */
+	public synchronized ArrayList<Entry> entries () {
+		return new ArrayList<Entry>(this.entries.values());
+	}
+
+	/** @return up to count of the oldest entries of a stream, oldest first. */
+	public synchronized ArrayList<Entry> oldest (String stream, int count) {
+		ArrayList<Entry> oldest = new ArrayList<Entry>();
+		StreamFiles files = this.streams.get(stream);
+		if (files != null) {
+			for (String name : files.names) {
+				if (oldest.size() >= count) {
+					break;
+				}
+				oldest.add(this.entries.get(name));
+			}
+		}
+		return oldest;
+	}
+
+	/** @return the bytes in the finished files of a stream. */
+	public synchronized long bytesOf (String stream) {
+		StreamFiles files = this.streams.get(stream);
+		return files == null ? 0 : files.bytes;
+	}
+
+	/** @return the bytes in all the finished files. */
+	public synchronized long totalBytes () {
+		return this.totalBytes;
+	}
+
+	/** @return the bytes in the finished files of each stream that has any. */
+	public synchronized HashMap<String, Long> bytesByStream () {
+		HashMap<String, Long> bytes = new HashMap<String, Long>();
+		for (String stream : this.streams.keySet()) {
+			bytes.put(stream, this.streams.get(stream).bytes);
+		}
+		return bytes;
+	}
+
+	/** Puts an entry in the index, replacing any entry of the same name.
+	 * @return whether it replaced an entry. */
+	private boolean index (Entry entry) {
+		boolean replaced = this.unindex(entry.name);
+		this.entries.put(entry.name, entry);
+		StreamFiles files = this.streams.get(entry.stream);
+		if (files == null) {
+			files = new StreamFiles();
+			this.streams.put(entry.stream, files);
+		}
+		files.names.add(entry.name);
+		files.bytes += entry.size;
+		this.totalBytes += entry.size;
+		return replaced;
+	}
+
+	/** @return whether there was an entry of that name. */
+	private boolean unindex (String name) {
+		Entry entry = this.entries.remove(name);
+		if (entry == null) {
+			return false;
+		}
+		StreamFiles files = this.streams.get(entry.stream);
+		files.names.remove(name);
+		files.bytes -= entry.size;
+		if (files.names.isEmpty()) {
+			this.streams.remove(entry.stream);
+		}
+		this.totalBytes -= entry.size;
+		return true;
+	}
+
+	private void append (String line) throws IOException {
+		if (this.file == null) {
+			return;
+		}
+		if (this.out == null) {
+			this.out = new FileOutputStream(this.file, true);
+		}
+		this.out.write((line + "\n").getBytes(UTF_8));
+	}
+
+	/** Replaces the manifest file with one that holds only the live entries. */
+	private void rewrite () throws IOException {
+		if (this.file == null) {
+			return;
+		}
+		if (this.out != null) {
+			this.out.close();
+			this.out = null;
+		}
+		StringBuilder content = new StringBuilder();
+		for (Entry entry : this.entries.values()) {
+			content.append(addedLine(entry)).append('\n');
+		}
+		File temp = new File(this.file.getPath() + ".tmp");
+		FileOutputStream tempOut = new FileOutputStream(temp);
+		try {
+			tempOut.write(content.toString().getBytes(UTF_8));
+			tempOut.getChannel().force(false);
+		} finally {
+			tempOut.close();
+		}
+		if (!temp.renameTo(this.file)) {
+			throw new IOException("could not replace " + this.file.getPath());
+		}
+		this.deadLines = 0;
+	}
+
+	private static String addedLine (Entry entry) {
+		String checksum = entry.checksum == UNKNOWN_CHECKSUM ? "" : Long.toHexString(entry.checksum);
+		return ADDED + "," + entry.stream + "," + entry.size + "," + entry.createdMillis + "," + checksum + "," + entry.name;
+	}
+
+	/** @return the CRC32 of everything in a stream, which is closed. */
+	public static long checksumOf (InputStream in) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[16 * 1024];
+		try {
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,154 @@
+package org.beiwe.app.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+/**Repairs data files that were being written when the process died.
+ * A file that was open can end in a partial line, and after a power loss or kernel crash in lines
+ * of garbage.  We cut the file back to the end of its last good line: a line is good if it ends in
+ * a newline, and in framed files (see FileFormat) if its frame matches.
+ *
+ * Only the tail of the file is read, scanning backwards from the end, so the cost does not depend
+ * on the size of the file.  The key line and format line at the start of the file are never cut.
+ *
+ * Container format files are binary, a newline means nothing in them and a frame can only be
+ * found from the one before it.  They are read from the start, frame by frame, and cut at the
+ * first frame that is torn, or after the end frame.  A container file that was still being written
+ * has no end frame, and we cannot add one without its key, so the server will see that it was cut
+ * short; endsInEndFrame() tells which files that is.
+ *
+ * Has no Android dependencies so that it can be run on a desktop JVM against damaged files. */
+public class FileRecovery {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int CHUNK_SIZE = 8192;
+	// the key line and the format line of a file fit in this.
+	private static final int HEADER_SCAN_SIZE = 4096;
+
+	/** Cuts the torn tail off a file.
+	 * @return the number of bytes removed from the end of the file. */
+	public static long truncateTornTail (File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long length = raf.length();
+			long containerStart = dataStart(raf, length, true);
+			if (containerStart >= 0) {
+				long validLength = lastFrameEnd(raf, containerStart, length);
+				if (validLength < length) {
+					raf.setLength(validLength);
+				}
+				return length - validLength;
+			}
+			long validLength = lineEndBefore(raf, length);
+			long dataStart = dataStart(raf, length, false);
+			// a newline terminated line of a framed file may still be garbage, drop lines until one checks out.
+			while (dataStart >= 0 && validLength > dataStart) {
+				long lineStart = lineEndBefore(raf, validLength - 1);
+				if (lineStart < dataStart) {
+					break;
+				}
+				byte[] line = new byte[(int) (validLength - 1 - lineStart)];
+				raf.seek(lineStart);
+				raf.readFully(line);
+				if (FileFormat.unframeLine(new String(line, UTF_8)) != null) {
+					break;
+				}
+				validLength = lineStart;
+			}
+			if (validLength < length) {
+				raf.setLength(validLength);
+			}
+			return length - validLength;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** @return the position just after the last newline before limit, 0 if there is none. */
+	private static long lineEndBefore (RandomAccessFile raf, long limit) throws IOException {
+		byte[] buffer = new byte[CHUNK_SIZE];
+		long end = limit;
+		while (end > 0) {
+			int count = (int) Math.min(CHUNK_SIZE, end);
+			long start = end - count;
+			raf.seek(start);
+			raf.readFully(buffer, 0, count);
+			for (int i = count - 1; i >= 0; i--) {
+				if (buffer[i] == '\n') {
+					return start + i + 1;
+				}
+			}
+			end = start;
+		}
+		return 0;
+	}
+
+	/** @return the position just after the last good frame of a container format file, or after
+	 * the end frame, there is nothing after that in a file the device wrote.
+	 * @param dataStart where the first frame starts. */
+	private static long lastFrameEnd (RandomAccessFile raf, long dataStart, long length) throws IOException {
+		long frameEnd = dataStart;
+		raf.seek(dataStart);
+		FileFormat.ContainerFrame frame;
+		while ((frame = FileFormat.readContainerFrame(raf, length - frameEnd)) != null) {
+			frameEnd = raf.getFilePointer();
+			if (frame.end) {
+				break;
+			}
+		}
+		return frameEnd;
+	}
+
+	/** Whether a container format file ends in its end frame, as every file that was closed does.
+	 * Only the last frame is read, call this after truncateTornTail().  The end frame is recognized
+	 * by its length and crc, only the server can confirm it with the key.
+	 * @return false for a container file that was cut short, true for any other file. */
+	public static boolean endsInEndFrame (File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			long containerStart = dataStart(raf, length, true);
+			if (containerStart < 0) {
+				return true;
+			}
+			if (length - containerStart < FileFormat.CONTAINER_END_FRAME_BYTES) {
+				return false;
+			}
+			raf.seek(length - FileFormat.CONTAINER_END_FRAME_BYTES);
+			FileFormat.ContainerFrame frame = FileFormat.readContainerFrame(raf, FileFormat.CONTAINER_END_FRAME_BYTES);
+			return frame != null && frame.end;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** @return where the first framed line or frame starts, after the key line and the format line,
+	 * or -1 if the file does not declare framed lines, or is not a container format file.
+	 * @param container whether we are looking for a container format file or for framed lines. */
+	private static long dataStart (RandomAccessFile raf, long length, boolean container) throws IOException {
+		byte[] head = new byte[(int) Math.min(HEADER_SCAN_SIZE, length)];
+		raf.seek(0);
+		raf.readFully(head);
+		int keyLineEnd = indexOf(head, '\n', 0);
+		int formatLineEnd = (keyLineEnd == -1) ? -1 : indexOf(head, '\n', keyLineEnd + 1);
+		if (formatLineEnd == -1) {
+			return -1;
+		}
+		String formatLine = new String(head, keyLineEnd + 1, formatLineEnd - keyLineEnd - 1, UTF_8);
+		if (container) {
+			return FileFormat.versionOf(formatLine) == FileFormat.CONTAINER_VERSION ? formatLineEnd + 1 : -1;
+		}
+		return FileFormat.framedOf(formatLine) ? formatLineEnd + 1 : -1;
+	}
+
+	private static int indexOf (byte[] data, char c, int from) {
+		for (int i = from; i < data.length; i++) {
+			if (data[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,64 @@
+package org.beiwe.app.storage;
+
+/**Decides when a TextFileManager pushes its buffered output down to the file.
+ * TextFileManager keeps one open output stream for the life of a file; bytes written to it sit in
+ * a userspace buffer until the policy says to flush, or until the file is closed or rotated.
+ * A policy can have a byte threshold, a time threshold, both, or neither (explicit flushing only).
+ * Thresholds are only evaluated on write, an idle stream is flushed when it is closed or when
+ * TextFileManager.flushAll() is called. */
+public class FlushPolicy {
+
+	/** Buffer size used for the output stream when the policy does not require a larger one. */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	// values of zero or below disable the given threshold.
+	private final int maxUnflushedBytes;
+	private final long maxUnflushedMillis;
+
+	private FlushPolicy (int maxUnflushedBytes, long maxUnflushedMillis) {
+		this.maxUnflushedBytes = maxUnflushedBytes;
+		this.maxUnflushedMillis = maxUnflushedMillis;
+	}
+
+	/** Flush after every line, this is the durability of the old open-write-close behavior. */
+	public static FlushPolicy everyWrite () {
+		return new FlushPolicy(1, 0);
+	}
+
+	/** Flush once at least maxUnflushedBytes have been written since the last flush. */
+	public static FlushPolicy byBytes (int maxUnflushedBytes) {
+		return new FlushPolicy(maxUnflushedBytes, 0);
+	}
+
+	/** Flush on the first write that happens at least maxUnflushedMillis after the last flush. */
+	public static FlushPolicy byTime (long maxUnflushedMillis) {
+		return new FlushPolicy(0, maxUnflushedMillis);
+	}
+
+	/** Flush on whichever threshold is crossed first. */
+	public static FlushPolicy byBytesOrTime (int maxUnflushedBytes, long maxUnflushedMillis) {
+		return new FlushPolicy(maxUnflushedBytes, maxUnflushedMillis);
+	}
+
+	/** Never flush on write, only on close or on an explicit call to flush(). */
+	public static FlushPolicy explicit () {
+		return new FlushPolicy(0, 0);
+	}
+
+	/** @return whether a stream with this many unflushed bytes, last flushed at lastFlushMillis, should be flushed now. */
+	public boolean shouldFlush (int unflushedBytes, long lastFlushMillis, long nowMillis) {
+		if (unflushedBytes <= 0) {
+			return false;
+		}
+		if (maxUnflushedBytes > 0 && unflushedBytes >= maxUnflushedBytes) {
+			return true;
+		}
+		return maxUnflushedMillis > 0 && nowMillis - lastFlushMillis >= maxUnflushedMillis;
+	}
+
+	/** The output buffer should be at least as large as the byte threshold, otherwise the
+	 * buffered stream pushes data through to the file before the policy asks it to. */
+	public int bufferSize () {
+		return Math.max(DEFAULT_BUFFER_SIZE, maxUnflushedBytes);
+	}
+}
@@ -0,0 +1,89 @@
+package org.beiwe.app.storage;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**Remembers the PBKDF2 hashes of the identifiers hashed most recently, see EncryptionEngine.PBKDF2Hash().
+ * A hash is around a thousand SHA-256 rounds, and the same wifi access points, bluetooth devices and
+ * phone numbers come up again and again: every scan hashes every access point in range.
+ *
+ * The least recently used hash is dropped once the cache is full, an entry is a couple of hundred
+ * bytes.  A hash is only good for the salt and iteration count it was made with, the cache
+ * empties itself when it is asked about others.  It is kept in memory only, a hash must never be
+ * written anywhere the identifier could be looked up from.
+ *
+ * Thread safe, the hash itself is computed by the caller without holding the lock.
+ * Has no Android dependencies so that it can be run on a desktop JVM. */
+public class HashCache {
+
+	/** Enough for the access points and devices around the places a participant goes in a day. */
+	public static final int CAPACITY = 1024;
+
+	private final int capacity;
+	private final LinkedHashMap<String, String> hashes;
+	private byte[] salt = null;
+	private int iterations = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	public HashCache (final int capacity) {
+		this.capacity = capacity;
+		// access order, so that the eldest entry is the least recently used one.
+		this.hashes = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			@Override protected boolean removeEldestEntry (Map.Entry<String, String> eldest) {
+				return this.size() > capacity;
+			}
+		};
+	}
+
+	/** @return the hash of input made with this salt and iteration count, or null if it is not cached. */
+	public synchronized String get (String input, byte[] salt, int iterations) {
+		if (iterations != this.iterations || !Arrays.equals(salt, this.salt)) {
+			this.hashes.clear();
+			this.salt = salt.clone();
+			this.iterations = iterations;
+		}
+		String hash = this.hashes.get(input);
+		if (hash == null) {
+			this.misses++;
+		} else {
+			this.hits++;
+		}
+		return hash;
+	}
+
+	/** Caches the hash of input, if it was made with the current salt and iteration count. */
+	public synchronized void put (String input, byte[] salt, int iterations, String hash) {
+		if (iterations == this.iterations && Arrays.equals(salt, this.salt)) {
+			this.hashes.put(input, hash);
+		}
+	}
+
+	/** Forgets every hash, and the salt and iteration count. */
+	public synchronized void clear () {
+		this.hashes.clear();
+		this.salt = null;
+		this.iterations = 0;
+	}
+
+	public synchronized long getHits () {
+		return this.hits;
+	}
+
+	public synchronized long getMisses () {
+		return this.misses;
+	}
+
+	public synchronized int size () {
+		return this.hashes.size();
+	}
+
+	/** @return the hits, misses and size, for the log. */
+	public synchronized String report () {
+		long lookups = this.hits + this.misses;
+		return "hash cache: " + this.hits + " hits, " + this.misses + " misses"
+			+ (lookups == 0 ? "" : " (" + (100 * this.hits / lookups) + "% hits)")
+			+ ", " + this.hashes.size() + " of " + this.capacity + " entries";
+	}
+}
@@ -0,0 +1,165 @@
+package org.beiwe.app.storage;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**The app's internal storage, its files directory, laid out by StorageLayout.
+ * Uses java.io.File because java.nio.file needs API 26. */
+public class InternalStorageBackend implements StorageBackend {
+
+	private final StorageLayout layout;
+
+	public InternalStorageBackend (StorageLayout layout) {
+		this.layout = layout;
+	}
+
+	/** A FileOutputStream, synced through its channel. */
+	private static class FileAppendStream extends AppendStream {
+		private final FileOutputStream out;
+
+		FileAppendStream (File file) throws IOException {
+			this.out = new FileOutputStream(file, true);
+		}
+
+		@Override
+		public void write (int b) throws IOException {
+			this.out.write(b);
+		}
+
+		@Override
+		public void write (byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+		}
+
+		@Override
+		public void sync () throws IOException {
+			this.out.getChannel().force(false);
+		}
+
+		@Override
+		public void close () throws IOException {
+			this.out.close();
+		}
+	}
+
+	@Override
+	public AppendStream openAppend (String stream, String name) throws IOException {
+		return new FileAppendStream(this.layout.fileForWriting(name, stream));
+	}
+
+	/** Reserves the blocks of each segment with posix_fallocate, without writing them. */
+	private static class FallocatedAppendStream extends MappedAppendStream {
+		private final FileDescriptor fd;
+
+		FallocatedAppendStream (RandomAccessFile file, RandomAccessFile header, String name, int segmentBytes) throws IOException {
+			super(file.getChannel(), header.getChannel(), name, segmentBytes);
+			this.fd = file.getFD();
+		}
+
+		@Override
+		protected void allocate (FileChannel channel, long position, long length) throws IOException {
+			try {
+				Os.posix_fallocate(this.fd, position, length);
+			} catch (ErrnoException e) {
+				if (e.errno != OsConstants.EOPNOTSUPP) {
+					throw new IOException("could not allocate " + length + " bytes: " + e.getMessage(), e);
+				}
+				super.allocate(channel, position, length);  // the file system cannot, write the pages instead
+			}
+		}
+	}
+
+	@Override
+	public AppendStream openMappedAppend (String stream, String name, int segmentBytes) throws IOException {
+		RandomAccessFile header = new RandomAccessFile(this.layout.fileForWriting(MappedAppendStream.HEADER_FILE_NAME, stream), "rw");
+		RandomAccessFile file;
+		try {
+			file = new RandomAccessFile(this.layout.fileForWriting(name, stream), "rw");
+		} catch (IOException e) {
+			header.close();
+			throw e;
+		}
+		return new FallocatedAppendStream(file, header, name, segmentBytes);  // closes both if it throws
+	}
+
+	@Override
+	public InputStream openRead (String stream, String name) throws IOException {
+		return new FileInputStream(this.layout.fileOf(name, stream));
+	}
+
+	@Override
+	public long length (String stream, String name) {
+		File file = this.layout.fileOf(name, stream);
+		return file.exists() ? file.length() : -1;
+	}
+
+	@Override
+	public long lastModified (String stream, String name) {
+		return this.layout.fileOf(name, stream).lastModified();
+	}
+
+	@Override
+	public boolean delete (String stream, String name) {
+		return this.layout.fileOf(name, stream).delete();
+	}
+
+	@Override
+	public boolean shred (String stream, String name) {
+		File file = this.layout.fileOf(name, stream);
+		if (!file.exists()) {
+			return false;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				byte[] zeros = new byte[64 * 1024];
+				long length = raf.length();
+				for (long position = 0; position < length; position += zeros.length) {
+					raf.write(zeros, 0, (int) Math.min(zeros.length, length - position));
+				}
+				raf.getFD().sync();
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			// it is deleted anyway.
+		}
+		return file.delete();
+	}
+
+	@Override
+	public boolean rename (String stream, String name, String newName) {
+		return this.layout.fileOf(name, stream).renameTo(this.layout.fileOf(newName, stream));
+	}
+
+	@Override
+	public String[] list (String stream) {
+		String[] names = this.layout.directoryOf(stream).list();
+		if (names == null) {
+			return new String[0];
+		}
+		if (stream.length() > 0) {
+			return names;
+		}
+		// the top of the files directory also holds the stream directories.
+		int count = 0;
+		for (String name : names) {
+			if (!name.equals(StorageLayout.DATA_DIRECTORY_NAME)) {
+				names[count++] = name;
+			}
+		}
+		String[] files = new String[count];
+		System.arraycopy(names, 0, files, 0, count);
+		return files;
+	}
+}
@@ -0,0 +1,247 @@
+package org.beiwe.app.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**Appends to a file through memory-mapped segments, so that a write is a copy into memory instead
+ * of a system call.  The file grows a segment at a time: the blocks of the next segment are
+ * allocated, then it is mapped, a write bumps the position in the current segment, and when a
+ * segment is full the next one is allocated and mapped after it.  On close the file is truncated to
+ * what was written.
+ *
+ * Allocating before mapping matters: a write to a mapped page that the file system has no room for
+ * kills the process with SIGBUS, a failed allocation throws an IOException like a failed write().
+ *
+ * While the file is open its end is zeros.  The server reads our files, so the length written is
+ * not kept in the file: flush() commits it to a small header file next to it, HEADER_FILE_NAME in
+ * the stream's directory, which is also mapped, so a commit is a few stores.  The header names the
+ * file it is for and has two slots for the length, written alternately, each with a sequence number
+ * and a checksum, so that a torn commit leaves the previous one.  After a crash recover() cuts the
+ * file back to its committed length.  What has been written is in the page cache and survives the
+ * process dying; sync() protects it from power loss.  After a power loss the header can be ahead of
+ * the data that reached storage, the zeros in between are cut off by FileRecovery.
+ *
+ * Has no Android dependencies so that it can be run on a desktop JVM. */
+public class MappedAppendStream extends StorageBackend.AppendStream {
+
+	/** The name of the header file in the directory of a stream written through this. */
+	public static final String HEADER_FILE_NAME = ".committedLength";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int MAGIC = 0x4d415031;  // "MAP1"
+	private static final int MAX_NAME_BYTES = 256;
+	// magic, name length, name, checksum of those; then two slots of sequence, length, checksum.
+	private static final int NAME_CHECKSUM_OFFSET = 8 + MAX_NAME_BYTES;
+	static final int FIRST_SLOT_OFFSET = NAME_CHECKSUM_OFFSET + 4;
+	static final int SLOT_BYTES = 8 + 8 + 4;
+	private static final int HEADER_BYTES = FIRST_SLOT_OFFSET + 2 * SLOT_BYTES;
+	// allocate() writes a byte to each page, the block under it is then allocated.
+	private static final int PAGE_BYTES = 4096;
+
+	private final FileChannel channel;
+	private final FileChannel headerChannel;
+	private final MappedByteBuffer header;
+	private final int segmentBytes;
+	private MappedByteBuffer segment = null;  // mapped on the first write
+	private long position;  // the length of the file as written, the rest of the mapping is zeros.
+	private long committedSequence = 0;
+	private final CRC32 slotChecksum = new CRC32();
+
+	/** Claims the header for the file and commits its current length.
+	 * @param channel a channel to the file, open for reading and writing.
+	 * @param headerChannel a channel to the stream's header file, open for reading and writing.
+	 * @param name the name of the file, recover() checks it.
+	 * @param segmentBytes the size of the segments the file grows by.
+	 * Both channels are closed by close(), or here if this throws. */
+	public MappedAppendStream (FileChannel channel, FileChannel headerChannel, String name, int segmentBytes) throws IOException {
+		this.channel = channel;
+		this.headerChannel = headerChannel;
+		this.segmentBytes = segmentBytes;
+		try {
+			byte[] nameBytes = name.getBytes(UTF_8);
+			if (nameBytes.length > MAX_NAME_BYTES) {
+				throw new IOException("file name too long for the mapped file header: " + name);
+			}
+			this.position = channel.size();
+			// written through the channel, so that the header file's blocks exist before it is mapped.
+			ByteBuffer initial = ByteBuffer.allocate(HEADER_BYTES);
+			initial.putInt(MAGIC).putInt(nameBytes.length).put(nameBytes);
+			initial.putInt(NAME_CHECKSUM_OFFSET, checksumOf(initial.array(), 0, NAME_CHECKSUM_OFFSET));
+			initial.clear();
+			while (initial.hasRemaining()) {
+				headerChannel.write(initial, initial.position());
+			}
+			this.header = headerChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+			this.commit();
+		} catch (IOException e) {
+			// the file may be appended to another way now, recover() must not cut it back.
+			try {
+				headerChannel.write(ByteBuffer.allocate(4), 0);
+			} catch (IOException ignored) {
+				// the header was not written either.
+			}
+			channel.close();
+			headerChannel.close();
+			throw e;
+		}
+	}
+
+	/** Allocates storage for length bytes of the file at position, extending it.  By default a zero
+	 * is written to each page; a backend that can reserve the blocks directly overrides this.
+	 * @throws IOException if there is no room, the file may have grown. */
+	protected void allocate (FileChannel channel, long position, long length) throws IOException {
+		ByteBuffer zero = ByteBuffer.allocate(1);
+		long end = position + length;
+		for (long page = position; page < end; page += PAGE_BYTES) {
+			zero.clear();
+			channel.write(zero, page);
+		}
+		zero.clear();
+		channel.write(zero, end - 1);
+	}
+
+	/** Allocates and maps the segment that starts at the current position. */
+	private void mapSegment () throws IOException {
+		try {
+			this.allocate(this.channel, this.position, this.segmentBytes);
+		} catch (IOException e) {
+			this.channel.truncate(this.position);  // what was allocated can be given back
+			throw e;
+		}
+		this.segment = this.channel.map(FileChannel.MapMode.READ_WRITE, this.position, this.segmentBytes);
+	}
+
+	@Override
+	public void write (int b) throws IOException {
+		if (this.segment == null || !this.segment.hasRemaining()) {
+			this.mapSegment();
+		}
+		this.segment.put((byte) b);
+		this.position++;
+	}
+
+	@Override
+	public void write (byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (this.segment == null || !this.segment.hasRemaining()) {
+				this.mapSegment();
+			}
+			int count = Math.min(len, this.segment.remaining());
+			this.segment.put(b, off, count);
+			off += count;
+			len -= count;
+			this.position += count;
+		}
+	}
+
+	/** Writes go straight to the mapping, flushing commits their length to the header. */
+	@Override
+	public void flush () {
+		this.commit();
+	}
+
+	/** Writes the length into the older of the two slots, with the next sequence number. */
+	private void commit () {
+		this.committedSequence++;
+		int slot = FIRST_SLOT_OFFSET + (int) (this.committedSequence & 1) * SLOT_BYTES;
+		this.slotChecksum.reset();
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			this.slotChecksum.update((int) (this.committedSequence >>> shift));
+		}
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			this.slotChecksum.update((int) (this.position >>> shift));
+		}
+		this.header.putLong(slot, this.committedSequence);
+		this.header.putLong(slot + 8, this.position);
+		this.header.putInt(slot + 16, (int) this.slotChecksum.getValue());
+	}
+
+	/** Syncs the data, then the header, so that the committed length is never ahead of what is on
+	 * storage for a synced file. */
+	@Override
+	public void sync () throws IOException {
+		if (this.segment != null) {
+			this.segment.force();
+		}
+		this.channel.force(false);
+		this.commit();
+		this.header.force();
+	}
+
+	/** Cuts the unwritten rest of the last segment off the file, releases the header and closes both.
+	 * The mappings themselves go when they are garbage collected, nothing touches them after this. */
+	@Override
+	public void close () throws IOException {
+		if (!this.channel.isOpen()) {
+			return;
+		}
+		this.segment = null;
+		try {
+			// committed first: a crash before the truncation is recovered to the same length.
+			this.commit();
+			this.channel.truncate(this.position);
+			this.header.putInt(0, 0);
+		} finally {
+			try {
+				this.channel.close();
+			} finally {
+				this.headerChannel.close();
+			}
+		}
+	}
+
+	/** Cuts a file that was left open by a crash back to the length committed in the header, if the
+	 * header is for that file.
+	 * @return the number of bytes cut off, 0 if the header is for another file, or damaged. */
+	public static long recover (File headerFile, File file, String name) throws IOException {
+		if (headerFile.length() < HEADER_BYTES) {
+			return 0;
+		}
+		byte[] bytes = new byte[HEADER_BYTES];
+		RandomAccessFile headerIn = new RandomAccessFile(headerFile, "r");
+		try {
+			headerIn.readFully(bytes);
+		} finally {
+			headerIn.close();
+		}
+		ByteBuffer header = ByteBuffer.wrap(bytes);
+		int nameLength = header.getInt(4);
+		if (header.getInt(0) != MAGIC || nameLength < 0 || nameLength > MAX_NAME_BYTES
+				|| header.getInt(NAME_CHECKSUM_OFFSET) != checksumOf(bytes, 0, NAME_CHECKSUM_OFFSET)
+				|| !name.equals(new String(bytes, 8, nameLength, UTF_8))) {
+			return 0;
+		}
+		long committedLength = -1;
+		long newestSequence = 0;
+		for (int slot = FIRST_SLOT_OFFSET; slot < HEADER_BYTES; slot += SLOT_BYTES) {
+			long sequence = header.getLong(slot);
+			if (sequence > newestSequence && header.getInt(slot + 16) == checksumOf(bytes, slot, 16)) {
+				newestSequence = sequence;
+				committedLength = header.getLong(slot + 8);
+			}
+		}
+		long length = file.length();
+		if (committedLength < 0 || committedLength >= length) {
+			return 0;  // after a power loss the file can be shorter, FileRecovery checks what is there
+		}
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(committedLength);
+		} finally {
+			out.close();
+		}
+		return length - committedLength;
+	}
+
+	private static int checksumOf (byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,139 @@
+package org.beiwe.app.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**Files kept in memory, for benchmarks and load tests of the write path that should measure the
+ * app's own work and not the disk.  sync() does nothing. */
+public class MemoryStorageBackend implements StorageBackend {
+
+	/** The contents of a file, grown by doubling. */
+	private static class MemoryFile {
+		private byte[] data = new byte[1024];
+		private int length = 0;
+		private long lastModified = System.currentTimeMillis();
+
+		synchronized void append (byte[] b, int off, int len) {
+			if (this.length + len > this.data.length) {
+				this.data = Arrays.copyOf(this.data, Math.max(this.data.length * 2, this.length + len));
+			}
+			System.arraycopy(b, off, this.data, this.length, len);
+			this.length += len;
+			this.lastModified = System.currentTimeMillis();
+		}
+
+		synchronized byte[] contents () {
+			return Arrays.copyOf(this.data, this.length);
+		}
+
+		synchronized void zero () {
+			Arrays.fill(this.data, (byte) 0);
+		}
+	}
+
+	private final ConcurrentHashMap<String, MemoryFile> files = new ConcurrentHashMap<String, MemoryFile>();
+
+	private static String keyOf (String stream, String name) {
+		return stream + "/" + name;
+	}
+
+	@Override
+	public AppendStream openAppend (String stream, String name) {
+		String key = keyOf(stream, name);
+		this.files.putIfAbsent(key, new MemoryFile());
+		final MemoryFile file = this.files.get(key);
+		return new AppendStream() {
+			@Override
+			public void write (int b) {
+				file.append(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write (byte[] b, int off, int len) {
+				file.append(b, off, len);
+			}
+
+			@Override
+			public void sync () { }
+		};
+	}
+
+	/** Memory is not mapped, these files are appended to like any other. */
+	@Override
+	public AppendStream openMappedAppend (String stream, String name, int segmentBytes) {
+		return this.openAppend(stream, name);
+	}
+
+	@Override
+	public InputStream openRead (String stream, String name) throws IOException {
+		MemoryFile file = this.files.get(keyOf(stream, name));
+		if (file == null) {
+			throw new FileNotFoundException(keyOf(stream, name));
+		}
+		return new ByteArrayInputStream(file.contents());
+	}
+
+	@Override
+	public long length (String stream, String name) {
+		MemoryFile file = this.files.get(keyOf(stream, name));
+		if (file == null) {
+			return -1;
+		}
+		synchronized (file) {
+			return file.length;
+		}
+	}
+
+	@Override
+	public long lastModified (String stream, String name) {
+		MemoryFile file = this.files.get(keyOf(stream, name));
+		if (file == null) {
+			return 0;
+		}
+		synchronized (file) {
+			return file.lastModified;
+		}
+	}
+
+	@Override
+	public boolean delete (String stream, String name) {
+		return this.files.remove(keyOf(stream, name)) != null;
+	}
+
+	@Override
+	public boolean shred (String stream, String name) {
+		MemoryFile file = this.files.remove(keyOf(stream, name));
+		if (file == null) {
+			return false;
+		}
+		file.zero();
+		return true;
+	}
+
+	@Override
+	public boolean rename (String stream, String name, String newName) {
+		MemoryFile file = this.files.remove(keyOf(stream, name));
+		if (file == null) {
+			return false;
+		}
+		this.files.put(keyOf(stream, newName), file);
+		return true;
+	}
+
+	@Override
+	public String[] list (String stream) {
+		String prefix = stream + "/";
+		ArrayList<String> names = new ArrayList<String>();
+		for (String key : this.files.keySet()) {
+			if (key.startsWith(prefix)) {
+				names.add(key.substring(prefix.length()));
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+}
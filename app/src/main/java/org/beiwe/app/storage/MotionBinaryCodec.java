@@ -0,0 +1,141 @@
+package org.beiwe.app.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**Compact binary encoding for accelerometer and gyroscope samples, used inside block format files.
+ *
+ * A block is a sequence of records, each record is:
+ *   varint  (zigzag(timestamp - previous timestamp) << 1) | accuracy changed bit
+ *   varint  zigzag(accuracy), only present when the accuracy changed bit is set
+ *   3 x float32, big endian, the raw bits of the x, y and z values.
+ * The previous timestamp starts at 0 and the accuracy is always written for the first record, so
+ * every block decodes on its own.  A typical record is 13 bytes, the csv row it replaces is ~80.
+ * The header varint has room for timestamp deltas of up to 2^62 - 1 either way, thousands of times
+ * the age of the universe in milliseconds.
+ *
+ * The encoder is used on the device, the decoder is used by EncryptedFileDecoder (in the JVM test
+ * sources) to reproduce the exact csv rows the text format would have contained. */
+public class MotionBinaryCodec {
+
+	/** The largest possible encoded record: two 10 byte varints and three floats. */
+	public static final int MAX_RECORD_BYTES = 10 + 10 + 12;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private long previousTimestamp = 0;
+	private int previousAccuracy = 0;
+	private boolean first = true;
+
+	/** Call at the start of every block. */
+	public void reset () {
+		this.previousTimestamp = 0;
+		this.previousAccuracy = 0;
+		this.first = true;
+	}
+
+	/** Encodes the record into out at offset, out must have MAX_RECORD_BYTES of room.
+	 * @return the number of bytes written. */
+	public int encode (RecordQueue.Record record, byte[] out, int offset) {
+		int position = offset;
+		boolean accuracyChanged = this.first || record.accuracy != this.previousAccuracy;
+		long delta = record.timestamp - this.previousTimestamp;
+		position = writeVarint((zigzag(delta) << 1) | (accuracyChanged ? 1 : 0), out, position);
+		if (accuracyChanged) {
+			position = writeVarint(zigzag(record.accuracy), out, position);
+		}
+		position = writeFloat((float) record.v0, out, position);
+		position = writeFloat((float) record.v1, out, position);
+		position = writeFloat((float) record.v2, out, position);
+
+		this.previousTimestamp = record.timestamp;
+		this.previousAccuracy = record.accuracy;
+		this.first = false;
+		return position - offset;
+	}
+
+	/** Decodes one block and writes the csv rows, each followed by '\n', exactly as the text
+	 * format writes them: "timestamp,accuracy,x,y,z" with the values formatted as "%.16f". */
+	public static void decodeBlock (byte[] block, OutputStream out) throws IOException {
+		long timestamp = 0;
+		int accuracy = 0;
+		int[] position = {0};
+		StringBuilder row = new StringBuilder(96);
+		while (position[0] < block.length) {
+			long header = readVarint(block, position);
+			timestamp += unzigzag(header >>> 1);
+			if ((header & 1) == 1) {
+				accuracy = (int) unzigzag(readVarint(block, position));
+			}
+			row.setLength(0);
+			row.append(timestamp).append(',');
+			row.append(accuracy == RecordQueue.UNKNOWN_ACCURACY ? "unknown" : Integer.toString(accuracy));
+			for (int axis = 0; axis < 3; axis++) {
+				row.append(',').append(String.format(Locale.US, "%.16f", readFloat(block, position)));
+			}
+			row.append('\n');
+			out.write(row.toString().getBytes(UTF_8));
+		}
+	}
+
+	/** Convenience for tests and tools, decodes a block to a string. */
+	public static String decodeBlockToString (byte[] block) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		decodeBlock(block, out);
+		return new String(out.toByteArray(), UTF_8);
+	}
+
+	private static long zigzag (long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag (long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static int writeVarint (long value, byte[] out, int position) {
+		while ((value & ~0x7FL) != 0) {
+			out[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out[position++] = (byte) value;
+		return position;
+	}
+
+	private static long readVarint (byte[] in, int[] position) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (position[0] >= in.length) {
+				throw new IOException("truncated varint");
+			}
+			byte b = in[position[0]++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("malformed varint");
+	}
+
+	private static int writeFloat (float value, byte[] out, int position) {
+		int bits = Float.floatToRawIntBits(value);
+		out[position++] = (byte) (bits >>> 24);
+		out[position++] = (byte) (bits >>> 16);
+		out[position++] = (byte) (bits >>> 8);
+		out[position++] = (byte) bits;
+		return position;
+	}
+
+	private static float readFloat (byte[] in, int[] position) throws IOException {
+		int p = position[0];
+		if (p + 4 > in.length) {
+			throw new IOException("truncated float");
+		}
+		int bits = ((in[p] & 0xFF) << 24) | ((in[p + 1] & 0xFF) << 16) | ((in[p + 2] & 0xFF) << 8) | (in[p + 3] & 0xFF);
+		position[0] = p + 4;
+		return Float.intBitsToFloat(bits);
+	}
+}
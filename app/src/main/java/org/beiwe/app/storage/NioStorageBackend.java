@@ -0,0 +1,180 @@
+package org.beiwe.app.storage;
+
+import android.annotation.TargetApi;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**A directory on a java.nio.file file system, with the same layout as StorageLayout: files of a
+ * stream in data/[STREAM]/, files of no known stream at the top.  For running the write path on a
+ * desktop JVM against a real disk, java.nio.file needs API 26 so the app does not use this. */
+@TargetApi(26)
+public class NioStorageBackend implements StorageBackend {
+
+	private final Path root;
+
+	public NioStorageBackend (Path root) {
+		this.root = root;
+	}
+
+	private Path pathOf (String stream, String name) {
+		return (stream.length() == 0) ? this.root.resolve(name) : this.root.resolve(StorageLayout.DATA_DIRECTORY_NAME).resolve(stream).resolve(name);
+	}
+
+	/** Appends through a FileChannel, which it also syncs. */
+	private static class ChannelAppendStream extends AppendStream {
+		private final FileChannel channel;
+
+		ChannelAppendStream (Path path) throws IOException {
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+
+		@Override
+		public void write (int b) throws IOException {
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write (byte[] b, int off, int len) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			while (buffer.hasRemaining()) {
+				this.channel.write(buffer);
+			}
+		}
+
+		@Override
+		public void sync () throws IOException {
+			this.channel.force(false);
+		}
+
+		@Override
+		public void close () throws IOException {
+			this.channel.close();
+		}
+	}
+
+	@Override
+	public AppendStream openAppend (String stream, String name) throws IOException {
+		Path path = this.pathOf(stream, name);
+		Files.createDirectories(path.getParent());
+		return new ChannelAppendStream(path);
+	}
+
+	@Override
+	public AppendStream openMappedAppend (String stream, String name, int segmentBytes) throws IOException {
+		Path path = this.pathOf(stream, name);
+		Files.createDirectories(path.getParent());
+		FileChannel header = FileChannel.open(this.pathOf(stream, MappedAppendStream.HEADER_FILE_NAME),
+			StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			header.close();
+			throw e;
+		}
+		return new MappedAppendStream(channel, header, name, segmentBytes);  // closes both if it throws
+	}
+
+	@Override
+	public InputStream openRead (String stream, String name) throws IOException {
+		try {
+			return Files.newInputStream(this.pathOf(stream, name));
+		} catch (NoSuchFileException e) {
+			throw new FileNotFoundException(e.getMessage());
+		}
+	}
+
+	@Override
+	public long length (String stream, String name) {
+		try {
+			return Files.size(this.pathOf(stream, name));
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public long lastModified (String stream, String name) {
+		try {
+			return Files.getLastModifiedTime(this.pathOf(stream, name)).toMillis();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	@Override
+	public boolean delete (String stream, String name) {
+		try {
+			return Files.deleteIfExists(this.pathOf(stream, name));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public boolean shred (String stream, String name) {
+		Path path = this.pathOf(stream, name);
+		try {
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+			try {
+				ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+				long length = channel.size();
+				for (long position = 0; position < length; position += zeros.capacity()) {
+					zeros.clear();
+					zeros.limit((int) Math.min(zeros.capacity(), length - position));
+					while (zeros.hasRemaining()) {
+						channel.write(zeros, position + zeros.position());
+					}
+				}
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// it may not exist, delete() says so.
+		}
+		return this.delete(stream, name);
+	}
+
+	@Override
+	public boolean rename (String stream, String name, String newName) {
+		try {
+			Files.move(this.pathOf(stream, name), this.pathOf(stream, newName), StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public String[] list (String stream) {
+		ArrayList<String> names = new ArrayList<String>();
+		Path directory = (stream.length() == 0) ? this.root : this.root.resolve(StorageLayout.DATA_DIRECTORY_NAME).resolve(stream);
+		try {
+			DirectoryStream<Path> paths = Files.newDirectoryStream(directory);
+			try {
+				for (Path path : paths) {
+					if (Files.isRegularFile(path)) {
+						names.add(path.getFileName().toString());
+					}
+				}
+			} finally {
+				paths.close();
+			}
+		} catch (IOException e) {
+			// no directory, no files.
+		}
+		return names.toArray(new String[names.size()]);
+	}
+}
@@ -37,11 +37,23 @@ const val BLUETOOTH_ENABLED = "bluetooth"
 const val POWER_STATE_ENABLED = "power_state"
 const val AMBIENT_AUDIO_ENABLED = "ambient_audio"
 const val ALLOW_UPLOAD_OVER_CELLULAR_DATA = "allow_upload_over_cellular_data"
+const val USE_BINARY_MOTION_FORMAT = "use_binary_motion_format"
+const val COMPRESS_DATA_FILES = "compress_data_files"
+const val BUNDLE_SMALL_FILES = "bundle_small_files"
+const val USE_GCM_CONTAINER_FORMAT = "use_gcm_container_format"
+const val USE_MAPPED_MOTION_FILES = "use_mapped_motion_files"
+const val USE_BLOCK_FILE_FORMAT = "use_block_file_format"
+const val BLOCK_FORMAT_MAX_LINES = "block_format_max_lines"
+const val BLOCK_FORMAT_MAX_BYTES = "block_format_max_bytes"
+const val STORAGE_LOW_FREE_MEGABYTES = "storage_low_free_megabytes"
+const val STORAGE_TARGET_FREE_MEGABYTES = "storage_target_free_megabytes"
+const val STORAGE_MAX_DATA_MEGABYTES = "storage_max_data_megabytes"
 
 // you can never never change these const values; ever.  If you do it will break the study data gathering
 const val ACCELEROMETER_OFF_SECONDS = "accelerometer_off_duration_seconds"
 const val ACCELEROMETER_ON_SECONDS = "accelerometer_on_duration_seconds"
 const val ACCELEROMETER_FREQUENCY = "accelerometer_frequency"
+const val ACCELEROMETER_MAX_REPORT_LATENCY_SECONDS = "accelerometer_max_report_latency_seconds"
 const val AMBIENT_AUDIO_OFF_SECONDS = "ambient_audio_off_duration_seconds"
 const val AMBIENT_AUDIO_ON_SECONDS = "ambient_audio_on_duration_seconds"
 const val AMBIENT_AUDIO_SAMPLE_RATE = "ambient_audio_sample_rate"
@@ -49,6 +61,8 @@ const val AMBIENT_AUDIO_BITRATE = "ambient_audio_bitrate"
 const val GYROSCOPE_ON_SECONDS = "gyro_on_duration_seconds"
 const val GYROSCOPE_OFF_SECONDS = "gyro_off_duration_seconds"
 const val GYROSCOPE_FREQUENCY = "gyro_frequency"
+const val GYROSCOPE_MAX_REPORT_LATENCY_SECONDS = "gyro_max_report_latency_seconds"
+const val MOTION_AGGREGATION_WINDOW_SECONDS = "motion_aggregation_window_seconds"
 const val BLUETOOTH_ON_SECONDS = "bluetooth_on_duration_seconds"
 const val BLUETOOTH_TOTAL_SECONDS = "bluetooth_total_duration_seconds"
 const val BLUETOOTH_GLOBAL_OFFSET_SECONDS = "bluetooth_global_offset_seconds"
@@ -61,6 +75,7 @@ const val UPLOAD_DATA_FILES_FREQUENCY_SECONDS = "upload_data_files_frequency_sec
 const val VOICE_RECORDING_MAX_TIME_LENGTH_SECONDS = "voice_recording_max_time_length_seconds"
 const val WIFI_LOG_FREQUENCY_SECONDS = "wifi_log_frequency_seconds"
 const val SURVEY_IDS = "survey_ids"
+const val OPEN_DATA_FILES = "open_data_files"
 const val LastRequestedPermission = "last_requested_permission"
 
 const val ABOUT_PAGE_TEXT_KEY = "about_page_text"
@@ -237,6 +252,11 @@ object PersistentData {
         get() = pref.getString(MOST_RECENT_ONPAUSE_ACTIVITY_STATE, "")?: ""
         set(value) = putCommit(MOST_RECENT_ONPAUSE_ACTIVITY_STATE, value)
 
+    // data files that this process has open, newline separated. The next process repairs them on start.
+    @JvmStatic var openDataFiles: String
+        get() = pref.getString(OPEN_DATA_FILES, "")?: ""
+        set(value) = putCommit(OPEN_DATA_FILES, value)
+
     // app data stream recent events
     @JvmStatic var accelerometerStart: String
         get() =  pref.getString(MOST_RECENT_ACCELEROMETER_START, "")?: ""
@@ -319,6 +339,38 @@ object PersistentData {
     @JvmStatic fun setTextsEnabled(enabled: Boolean): Boolean { return putCommit(TEXTS_ENABLED, enabled) }
     @JvmStatic fun getWifiEnabled(): Boolean { return pref.getBoolean(WIFI_ENABLED, false) }
     @JvmStatic fun setWifiEnabled(enabled: Boolean) { putCommit(WIFI_ENABLED, enabled) }
+    @JvmStatic fun getUseBinaryMotionFormat(): Boolean { return pref.getBoolean(USE_BINARY_MOTION_FORMAT, false) }
+    @JvmStatic fun setUseBinaryMotionFormat(enabled: Boolean): Boolean { return putCommit(USE_BINARY_MOTION_FORMAT, enabled) }
+    @JvmStatic fun getCompressDataFiles(): Boolean { return pref.getBoolean(COMPRESS_DATA_FILES, false) }
+    @JvmStatic fun setCompressDataFiles(enabled: Boolean): Boolean { return putCommit(COMPRESS_DATA_FILES, enabled) }
+    @JvmStatic fun getBundleSmallFiles(): Boolean { return pref.getBoolean(BUNDLE_SMALL_FILES, false) }
+    @JvmStatic fun setBundleSmallFiles(enabled: Boolean): Boolean { return putCommit(BUNDLE_SMALL_FILES, enabled) }
+    @JvmStatic fun getUseGcmContainerFormat(): Boolean { return pref.getBoolean(USE_GCM_CONTAINER_FORMAT, false) }
+    @JvmStatic fun setUseGcmContainerFormat(enabled: Boolean): Boolean { return putCommit(USE_GCM_CONTAINER_FORMAT, enabled) }
+    @JvmStatic fun getUseMappedMotionFiles(): Boolean { return pref.getBoolean(USE_MAPPED_MOTION_FILES, false) }
+    @JvmStatic fun setUseMappedMotionFiles(enabled: Boolean): Boolean { return putCommit(USE_MAPPED_MOTION_FILES, enabled) }
+    @JvmStatic fun getUseBlockFileFormat(): Boolean { return pref.getBoolean(USE_BLOCK_FILE_FORMAT, false) }
+    @JvmStatic fun setUseBlockFileFormat(enabled: Boolean): Boolean { return putCommit(USE_BLOCK_FILE_FORMAT, enabled) }
+    // the size of the motion streams' blocks, a block is encrypted when either limit is reached.
+    // A block holds at least 2 lines (1 would be the legacy format), 0 bytes means no byte limit.
+    @JvmStatic fun getBlockFormatMaxLines(): Int { return pref.getLong(BLOCK_FORMAT_MAX_LINES, 100).coerceIn(2, 100000).toInt() }
+    @JvmStatic fun getBlockFormatMaxBytes(): Int { return pref.getLong(BLOCK_FORMAT_MAX_BYTES, 8192).coerceIn(0, 1024 * 1024).toInt() }
+    // returns whether the value changed, the block size is chosen when the files are set up.
+    @JvmStatic fun setBlockFormatSize(maxLines: Long, maxBytes: Long): Boolean {
+        val changed = pref.getLong(BLOCK_FORMAT_MAX_LINES, 100) != maxLines || pref.getLong(BLOCK_FORMAT_MAX_BYTES, 8192) != maxBytes
+        putCommit(BLOCK_FORMAT_MAX_LINES, maxLines)
+        putCommit(BLOCK_FORMAT_MAX_BYTES, maxBytes)
+        return changed
+    }
+    // the thresholds of the StoragePolicy, 0 disables a threshold.
+    @JvmStatic fun getStorageLowFreeBytes(): Long { return 1024L * 1024L * pref.getLong(STORAGE_LOW_FREE_MEGABYTES, 256) }
+    @JvmStatic fun getStorageTargetFreeBytes(): Long { return 1024L * 1024L * pref.getLong(STORAGE_TARGET_FREE_MEGABYTES, 512) }
+    @JvmStatic fun getStorageMaxDataBytes(): Long { return 1024L * 1024L * pref.getLong(STORAGE_MAX_DATA_MEGABYTES, 0) }
+    @JvmStatic fun setStorageLimits(lowFreeMegabytes: Long, targetFreeMegabytes: Long, maxDataMegabytes: Long) {
+        putCommit(STORAGE_LOW_FREE_MEGABYTES, lowFreeMegabytes)
+        putCommit(STORAGE_TARGET_FREE_MEGABYTES, targetFreeMegabytes)
+        putCommit(STORAGE_MAX_DATA_MEGABYTES, maxDataMegabytes)
+    }
 
     /*#####################################################################################
     ################################## Timer Settings #####################################
@@ -330,6 +382,8 @@ object PersistentData {
     @JvmStatic fun setAccelerometerOnDuration(seconds: Long) { putCommit(ACCELEROMETER_ON_SECONDS, seconds) }
     @JvmStatic fun getAccelerometerFrequency(): Long { return pref.getLong(ACCELEROMETER_FREQUENCY, 5) }
     @JvmStatic fun setAccelerometerFrequency(frequency: Long) { putCommit(ACCELEROMETER_FREQUENCY, frequency) }
+    @JvmStatic fun getAccelerometerMaxReportLatency(): Long { return 1000L * pref.getLong(ACCELEROMETER_MAX_REPORT_LATENCY_SECONDS, 0) }
+    @JvmStatic fun setAccelerometerMaxReportLatency(seconds: Long) { putCommit(ACCELEROMETER_MAX_REPORT_LATENCY_SECONDS, seconds) }
     @JvmStatic fun getAmbientAudioOffDuration(): Long { return 1000L * pref.getLong(AMBIENT_AUDIO_OFF_SECONDS, (10 * 60).toLong()) }
     @JvmStatic fun setAmbientAudioOffDuration(seconds: Long) { putCommit(AMBIENT_AUDIO_OFF_SECONDS, seconds) }
     @JvmStatic fun getAmbientAudioOnDuration(): Long { return 1000L * pref.getLong(AMBIENT_AUDIO_ON_SECONDS, (10 * 60).toLong()) }
@@ -358,6 +412,15 @@ object PersistentData {
     @JvmStatic fun setGyroscopeOnDuration(seconds: Long) { putCommit(GYROSCOPE_ON_SECONDS, seconds) }
     @JvmStatic fun getGyroscopeFrequency(): Long { return pref.getLong(GYROSCOPE_FREQUENCY, 5) }
     @JvmStatic fun setGyroscopeFrequency(frequency: Long) { putCommit(GYROSCOPE_FREQUENCY, frequency) }
+    @JvmStatic fun getGyroscopeMaxReportLatency(): Long { return 1000L * pref.getLong(GYROSCOPE_MAX_REPORT_LATENCY_SECONDS, 0) }
+    @JvmStatic fun setGyroscopeMaxReportLatency(seconds: Long) { putCommit(GYROSCOPE_MAX_REPORT_LATENCY_SECONDS, seconds) }
+    @JvmStatic fun getMotionAggregationWindow(): Long { return 1000L * pref.getLong(MOTION_AGGREGATION_WINDOW_SECONDS, 0) }
+    // returns whether the value changed, which files get written depends on it.
+    @JvmStatic fun setMotionAggregationWindow(seconds: Long): Boolean {
+        val changed = pref.getLong(MOTION_AGGREGATION_WINDOW_SECONDS, 0) != seconds
+        putCommit(MOTION_AGGREGATION_WINDOW_SECONDS, seconds)
+        return changed
+    }
     @JvmStatic fun getTimeBeforeAutoLogout(): Long { return 1000L * pref.getLong(SECONDS_BEFORE_AUTO_LOGOUT, (5 * 60).toLong()) }
     @JvmStatic fun setTimeBeforeAutoLogout(seconds: Long) { putCommit(SECONDS_BEFORE_AUTO_LOGOUT, seconds) }
     @JvmStatic fun setUploadDataFilesFrequency(seconds: Long) { putCommit(UPLOAD_DATA_FILES_FREQUENCY_SECONDS, seconds) }
@@ -0,0 +1,120 @@
+package org.beiwe.app.storage;
+
+/**A bounded queue of sensor records, any number of threads may offer, one thread drains.
+ * All slots are allocated up front and records are copied in field by field, so offering a record
+ * does not allocate.  The lock is only held long enough to copy a handful of primitives.
+ * When the queue is full new records are dropped and counted, we never block a sensor callback. */
+public class RecordQueue {
+
+	/** Value for Record.accuracy when the sensor has not (yet) reported an accuracy. */
+	public static final int UNKNOWN_ACCURACY = Integer.MIN_VALUE;
+
+	/** One sample.  Streams use as many of the value fields as they need. */
+	public static class Record {
+		public long timestamp;
+		public int accuracy;
+		public double v0;
+		public double v1;
+		public double v2;
+		public double v3;
+
+		void copyFrom (Record other) {
+			this.timestamp = other.timestamp;
+			this.accuracy = other.accuracy;
+			this.v0 = other.v0;
+			this.v1 = other.v1;
+			this.v2 = other.v2;
+			this.v3 = other.v3;
+		}
+	}
+
+	/** @return an array of count preallocated records, for use with drainTo. */
+	public static Record[] newRecordArray (int count) {
+		Record[] records = new Record[count];
+		for (int i = 0; i < count; i++) {
+			records[i] = new Record();
+		}
+		return records;
+	}
+
+	private final Record[] slots;
+	private int head = 0;  // index of the oldest record
+	private int size = 0;
+	private long enqueuedCount = 0;
+	private long droppedCount = 0;
+
+	public RecordQueue (int capacity) {
+		this.slots = newRecordArray(capacity);
+	}
+
+	public int capacity () {
+		return this.slots.length;
+	}
+
+	/** Copies a record into the queue.
+	 * @return false if the queue was full and the record was dropped. */
+	public synchronized boolean offer (long timestamp, int accuracy, double v0, double v1, double v2, double v3) {
+		if (this.size == this.slots.length) {
+			this.droppedCount++;
+			return false;
+		}
+		Record slot = this.slots[(this.head + this.size) % this.slots.length];
+		slot.timestamp = timestamp;
+		slot.accuracy = accuracy;
+		slot.v0 = v0;
+		slot.v1 = v1;
+		slot.v2 = v2;
+		slot.v3 = v3;
+		this.size++;
+		this.enqueuedCount++;
+		// the consumer waits for an empty queue to get a record, or for a burst to fill half of it.
+		if (this.size == 1 || this.size == this.slots.length / 2) {
+			this.notify();
+		}
+		return true;
+	}
+
+	/** Blocks until there is at least one record in the queue. */
+	public synchronized void awaitRecords () throws InterruptedException {
+		while (this.size == 0) {
+			this.wait();
+		}
+	}
+
+	/** Waits up to maxWaitMillis, returns early once the queue is half full, so that a burst of
+	 * records (e.g. a sensor FIFO being delivered) is drained before the queue overflows. */
+	public synchronized void awaitHalfFull (long maxWaitMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + maxWaitMillis;
+		long remaining = maxWaitMillis;
+		while (this.size < this.slots.length / 2 && remaining > 0) {
+			this.wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+	}
+
+	/** Copies up to out.length of the oldest records into out and removes them from the queue.
+	 * @return the number of records copied. */
+	public synchronized int drainTo (Record[] out) {
+		int count = Math.min(this.size, out.length);
+		for (int i = 0; i < count; i++) {
+			out[i].copyFrom(this.slots[(this.head + i) % this.slots.length]);
+		}
+		this.head = (this.head + count) % this.slots.length;
+		this.size -= count;
+		return count;
+	}
+
+	public synchronized int size () {
+		return this.size;
+	}
+
+	/** @return the number of records accepted since the queue was created. */
+	public synchronized long getEnqueuedCount () {
+		return this.enqueuedCount;
+	}
+
+	/** @return the number of records dropped because the queue was full. */
+	public synchronized long getDroppedCount () {
+		return this.droppedCount;
+	}
+}
@@ -0,0 +1,62 @@
+package org.beiwe.app.storage;
+
+/**Decides when a TextFileManager retires its current file.
+ * A policy can limit the bytes in a file, the records (lines, or binary records) in a file, and the
+ * age of a file, in any combination; a limit of zero is disabled.  The age limit is either fixed or
+ * the study's create_new_data_files_frequency, which can change while the app runs.
+ *
+ * The policy is evaluated by the stream itself on its write path: the size limits right after a
+ * record is written, the age limit right before one is written.  TextFileManager.rotateExpiredFiles()
+ * applies the age limit to streams that have gone quiet.  A retired file is closed and can be
+ * uploaded right away, the stream's next file is created on its next write.
+ *
+ * The byte limit counts what has reached the file, so block format files may go over it by up to
+ * one block. */
+public class RotationPolicy {
+
+	// maxAgeMillis value meaning "the study's new data file frequency"
+	private static final long STUDY_FILE_AGE = -1;
+
+	private final long maxBytes;
+	private final int maxRecords;
+	private final long maxAgeMillis;
+
+	private RotationPolicy (long maxBytes, int maxRecords, long maxAgeMillis) {
+		this.maxBytes = maxBytes;
+		this.maxRecords = maxRecords;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	/** Files are only retired explicitly, by newFile() or closeFile(). */
+	public static RotationPolicy never () {
+		return new RotationPolicy(0, 0, 0);
+	}
+
+	/** Every record gets its own file, e.g. one file per wifi scan. */
+	public static RotationPolicy everyRecord () {
+		return new RotationPolicy(0, 1, 0);
+	}
+
+	/** Retire files when they are older than the study's new data file frequency, or when they
+	 * reach maxBytes, 0 for no size limit. */
+	public static RotationPolicy studyPeriod (long maxBytes) {
+		return new RotationPolicy(maxBytes, 0, STUDY_FILE_AGE);
+	}
+
+	/** Retire files on whichever limit is reached first, 0 disables a limit. */
+	public static RotationPolicy limits (long maxBytes, int maxRecords, long maxAgeMillis) {
+		return new RotationPolicy(maxBytes, maxRecords, maxAgeMillis);
+	}
+
+	/** @return whether a file holding this many bytes and records is full. */
+	public boolean isFull (long bytes, int records) {
+		return (this.maxBytes > 0 && bytes >= this.maxBytes) || (this.maxRecords > 0 && records >= this.maxRecords);
+	}
+
+	/** @return whether a file opened at openedMillis is too old at nowMillis.
+	 * @param studyFileAgeMillis the study's new data file frequency, used by studyPeriod policies. */
+	public boolean isExpired (long openedMillis, long nowMillis, long studyFileAgeMillis) {
+		long maxAge = (this.maxAgeMillis == STUDY_FILE_AGE) ? studyFileAgeMillis : this.maxAgeMillis;
+		return maxAge > 0 && nowMillis - openedMillis >= maxAge;
+	}
+}
@@ -41,13 +41,86 @@ object SetDeviceSettings {
             PersistentData.setAllowUploadOverCellularData(false)
         }
 
+        // the file formats are chosen when the TextFileManager initializes, so a change needs a restart.
+        // only servers that read the block format turn it on, older servers parse one encrypted line per row.
+        try {
+            enablement_change = enablement_change or PersistentData.setUseBlockFileFormat(deviceSettings.getBoolean("use_block_file_format"))
+        } catch (e: JSONException) {
+            enablement_change = enablement_change or PersistentData.setUseBlockFileFormat(false)
+        }
+        try {
+            enablement_change = enablement_change or PersistentData.setBlockFormatSize(
+                deviceSettings.getLong("block_format_max_lines"), deviceSettings.getLong("block_format_max_bytes")
+            )
+        } catch (e: JSONException) {
+            enablement_change = enablement_change or PersistentData.setBlockFormatSize(100, 8192)
+        }
+        try {
+            enablement_change = enablement_change or PersistentData.setUseBinaryMotionFormat(deviceSettings.getBoolean("use_binary_motion_format"))
+        } catch (e: JSONException) {
+            enablement_change = enablement_change or PersistentData.setUseBinaryMotionFormat(false)
+        }
+        try {
+            enablement_change = enablement_change or PersistentData.setCompressDataFiles(deviceSettings.getBoolean("compress_data_files"))
+        } catch (e: JSONException) {
+            enablement_change = enablement_change or PersistentData.setCompressDataFiles(false)
+        }
+        try {
+            enablement_change = enablement_change or PersistentData.setUseGcmContainerFormat(deviceSettings.getBoolean("use_gcm_container_format"))
+        } catch (e: JSONException) {
+            enablement_change = enablement_change or PersistentData.setUseGcmContainerFormat(false)
+        }
+        // writes the raw motion files through memory-mapped segments, see MappedAppendStream; the
+        // file contents are the same, so any server works with it.
+        try {
+            enablement_change = enablement_change or PersistentData.setUseMappedMotionFiles(deviceSettings.getBoolean("use_mapped_motion_files"))
+        } catch (e: JSONException) {
+            enablement_change = enablement_change or PersistentData.setUseMappedMotionFiles(false)
+        }
+        // only servers that can split bundles into their files turn this on, it applies from the next upload.
+        try {
+            PersistentData.setBundleSmallFiles(deviceSettings.getBoolean("bundle_small_files"))
+        } catch (e: JSONException) {
+            PersistentData.setBundleSmallFiles(false)
+        }
+
+        // when storage counts as low and old data files are evicted, see StoragePolicy; 0 disables a
+        // threshold.  The storage budget is set up at TextFileManager initialization, on the next restart.
+        try {
+            PersistentData.setStorageLimits(
+                deviceSettings.getLong("storage_low_free_megabytes"),
+                deviceSettings.getLong("storage_target_free_megabytes"),
+                deviceSettings.getLong("storage_max_data_megabytes")
+            )
+        } catch (e: JSONException) {
+            PersistentData.setStorageLimits(256, 512, 0)
+        }
+
+        // 0 records raw motion data, otherwise summary rows per window.  Files are set up at
+        // TextFileManager initialization, so a change needs a restart.
+        try {
+            enablement_change = enablement_change or PersistentData.setMotionAggregationWindow(deviceSettings.getLong("motion_aggregation_window_seconds"))
+        } catch (e: JSONException) {
+            enablement_change = enablement_change or PersistentData.setMotionAggregationWindow(0)
+        }
+
         // Write timer settings  --  regarding restarts, these will be handled by timer logic.
         PersistentData.setAccelerometerOffDuration(deviceSettings.getLong("accelerometer_off_duration_seconds"))
         PersistentData.setAccelerometerOnDuration(deviceSettings.getLong("accelerometer_on_duration_seconds"))
         PersistentData.setAccelerometerFrequency(deviceSettings.getLong("accelerometer_frequency"))
+        try {
+            PersistentData.setAccelerometerMaxReportLatency(deviceSettings.getLong("accelerometer_max_report_latency_seconds"))
+        } catch (e: JSONException) {
+            PersistentData.setAccelerometerMaxReportLatency(0)
+        }
         PersistentData.setGyroscopeOffDuration(deviceSettings.getLong("gyro_off_duration_seconds"))
         PersistentData.setGyroscopeOnDuration(deviceSettings.getLong("gyro_on_duration_seconds"))
         PersistentData.setGyroscopeFrequency(deviceSettings.getLong("gyro_frequency"))
+        try {
+            PersistentData.setGyroscopeMaxReportLatency(deviceSettings.getLong("gyro_max_report_latency_seconds"))
+        } catch (e: JSONException) {
+            PersistentData.setGyroscopeMaxReportLatency(0)
+        }
         PersistentData.setBluetoothOnDuration(deviceSettings.getLong("bluetooth_on_duration_seconds"))
         PersistentData.setBluetoothTotalDuration(deviceSettings.getLong("bluetooth_total_duration_seconds"))
         PersistentData.setBluetoothGlobalOffset(deviceSettings.getLong("bluetooth_global_offset_seconds"))
@@ -77,6 +150,7 @@ object SetDeviceSettings {
         } catch (e: JSONException) {
             PersistentData.setUseAnonymizedHashing(false)
         }
+        EncryptionEngine.hashSettingsChanged()
 
         // Use GPS Fuzzing
         try {
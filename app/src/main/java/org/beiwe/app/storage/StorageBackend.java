@@ -0,0 +1,54 @@
+package org.beiwe.app.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**The storage that TextFileManager keeps its files on.
+ * Files are named by a stream and a file name, the stream is a DataStream name, an audio stream
+ * (see FileManifest) or the empty string for files of no known stream, such as the key file.  File
+ * names are unique across streams.
+ *
+ * The app uses InternalStorageBackend, the app's files directory laid out by StorageLayout.
+ * NioStorageBackend and MemoryStorageBackend exist so that the write path can be run, benchmarked
+ * and load tested on a desktop JVM, see TextFileManager.setStorageBackend(). */
+public interface StorageBackend {
+
+	/** An output stream to the end of a file that can be forced to storage. */
+	abstract class AppendStream extends OutputStream {
+		/** Forces everything written so far to storage, like FileChannel.force(false). */
+		public abstract void sync () throws IOException;
+	}
+
+	/** Opens a file for appending, creating it if it does not exist. */
+	AppendStream openAppend (String stream, String name) throws IOException;
+
+	/** Opens a file for appending through memory-mapped segments of segmentBytes, with its committed
+	 * length in the stream's MappedAppendStream.HEADER_FILE_NAME, see MappedAppendStream.  One file
+	 * per stream can be open this way.  A backend that cannot map files returns openAppend(). */
+	AppendStream openMappedAppend (String stream, String name, int segmentBytes) throws IOException;
+
+	/** Opens a file for reading.
+	 * @throws java.io.FileNotFoundException if it does not exist. */
+	InputStream openRead (String stream, String name) throws IOException;
+
+	/** @return the length of a file in bytes, -1 if it does not exist. */
+	long length (String stream, String name);
+
+	/** @return when a file was last written in milliseconds, 0 if it does not exist. */
+	long lastModified (String stream, String name);
+
+	/** @return whether the file existed and was deleted. */
+	boolean delete (String stream, String name);
+
+	/** Overwrites a file with zeros, forces that to storage and deletes the file.
+	 * @return whether the file existed and was deleted. */
+	boolean shred (String stream, String name);
+
+	/** Renames a file within its stream, replacing any file of the new name.
+	 * @return whether the file existed and was renamed. */
+	boolean rename (String stream, String name, String newName);
+
+	/** @return the names of the files of a stream, in no particular order. */
+	String[] list (String stream);
+}
@@ -0,0 +1,76 @@
+package org.beiwe.app.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**Keeps the app's data within its storage, as StoragePolicy defines it.
+ * The bytes of each stream come from the FileManifest, which tracks them as files are finished and
+ * deleted, so a check is a free space query and a few comparisons, and nothing more unless storage
+ * is low.  When it is low a check picks at most maxEvictionsPerCheck files to evict, so the work is
+ * spread over the checks that follow.  TextFileManager.enforceStorageBudget() does the eviction
+ * and the logging.
+ *
+ * Has no Android dependencies so that it can be run on a desktop JVM. */
+public class StorageBudget {
+
+	private static final Comparator<FileManifest.Entry> OLDEST_FIRST = new Comparator<FileManifest.Entry>() {
+		@Override
+		public int compare (FileManifest.Entry a, FileManifest.Entry b) {
+			return a.createdMillis < b.createdMillis ? -1 : (a.createdMillis == b.createdMillis ? 0 : 1);
+		}
+	};
+
+	private final StoragePolicy policy;
+	private final FileManifest manifest;
+	// read on the write path of the downsampled streams.
+	private volatile boolean low = false;
+
+	public StorageBudget (StoragePolicy policy, FileManifest manifest) {
+		this.policy = policy;
+		this.manifest = manifest;
+	}
+
+	/**Updates whether storage is low and picks the files to evict if it is.
+	 * @param freeBytes the free space on the device
+	 * @return the files to evict, lowest tier and oldest first, empty if there is nothing to do. */
+	public synchronized ArrayList<FileManifest.Entry> plan (long freeBytes) {
+		ArrayList<FileManifest.Entry> evictions = new ArrayList<FileManifest.Entry>();
+		long dataBytes = this.manifest.totalBytes();
+		if (!this.low && !this.policy.isLow(freeBytes, dataBytes)) {
+			return evictions;
+		}
+		long toFree = this.policy.bytesToFree(freeBytes, dataBytes);
+		this.low = toFree > 0;
+
+		for (String[] tier : this.policy.evictionTiers) {
+			if (toFree <= 0 || evictions.size() >= this.policy.maxEvictionsPerCheck) {
+				break;
+			}
+			// the oldest files of the tier, whichever stream they belong to.
+			ArrayList<FileManifest.Entry> candidates = new ArrayList<FileManifest.Entry>();
+			for (String stream : tier) {
+				candidates.addAll(this.manifest.oldest(stream, this.policy.maxEvictionsPerCheck - evictions.size()));
+			}
+			Collections.sort(candidates, OLDEST_FIRST);
+			for (FileManifest.Entry entry : candidates) {
+				if (toFree <= 0 || evictions.size() >= this.policy.maxEvictionsPerCheck) {
+					break;
+				}
+				evictions.add(entry);
+				toFree -= entry.size;
+			}
+		}
+		return evictions;
+	}
+
+	/** @return whether storage was low at the last check. */
+	public boolean isLow () {
+		return this.low;
+	}
+
+	/** @return 1 to keep every record of a stream, n to keep every n'th. */
+	public int downsampleFactor (DataStream stream) {
+		return (this.low && this.policy.downsamples(stream)) ? this.policy.downsampleFactor : 1;
+	}
+}
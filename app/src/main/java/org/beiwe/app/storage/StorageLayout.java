@@ -0,0 +1,74 @@
+package org.beiwe.app.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**Where files live on disk.
+ * Data files are kept in a directory per stream, data/[STREAM]/ under the app's files directory,
+ * so that no directory holds the whole backlog of files waiting for upload.  Files of no known
+ * stream (the key file, the file manifest, temporary audio files) stay at the top of the files
+ * directory, there are only a handful of them.
+ * A file's directory follows from its stream, and its stream follows from its name (see
+ * TextFileManager.getFile()), so file names stay unique across directories and the rest of the app
+ * refers to files by name as it always has.
+ *
+ * Has no Android dependencies so that it can be run on a desktop JVM. */
+public class StorageLayout {
+
+	public static final String DATA_DIRECTORY_NAME = "data";
+
+	private final File root;
+	private final File dataDirectory;
+	// the stream directories known to exist, so that opening a file does not check every time.
+	private final Set<String> existingDirectories = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** @param root the app's files directory. */
+	public StorageLayout (File root) {
+		this.root = root;
+		this.dataDirectory = new File(root, DATA_DIRECTORY_NAME);
+	}
+
+	/** @return the app's files directory, home of the files of no known stream. */
+	public File getRoot () {
+		return this.root;
+	}
+
+	/** @return the directory of a stream's files, the root for the empty stream. */
+	public File directoryOf (String stream) {
+		return (stream.length() == 0) ? this.root : new File(this.dataDirectory, stream);
+	}
+
+	/** @return where a file of a stream is, whether or not it exists. */
+	public File fileOf (String name, String stream) {
+		return new File(this.directoryOf(stream), name);
+	}
+
+	/** As fileOf(), and makes the stream's directory if it does not exist yet. */
+	public File fileForWriting (String name, String stream) throws IOException {
+		if (stream.length() > 0 && !this.existingDirectories.contains(stream)) {
+			File directory = this.directoryOf(stream);
+			if (!directory.mkdirs() && !directory.isDirectory()) {
+				throw new IOException("could not create " + directory.getPath());
+			}
+			this.existingDirectories.add(stream);
+		}
+		return this.fileOf(name, stream);
+	}
+
+	/** @return the stream directories that exist, lists the data directory. */
+	public File[] streamDirectories () {
+		File[] directories = this.dataDirectory.listFiles();
+		return (directories == null) ? new File[0] : directories;
+	}
+
+	/**Moves a file from the root into its stream's directory.  The move is a rename within one
+	 * file system, so the file is never half moved.
+	 * @return whether the file was moved. */
+	public boolean moveFromRoot (String name, String stream) throws IOException {
+		File flat = new File(this.root, name);
+		return stream.length() > 0 && flat.isFile() && flat.renameTo(this.fileForWriting(name, stream));
+	}
+}
@@ -0,0 +1,80 @@
+package org.beiwe.app.storage;
+
+import java.util.EnumSet;
+
+/**Decides how much storage the app's data may take, and what gives way when there is too little.
+ * Storage is low when the device's free space drops below lowFreeBytes, or when the finished data
+ * files (see FileManifest) pass maxDataBytes.  It stays low until there is targetFreeBytes free and
+ * the data files are back under maxDataBytes, so that we don't go back and forth on every check.
+ *
+ * While storage is low StorageBudget evicts finished files, a few per check, in tiers: the oldest
+ * files of the first tier go first, and a tier is only touched once the tiers before it are empty.
+ * Survey answers and voice recordings are in no tier and are never evicted, nor are files of no
+ * known stream.  Finished files are encrypted with a key we cannot read, so they cannot be thinned
+ * out after the fact; instead, while storage is low, the streams in downsampledStreams keep only
+ * every downsampleFactor'th record they are given. */
+public class StoragePolicy {
+
+	// values of zero or below disable the given threshold.
+	final long lowFreeBytes;
+	final long targetFreeBytes;
+	final long maxDataBytes;
+	final int maxEvictionsPerCheck;
+	final int downsampleFactor;
+	final String[][] evictionTiers;
+	private final EnumSet<DataStream> downsampledStreams;
+
+	private static final String[][] STANDARD_EVICTION_TIERS = {
+		{ DataStream.DEBUG_LOG.name() },
+		{ DataStream.ACCELEROMETER.name(), DataStream.GYROSCOPE.name(), FileManifest.AMBIENT_AUDIO_STREAM },
+		{ DataStream.ACCELEROMETER_SUMMARY.name(), DataStream.GYROSCOPE_SUMMARY.name(), DataStream.BLUETOOTH_LOG.name(),
+			DataStream.WIFI_LOG.name(), DataStream.POWER_STATE.name(), DataStream.GPS.name() },
+		{ DataStream.CALL_LOG.name(), DataStream.TEXTS_LOG.name(), DataStream.SURVEY_TIMINGS.name() },
+	};
+
+	private StoragePolicy (long lowFreeBytes, long targetFreeBytes, long maxDataBytes, int maxEvictionsPerCheck, int downsampleFactor, String[][] evictionTiers, EnumSet<DataStream> downsampledStreams) {
+		for (String[] tier : evictionTiers) {
+			for (String stream : tier) {
+				if (stream.equals(DataStream.SURVEY_ANSWERS.name()) || stream.equals(FileManifest.AUDIO_STREAM)) {
+					throw new IllegalArgumentException("survey answers and voice recordings must never be evicted.");
+				}
+			}
+		}
+		this.lowFreeBytes = lowFreeBytes;
+		this.targetFreeBytes = Math.max(lowFreeBytes, targetFreeBytes);
+		this.maxDataBytes = maxDataBytes;
+		this.maxEvictionsPerCheck = maxEvictionsPerCheck;
+		this.downsampleFactor = downsampleFactor;
+		this.evictionTiers = evictionTiers;
+		this.downsampledStreams = downsampledStreams;
+	}
+
+	/** The standard tiers and downsampling with the given thresholds, 0 disables a threshold.  Raw
+	 * motion data is downsampled by 4 while storage is low.  The app reads the thresholds from the
+	 * study's device settings, by default storage is low under 256MB free, until there is 512MB
+	 * free, and the data files have no limit of their own.  With both lowFreeBytes and maxDataBytes
+	 * at 0 storage is never low and nothing is evicted. */
+	public static StoragePolicy limits (long lowFreeBytes, long targetFreeBytes, long maxDataBytes) {
+		return new StoragePolicy(lowFreeBytes, targetFreeBytes, maxDataBytes, 32, 4, STANDARD_EVICTION_TIERS,
+				EnumSet.of(DataStream.ACCELEROMETER, DataStream.GYROSCOPE));
+	}
+
+	/** @return whether this many bytes free and this many bytes of finished data files is low. */
+	public boolean isLow (long freeBytes, long dataBytes) {
+		return (this.lowFreeBytes > 0 && freeBytes < this.lowFreeBytes) || (this.maxDataBytes > 0 && dataBytes > this.maxDataBytes);
+	}
+
+	/** @return the bytes that have to go before storage is no longer low, zero or less if none. */
+	public long bytesToFree (long freeBytes, long dataBytes) {
+		long toFree = (this.targetFreeBytes > 0) ? this.targetFreeBytes - freeBytes : 0;
+		if (this.maxDataBytes > 0) {
+			toFree = Math.max(toFree, dataBytes - this.maxDataBytes);
+		}
+		return toFree;
+	}
+
+	/** @return whether a stream is downsampled while storage is low. */
+	public boolean downsamples (DataStream stream) {
+		return this.downsampleFactor > 1 && this.downsampledStreams.contains(stream);
+	}
+}
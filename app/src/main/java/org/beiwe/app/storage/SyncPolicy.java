@@ -0,0 +1,48 @@
+package org.beiwe.app.storage;
+
+/**Decides when a TextFileManager forces its file to storage with FileChannel.force().
+ * A flush only hands the data to the kernel, it can still be lost if the device loses power or the
+ * kernel crashes before the page cache is written back, and closing a stream does not sync it either.
+ * Syncing is expensive, so flushed data is group-committed: the file is synced once enough bytes
+ * have been flushed since the last sync, or enough time has passed, trading the number of syncs
+ * against the amount of data at risk.
+ * Every file is also synced when it is closed or rotated, and when TextFileManager.syncAll() is
+ * called, as long as something was written since its last sync.
+ * Thresholds are only evaluated when data is flushed. */
+public class SyncPolicy {
+
+	// values of zero or below disable the given threshold.
+	private final long maxUnsyncedBytes;
+	private final long maxUnsyncedMillis;
+
+	private SyncPolicy (long maxUnsyncedBytes, long maxUnsyncedMillis) {
+		this.maxUnsyncedBytes = maxUnsyncedBytes;
+		this.maxUnsyncedMillis = maxUnsyncedMillis;
+	}
+
+	/** Only sync when the file is closed or rotated, or on TextFileManager.syncAll(). */
+	public static SyncPolicy onClose () {
+		return new SyncPolicy(0, 0);
+	}
+
+	/** Sync on the first flush that happens at least maxUnsyncedMillis after the last sync. */
+	public static SyncPolicy byTime (long maxUnsyncedMillis) {
+		return new SyncPolicy(0, maxUnsyncedMillis);
+	}
+
+	/** Sync on whichever threshold is crossed first. */
+	public static SyncPolicy byBytesOrTime (long maxUnsyncedBytes, long maxUnsyncedMillis) {
+		return new SyncPolicy(maxUnsyncedBytes, maxUnsyncedMillis);
+	}
+
+	/** @return whether a file with this many flushed but unsynced bytes, last synced at lastSyncMillis, should be synced now. */
+	public boolean shouldSync (long unsyncedBytes, long lastSyncMillis, long nowMillis) {
+		if (unsyncedBytes <= 0) {
+			return false;
+		}
+		if (maxUnsyncedBytes > 0 && unsyncedBytes >= maxUnsyncedBytes) {
+			return true;
+		}
+		return maxUnsyncedMillis > 0 && nowMillis - lastSyncMillis >= maxUnsyncedMillis;
+	}
+}
@@ -1,12 +1,11 @@
 package org.beiwe.app.storage;
 
-import static org.beiwe.app.listeners.AmbientAudioListenerKt.ambientTempAudioFilename;
-
 import android.content.Context;
 import android.util.Log;
 
 import org.beiwe.app.BuildConfig;
 import org.beiwe.app.CrashHandler;
+import org.beiwe.app.DeviceInfo;
 import org.beiwe.app.listeners.AccelerometerListener;
 import org.beiwe.app.listeners.AmbientAudioListener;
 import org.beiwe.app.listeners.BluetoothListener;
@@ -16,21 +15,34 @@ import org.beiwe.app.listeners.GyroscopeListener;
 import org.beiwe.app.listeners.PowerStateListener;
 import org.beiwe.app.listeners.SmsSentLogger;
 import org.beiwe.app.listeners.WifiListener;
-import org.beiwe.app.survey.AudioRecorderActivity;
-import org.beiwe.app.survey.AudioRecorderEnhancedActivity;
 import org.beiwe.app.survey.SurveyAnswersRecorder;
 import org.beiwe.app.survey.SurveyTimingsRecorder;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.security.InvalidKeyException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
 
 /**The (Text)FileManager.
  * The FileManager is implemented as a Singleton.  More accurately the static object contains several
@@ -40,104 +52,125 @@ import java.util.Set;
  * The Reason for this construction is to construct a file write system where there is only ever a
  * single pointer to each file type, and that these files are never overwritten, written to asynchronously,
  * or left accidentally empty.
- * The files handled here are the GPSFile, accelFile, gyroFile, powerStateLog, audioSurveyInfo, callLog, textsLog, surveyTimings,
- * currentDailyQuestions, currentWeeklyQuestions, deviceData, and debugLogFile.
+ * The files handled here are listed in DataStream, the instances are kept in a registry indexed by DataStream.
  * On construction you provide a boolean flag ("persistent").  Persistent files do not get overwritten on application start.
- * To access a file use the following construction: TextFileManager.getXXXFile()
+ * Each file has a RotationPolicy, streams retire their own files on their write path when the file
+ * gets too big or too old, rotateExpiredFiles() retires the too old files of streams that have gone quiet.
+ * To access a file use the following construction: TextFileManager.getXXXFile(), or TextFileManager.get(DataStream.XXX)
+ * Code that runs before initialize() can use addAvailabilityListener() instead of waiting in a getter.
  * @author Eli */
 public class TextFileManager {
 	
 	//Delimiter and newline strings
 	public static final String DELIMITER = ",";
 	
-	//Static instances of the individual FileManager objects.
-	private static TextFileManager GPSFile;
-	private static TextFileManager accelFile;
-	private static TextFileManager gyroFile;
-	private static TextFileManager powerStateLog;
-	private static TextFileManager callLog;
-	private static TextFileManager textsLog;
-	private static TextFileManager bluetoothLog;
-	private static TextFileManager debugLogFile;
-	
-	private static TextFileManager surveyTimings;
-	private static TextFileManager surveyAnswers;
-	private static TextFileManager wifiLog;
-
-	private static TextFileManager keyFile;
+	// files are written with String.getBytes(), which is utf-8 on Android.
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
 	
-	//"global" static variables
-	private static Context appContext;
-	private static int GETTER_TIMEOUT = 50; //value is in milliseconds
-	private static String getter_error = "Tried to access %s before calling TextFileManager.start().";
-	private static String broken_getter_error = "Tried to access %s before calling TextFileManager.start(), but the timeout failed.";
+	//Static instances of the individual FileManager objects, indexed by DataStream ordinal, null before initialize().
+	// The getters run on every write, so reading an instance is a single lock free array access.
+	private static final AtomicReferenceArray<TextFileManager> streams = new AtomicReferenceArray<TextFileManager>(DataStream.values().length);
 	
-	private static void throwGetterError (String sourceName) {
-		throw new NullPointerException(String.format(getter_error, sourceName));
+	/** Notified when initialize() has (re)created the TextFileManager of a stream. */
+	public interface AvailabilityListener {
+		void onStreamAvailable(DataStream stream, TextFileManager file);
 	}
+	private static final CopyOnWriteArrayList<AvailabilityListener> availabilityListeners = new CopyOnWriteArrayList<AvailabilityListener>();
+	// getters called before initialize() wait on this, initialize() notifies it.
+	private static final Object availabilityLock = new Object();
 	
-	private static void throwTimeoutBrokeGetterError (String sourceName) {
-		throw new NullPointerException(String.format(broken_getter_error, sourceName));
-	}
+	// The motion sensors write hundreds of lines per second, they flush in batches instead of per line.
+	private static final FlushPolicy MOTION_FLUSH_POLICY = FlushPolicy.byBytesOrTime(32 * 1024, 10000);
+	// When the study enables it the motion sensors are stored in binary, records are about 13 bytes.
+	private static final FileFormat MOTION_BINARY_FILE_FORMAT = FileFormat.motionBinaryBlocks(500, 8192);
+	// When the study enables compression wifi scans are written as blocks, one per file, so that they can be compressed.
+	private static final FileFormat WIFI_BLOCK_FILE_FORMAT = FileFormat.blocks(100, 64 * 1024);
+	// Compression levels, from a desktop benchmark on synthetic data: level 1 gets motion rows to about
+	// 43% of their file size for ~10ms of cpu per MB, level 6 gets 40% for twice the cpu.  The
+	// summary and wifi streams are small, they get level 6.
+	private static final int MOTION_COMPRESSION_LEVEL = 1;
+	private static final int SMALL_STREAM_COMPRESSION_LEVEL = 6;
+	// Motion files are also retired at 1MB so that a long recording session does not make one huge upload.
+	private static final RotationPolicy MOTION_ROTATION_POLICY = RotationPolicy.studyPeriod(1024 * 1024);
+	// Everything else that records continuously gets a new file every create_new_data_files_frequency.
+	private static final RotationPolicy PERIODIC_ROTATION_POLICY = RotationPolicy.studyPeriod(0);
+	// Continuously recorded files are synced to storage at most this far behind the flushed data,
+	// files written in one go are synced when they are closed.
+	private static final SyncPolicy MOTION_SYNC_POLICY = SyncPolicy.byBytesOrTime(256 * 1024, 30 * 1000);
+	private static final SyncPolicy PERIODIC_SYNC_POLICY = SyncPolicy.byTime(60 * 1000);
+	// When the study enables it the raw motion streams are written through memory-mapped segments,
+	// see MappedAppendStream.  A quarter of a rotated file, so at most that much is allocated and unused.
+	private static final int MOTION_SEGMENT_BYTES = 256 * 1024;
 	
-	//public static getters.
-	// These are all simple and nearly identical, so they are squished into one-liners.
-	// checkAvailableWithTimeout throws an error and the app restarts if the TextFile is unavailable.
-	public static TextFileManager getAccelFile () {
-		checkAvailableWithTimeout("accelFile");
-		return accelFile;
-	}
+	// The study's new data file frequency, read on the write path, refreshed by rotateExpiredFiles().
+	private static volatile long studyFileAgeMillis = 0;
 	
-	public static TextFileManager getGyroFile () {
-		checkAvailableWithTimeout("gyroFile");
-		return gyroFile;
-	}
+	// The data files this process has an open stream to, mirrored to PersistentData so that the next
+	// process knows which files may have been torn.  Has its own lock because it is updated while
+	// holding an instance's lock, and initialize() takes instance locks while holding the class lock.
+	private static final LinkedHashSet<String> openFiles = new LinkedHashSet<String>();
+	private static final Object openFilesLock = new Object();
+	private static boolean recoveredOpenFiles = false;
 	
-	public static TextFileManager getGPSFile () {
-		checkAvailableWithTimeout("GPSFile");
-		return GPSFile;
-	}
+	// Where files are kept, see StorageBackend.  The layout is that of the app's internal storage,
+	// it is null when another backend was set for a desktop benchmark.
+	private static volatile StorageBackend backend = null;
+	private static volatile StorageLayout layout = null;
 	
-	public static TextFileManager getPowerStateFile () {
-		checkAvailableWithTimeout("powerStateLog");
-		return powerStateLog;
-	}
+	// The finished files waiting for upload, loaded once per process.
+	private static volatile FileManifest manifest = null;
 	
-	public static TextFileManager getCallLogFile () {
-		checkAvailableWithTimeout("callLog");
-		return callLog;
-	}
+	// What gives way when storage is low, see StoragePolicy.  The study sets the thresholds, the
+	// budget is made again by every initialize() so that a change applies from the next restart.
+	private static volatile StorageBudget storageBudget = null;
+	private static final AtomicBoolean enforcingStorageBudget = new AtomicBoolean(false);
 	
-	public static TextFileManager getTextsLogFile () {
-		checkAvailableWithTimeout("textsLog");
-		return textsLog;
-	}
+	// Small finished files are packed into bundles before an upload, when the study allows it, see BundlePolicy.
+	private static final BundlePolicy BUNDLE_POLICY = BundlePolicy.standard();
+	private static volatile FileBundler fileBundler = null;
 	
-	public static TextFileManager getBluetoothLogFile () {
-		checkAvailableWithTimeout("bluetoothLog");
-		return bluetoothLog;
-	}
+	// Files are deleted on a low priority thread, see DeletionQueue.
+	private static volatile DeletionQueue deletionQueue = null;
 	
-	public static TextFileManager getWifiLogFile () {
-		checkAvailableWithTimeout("wifiLog");
-		return wifiLog;
-	}
+	//"global" static variables
+	private static Context appContext;
+	private static int GETTER_TIMEOUT = 2000; //value is in milliseconds
+	private static String getter_error = "Tried to access %s before calling TextFileManager.start().";
+	private static String broken_getter_error = "Tried to access %s before calling TextFileManager.start(), but the timeout failed.";
 	
-	public static TextFileManager getSurveyTimingsFile () {
-		checkAvailableWithTimeout("surveyTimings");
-		return surveyTimings;
+	/** @return the Context given to initialize(), for the crash logs of classes that write through
+	 * a TextFileManager without a Context of their own, e.g. AsyncStreamWriter. */
+	static Context getAppContext () {
+		return appContext;
 	}
 	
-	public static TextFileManager getSurveyAnswersFile () {
-		checkAvailableWithTimeout("surveyAnswers");
-		return surveyAnswers;
+	private static void throwGetterError (String sourceName) {
+		throw new NullPointerException(String.format(getter_error, sourceName));
 	}
 	
-	public static TextFileManager getDebugLogFile () {  // can't be private because it's used in the debug activity
-		checkAvailableWithTimeout("debugLogFile");
-		return debugLogFile;
+	private static void throwTimeoutBrokeGetterError (String sourceName) {
+		throw new NullPointerException(String.format(broken_getter_error, sourceName));
 	}
 	
+	//public static getters.
+	// These are all simple and nearly identical, so they are squished into one-liners.
+	// get() waits for initialize() and throws an error (and the app restarts) if the TextFile is unavailable.
+	public static TextFileManager getAccelFile () { return get(DataStream.ACCELEROMETER); }
+	public static TextFileManager getGyroFile () { return get(DataStream.GYROSCOPE); }
+	public static TextFileManager getAccelSummaryFile () { return get(DataStream.ACCELEROMETER_SUMMARY); }
+	public static TextFileManager getGyroSummaryFile () { return get(DataStream.GYROSCOPE_SUMMARY); }
+	public static TextFileManager getGPSFile () { return get(DataStream.GPS); }
+	public static TextFileManager getPowerStateFile () { return get(DataStream.POWER_STATE); }
+	public static TextFileManager getCallLogFile () { return get(DataStream.CALL_LOG); }
+	public static TextFileManager getTextsLogFile () { return get(DataStream.TEXTS_LOG); }
+	public static TextFileManager getBluetoothLogFile () { return get(DataStream.BLUETOOTH_LOG); }
+	public static TextFileManager getWifiLogFile () { return get(DataStream.WIFI_LOG); }
+	public static TextFileManager getSurveyTimingsFile () { return get(DataStream.SURVEY_TIMINGS); }
+	public static TextFileManager getSurveyAnswersFile () { return get(DataStream.SURVEY_ANSWERS); }
+	public static TextFileManager getKeyFile () { return get(DataStream.KEY_FILE); }
+	public static TextFileManager getDebugLogFile () { return get(DataStream.DEBUG_LOG); }  // can't be private because it's used in the debug activity
+	
 	/** This correctly formats a debug log statement with a timecode, getDebugLogFile should
 	 * be made private and all usages should be converted */
 	public static void writeDebugLogStatement (String message) {
@@ -153,73 +186,70 @@ public class TextFileManager {
 		);
 	}
 	
-	public static TextFileManager getKeyFile () {
-		checkAvailableWithTimeout("keyFile");
-		return keyFile;
+	/** @return the TextFileManager of the stream.  If initialize() has not run yet we wait up to
+	 * GETTER_TIMEOUT milliseconds for it, on a regular case error we throw the getter error, if the
+	 * wait is interrupted we throw the broken timeout error. */
+	public static TextFileManager get (DataStream stream) {
+		TextFileManager file = streams.get(stream.ordinal());
+		if (file != null) {
+			return file;
+		}
+		return awaitAvailable(stream);
 	}
 	
-	/** Checks the availability of a given TextFile, returns true if available, false otherwise. */
-	private static Boolean checkTextFileAvailable (String thing) {
-		//the check for availability is whether the appropriate variable is allocated
-		if (thing.equals("accelFile")) {
-			return (accelFile != null);
-		}
-		if (thing.equals("gyroFile")) {
-			return (gyroFile != null);
-		}
-		if (thing.equals("GPSFile")) {
-			return (GPSFile != null);
-		}
-		if (thing.equals("powerStateLog")) {
-			return (powerStateLog != null);
-		}
-		if (thing.equals("callLog")) {
-			return (callLog != null);
-		}
-		if (thing.equals("textsLog")) {
-			return (textsLog != null);
-		}
-		if (thing.equals("bluetoothLog")) {
-			return (bluetoothLog != null);
-		}
-		if (thing.equals("wifiLog")) {
-			return (wifiLog != null);
-		}
-		if (thing.equals("surveyTimings")) {
-			return (surveyTimings != null);
-		}
-		if (thing.equals("surveyAnswers")) {
-			return (surveyAnswers != null);
-		}
-		if (thing.equals("debugLogFile")) {
-			return (debugLogFile != null);
+	private static TextFileManager awaitAvailable (DataStream stream) {
+		// The Main Service should be getting restarted as we speak.  From the documentation:
+		// No response to an input event (such as key press or screen touch events) within 5 seconds.
+		// A BroadcastReceiver hasn't finished executing within 10 seconds.
+		// https://developer.android.com/training/articles/perf-anr
+		// As of: 2018-04-25
+		long deadline = System.currentTimeMillis() + GETTER_TIMEOUT;
+		synchronized (availabilityLock) {
+			TextFileManager file;
+			while ((file = streams.get(stream.ordinal())) == null) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throwGetterError(stream.name());
+				}
+				try {
+					availabilityLock.wait(remaining);
+				} catch (InterruptedException e) {
+					throwTimeoutBrokeGetterError(stream.name());
+				}
+			}
+			return file;
 		}
-		if (thing.equals("keyFile")) {
-			return (keyFile != null);
+	}
+	
+	/** Registers a listener that is called every time initialize() (re)creates a stream's
+	 * TextFileManager, on the thread that called initialize().  If the streams already exist the
+	 * listener is called right away for each of them. */
+	public static void addAvailabilityListener (AvailabilityListener listener) {
+		availabilityListeners.add(listener);
+		for (DataStream stream : DataStream.values()) {
+			TextFileManager file = streams.get(stream.ordinal());
+			if (file != null) {
+				listener.onStreamAvailable(stream, file);
+			}
 		}
-		throw new NullPointerException(String.format("invalid key %s provided for checking available text file.", thing));
 	}
 	
-	/** We check for the availability of the given TextFile, if it fails to exist we wait GETTER_TIMEOUT milliseconds and then try again.
-	 * On a regular case error we throw the getter error, if the sleep operation breaks we throw the broken timeout error. */
-	private static void checkAvailableWithTimeout (String textFile) {
-		if (!checkTextFileAvailable(textFile)) {
-			try {
-				// The Main Service should be getting restarted as we speak
-				for (int x = 0; x < 40; x++) {
-					// previously, flat 75 ms. Now 50ms over 40 iterations. If this still fails then we have bigger problems
-					Thread.sleep(GETTER_TIMEOUT);
-					
-					// From the documentation
-					// No response to an input event (such as key press or screen touch events) within 5 seconds.
-					// A BroadcastReceiver hasn't finished executing within 10 seconds.
-					// https://developer.android.com/training/articles/perf-anr
-					// As of: 2018-04-25
-					if (checkTextFileAvailable(textFile)) return;
-				}
-				throwGetterError(textFile);
-			} catch (InterruptedException e) {
-				throwTimeoutBrokeGetterError(textFile);
+	public static void removeAvailabilityListener (AvailabilityListener listener) {
+		availabilityListeners.remove(listener);
+	}
+	
+	/** Puts the instances in the registry, then wakes up the getters waiting for them and calls the listeners.
+	 * Listeners are called after all instances are in place, so that they can use any getter. */
+	private static void register (TextFileManager[] files) {
+		for (int i = 0; i < files.length; i++) {
+			streams.set(i, files[i]);
+		}
+		synchronized (availabilityLock) {
+			availabilityLock.notifyAll();
+		}
+		for (AvailabilityListener listener : availabilityListeners) {
+			for (DataStream stream : DataStream.values()) {
+				listener.onStreamAvailable(stream, files[stream.ordinal()]);
 			}
 		}
 	}
@@ -232,6 +262,42 @@ public class TextFileManager {
 	private Boolean encrypted = null;
 	private Boolean isDummy = true;
 	private byte[] AESKey = null;
+	private FlushPolicy flushPolicy = null;
+	private FileFormat format = null;
+	private RotationPolicy rotationPolicy = null;
+	private SyncPolicy syncPolicy = null;
+	
+	// What has gone into fileName so far, for the rotation policy.
+	private long bytesInFile = 0;
+	private int recordsInFile = 0;
+	private long framesInFile = 0;  // of a container format file, the index of the next frame
+	private long fileOpenedMillis = 0;
+	private final CRC32 checksum = new CRC32();  // of the bytes written to the current file
+	private DataStream stream = null;  // set by initialize()
+	private int downsampleCounter = 0;
+	private int mappedSegmentBytes = 0;  // set by initialize(), 0 writes through a buffered stream.
+	
+	// Block format files collect lines here until the block is full, then encrypt them together.
+	private ByteArrayOutputStream pendingBlock = null;
+	private int pendingLines = 0;
+	// Binary motion files encode records with this, its state is reset for every block.
+	private MotionBinaryCodec motionCodec = null;
+	private byte[] recordBuffer = null;
+	// Compressed files compress each block with this before encrypting it.  Deflaters hold native
+	// memory, this one is released when the instance is garbage collected: writer threads may still
+	// hold an instance that initialize() has replaced, so it is never ended explicitly.
+	private Deflater deflater = null;
+	private ByteArrayOutputStream compressedBlock = null;
+	private byte[] deflateBuffer = null;
+	
+	// The open stream for fileName, lazily opened on first write and closed whenever fileName changes.
+	private OutputStream outStream = null;
+	private StorageBackend.AppendStream fileStream = null;  // the stream under outStream, for syncing.
+	private int unflushedBytes = 0;
+	private long lastFlushMillis = 0;
+	// bytes that have been flushed to the kernel but not synced to storage.
+	private long unsyncedBytes = 0;
+	private long lastSyncMillis = 0;
 	
 	/*###############################################################################
 	########################### Class Initialization ################################
@@ -242,48 +308,382 @@ public class TextFileManager {
 	 * Initializes all TextFileManager object instances.  Initialization is idempotent.
 	 * @param appContext a Context, provided by the app. */
 	public static synchronized void initialize (Context appContext) {
+		if (backend == null) {
+			layout = new StorageLayout(appContext.getFilesDir());
+			backend = new InternalStorageBackend(layout);
+		}
+		// If we are being re-initialized the old instances may still hold open, buffered streams.
+		for (TextFileManager file : allInstances()) {
+			if (file != null) {
+				file.closeStream();
+			}
+		}
+		
+		studyFileAgeMillis = PersistentData.getCreateNewDataFilesFrequency();
+		// Servers only read the block format once the study turns it on, until then every stream is legacy.
+		// With it the motion streams encrypt blocks of rows instead of individual rows, rows are about
+		// 80 bytes and the study sets the block size.  Compressed blocks need the block format, so
+		// studies that compress get it either way.
+		FileFormat motionBlockFileFormat = FileFormat.blocks(PersistentData.getBlockFormatMaxLines(), PersistentData.getBlockFormatMaxBytes());
+		boolean useBlockFormat = PersistentData.getUseBlockFileFormat() || PersistentData.getCompressDataFiles();
+		FileFormat motionFileFormat = useBlockFormat ? motionBlockFileFormat : FileFormat.legacy();
+		if (PersistentData.getUseBinaryMotionFormat()) {
+			motionFileFormat = MOTION_BINARY_FILE_FORMAT;
+		}
+		FileFormat summaryFileFormat = useBlockFormat ? motionBlockFileFormat : FileFormat.legacy();
+		FileFormat wifiFileFormat = FileFormat.legacy();
+		FileFormat lineFileFormat = FileFormat.legacy();
+		if (PersistentData.getCompressDataFiles()) {
+			motionFileFormat = motionFileFormat.compressed(MOTION_COMPRESSION_LEVEL);
+			summaryFileFormat = summaryFileFormat.compressed(SMALL_STREAM_COMPRESSION_LEVEL);
+			wifiFileFormat = WIFI_BLOCK_FILE_FORMAT.compressed(SMALL_STREAM_COMPRESSION_LEVEL);
+		}
+		// Lines carry a crc frame only in the opt-in block format, a server that reads legacy files
+		// splits every line on its one ':'.  Container files replace these frames with their own.
+		if (PersistentData.getUseBlockFileFormat()) {
+			motionFileFormat = motionFileFormat.framed();
+			summaryFileFormat = summaryFileFormat.framed();
+			if (!wifiFileFormat.isLegacy()) {
+				wifiFileFormat = wifiFileFormat.framed();
+			}
+		}
+		// Studies whose server reads the binary container format get it for every encrypted stream.
+		if (PersistentData.getUseGcmContainerFormat()) {
+			motionFileFormat = motionFileFormat.inContainer();
+			summaryFileFormat = summaryFileFormat.inContainer();
+			wifiFileFormat = wifiFileFormat.inContainer();
+			lineFileFormat = lineFileFormat.inContainer();
+		}
+		// Studies with a motion aggregation window get per-window summaries instead of the raw samples.
+		boolean aggregateMotion = PersistentData.getMotionAggregationWindow() > 0;
+		TextFileManager[] files = new TextFileManager[DataStream.values().length];
+		
 		//the key file for encryption (it is persistent and never written to)
-		keyFile = new TextFileManager(
-			appContext, "keyFile", "", true, true, false, false
+		files[DataStream.KEY_FILE.ordinal()] = new TextFileManager(
+			appContext, "keyFile", "", true, true, false, false, FlushPolicy.everyWrite(), FileFormat.legacy(), RotationPolicy.never(), SyncPolicy.onClose()
 		);
 		
 		//
 		// The debug file is not persistent, so that we can upload it to the server associated with a user, otherwise it has the name "logfile.txt" and fails to upload.
-		debugLogFile = new TextFileManager(
-			appContext, "logFile", "THIS LINE IS A LOG FILE HEADER", false, false, true, false
+		files[DataStream.DEBUG_LOG.ordinal()] = new TextFileManager(
+			appContext, "logFile", "THIS LINE IS A LOG FILE HEADER", false, false, true, false, FlushPolicy.everyWrite(), lineFileFormat, PERIODIC_ROTATION_POLICY, PERIODIC_SYNC_POLICY
 		);
 		// Regularly/periodically-created files
-		GPSFile = new TextFileManager(
-			appContext, "gps", GPSListener.header, false, false, true, !PersistentData.getGpsEnabled()
+		files[DataStream.GPS.ordinal()] = new TextFileManager(
+			appContext, "gps", GPSListener.header, false, false, true, !PersistentData.getGpsEnabled(), FlushPolicy.everyWrite(), lineFileFormat, PERIODIC_ROTATION_POLICY, PERIODIC_SYNC_POLICY
+		);
+		files[DataStream.ACCELEROMETER.ordinal()] = new TextFileManager(
+			appContext, "accel", AccelerometerListener.header, false, false, true, !PersistentData.getAccelerometerEnabled() || aggregateMotion, MOTION_FLUSH_POLICY, motionFileFormat, MOTION_ROTATION_POLICY, MOTION_SYNC_POLICY
 		);
-		accelFile = new TextFileManager(
-			appContext, "accel", AccelerometerListener.header, false, false, true, !PersistentData.getAccelerometerEnabled()
+		files[DataStream.GYROSCOPE.ordinal()] = new TextFileManager(
+			appContext, "gyro", GyroscopeListener.header, false, false, true, !PersistentData.getGyroscopeEnabled() || aggregateMotion, MOTION_FLUSH_POLICY, motionFileFormat, MOTION_ROTATION_POLICY, MOTION_SYNC_POLICY
 		);
-		gyroFile = new TextFileManager(
-			appContext, "gyro", GyroscopeListener.header, false, false, true, !PersistentData.getGyroscopeEnabled()
+		files[DataStream.ACCELEROMETER_SUMMARY.ordinal()] = new TextFileManager(
+			appContext, "accelSummary", WindowAggregator.HEADER, false, false, true, !PersistentData.getAccelerometerEnabled() || !aggregateMotion, MOTION_FLUSH_POLICY, summaryFileFormat, MOTION_ROTATION_POLICY, MOTION_SYNC_POLICY
 		);
-		textsLog = new TextFileManager(
-			appContext, "textsLog", SmsSentLogger.header, false, false, true, !PersistentData.getTextsEnabled()
+		files[DataStream.GYROSCOPE_SUMMARY.ordinal()] = new TextFileManager(
+			appContext, "gyroSummary", WindowAggregator.HEADER, false, false, true, !PersistentData.getGyroscopeEnabled() || !aggregateMotion, MOTION_FLUSH_POLICY, summaryFileFormat, MOTION_ROTATION_POLICY, MOTION_SYNC_POLICY
 		);
-		callLog = new TextFileManager(
-			appContext, "callLog", CallLogger.header, false, false, true, !PersistentData.getCallsEnabled()
+		files[DataStream.TEXTS_LOG.ordinal()] = new TextFileManager(
+			appContext, "textsLog", SmsSentLogger.header, false, false, true, !PersistentData.getTextsEnabled(), FlushPolicy.everyWrite(), lineFileFormat, PERIODIC_ROTATION_POLICY, PERIODIC_SYNC_POLICY
 		);
-		powerStateLog = new TextFileManager(
-			appContext, "powerState", PowerStateListener.header, false, false, true, !PersistentData.getPowerStateEnabled()
+		files[DataStream.CALL_LOG.ordinal()] = new TextFileManager(
+			appContext, "callLog", CallLogger.header, false, false, true, !PersistentData.getCallsEnabled(), FlushPolicy.everyWrite(), lineFileFormat, PERIODIC_ROTATION_POLICY, PERIODIC_SYNC_POLICY
 		);
-		bluetoothLog = new TextFileManager(
-			appContext, "bluetoothLog", BluetoothListener.header, false, false, true, !PersistentData.getBluetoothEnabled()
+		files[DataStream.POWER_STATE.ordinal()] = new TextFileManager(
+			appContext, "powerState", PowerStateListener.header, false, false, true, !PersistentData.getPowerStateEnabled(), FlushPolicy.everyWrite(), lineFileFormat, PERIODIC_ROTATION_POLICY, PERIODIC_SYNC_POLICY
+		);
+		files[DataStream.BLUETOOTH_LOG.ordinal()] = new TextFileManager(
+			appContext, "bluetoothLog", BluetoothListener.header, false, false, true, !PersistentData.getBluetoothEnabled(), FlushPolicy.everyWrite(), lineFileFormat, PERIODIC_ROTATION_POLICY, PERIODIC_SYNC_POLICY
 		);
 		// Files created on specific events/written to in one go.
-		surveyTimings = new TextFileManager(
-			appContext, "surveyTimings_", SurveyTimingsRecorder.header, false, false, true, false
+		files[DataStream.SURVEY_TIMINGS.ordinal()] = new TextFileManager(
+			appContext, "surveyTimings_", SurveyTimingsRecorder.header, false, false, true, false, FlushPolicy.everyWrite(), lineFileFormat, RotationPolicy.never(), SyncPolicy.onClose()
 		);
-		surveyAnswers = new TextFileManager(
-			appContext, "surveyAnswers_", SurveyAnswersRecorder.header, false, false, true, false
+		files[DataStream.SURVEY_ANSWERS.ordinal()] = new TextFileManager(
+			appContext, "surveyAnswers_", SurveyAnswersRecorder.header, false, false, true, false, FlushPolicy.everyWrite(), lineFileFormat, RotationPolicy.never(), SyncPolicy.onClose()
 		);
-		wifiLog = new TextFileManager(
-			appContext, "wifiLog", WifiListener.header, false, false, true, !PersistentData.getWifiEnabled()
+		files[DataStream.WIFI_LOG.ordinal()] = new TextFileManager(
+			appContext, "wifiLog", WifiListener.header, false, false, true, !PersistentData.getWifiEnabled(), FlushPolicy.everyWrite(), wifiFileFormat, RotationPolicy.everyRecord(), SyncPolicy.onClose()
 		);
+		
+		for (DataStream stream : DataStream.values()) {
+			if (files[stream.ordinal()] == null) {
+				throw new NullPointerException("TextFileManager.initialize() does not create a file for " + stream.name());
+			}
+			files[stream.ordinal()].stream = stream;
+		}
+		if (PersistentData.getUseMappedMotionFiles()) {
+			files[DataStream.ACCELEROMETER.ordinal()].mappedSegmentBytes = MOTION_SEGMENT_BYTES;
+			files[DataStream.GYROSCOPE.ordinal()].mappedSegmentBytes = MOTION_SEGMENT_BYTES;
+		}
+		
+		// The first time in this process: move data files left at the top of the files directory into
+		// their stream directories, repair the files the previous process died with, before we open
+		// any (only the key file is open at this point), and load the index of finished files.
+		String migrationReport = null;
+		String recoveryReport = null;
+		String deletionReport = null;
+		if (!recoveredOpenFiles) {
+			recoveredOpenFiles = true;
+			// on another backend the manifest is kept in memory, and there is nothing to migrate or recover.
+			FileManifest loadedManifest = new FileManifest((layout == null) ? null : layout.fileOf(FileManifest.MANIFEST_FILE_NAME, ""), backend);
+			if (layout != null) {
+				migrationReport = migrateFlatFiles(files);
+			}
+			boolean manifestExisted = true;
+			try {
+				manifestExisted = loadedManifest.load();
+			} catch (IOException e) {
+				Log.e("TextFileManager", "could not load the file manifest: " + e.getMessage());
+				e.printStackTrace();
+				if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+					CrashHandler.writeCrashlog(e, appContext);
+			}
+			manifest = loadedManifest;
+			fileBundler = new FileBundler(BUNDLE_POLICY, loadedManifest);
+			if (layout != null) {
+				recoveryReport = recoverOpenFiles(appContext, files);
+			}
+			if (!manifestExisted) {
+				seedManifest(appContext, files);
+			}
+			deletionReport = startDeletionQueue(appContext);
+		}
+		storageBudget = new StorageBudget(StoragePolicy.limits(
+			PersistentData.getStorageLowFreeBytes(), PersistentData.getStorageTargetFreeBytes(), PersistentData.getStorageMaxDataBytes()
+		), manifest);
+		register(files);
+		if (migrationReport != null) {
+			writeDebugLogStatement(migrationReport);
+		}
+		if (recoveryReport != null) {
+			writeDebugLogStatement(recoveryReport);
+		}
+		if (deletionReport != null) {
+			writeDebugLogStatement(deletionReport);
+		}
+	}
+	
+	/** Starts the deletion queue, with the deletions the previous process left unfinished.  Their
+	 * files are dropped from the manifest, which may still list them or have been seeded with them.
+	 * @return a statement for the debug log, null if nothing was left unfinished. */
+	private static String startDeletionQueue (Context appContext) {
+		DeletionQueue queue = new DeletionQueue((layout == null) ? null : layout.fileOf(DeletionQueue.JOURNAL_FILE_NAME, ""), backend);
+		ArrayList<String> pending = new ArrayList<String>();
+		try {
+			pending = queue.load();
+			for (String fileName : pending) {
+				manifest.remove(fileName);
+			}
+		} catch (IOException e) {
+			Log.e("TextFileManager", "could not load the pending deletions: " + e.getMessage());
+			e.printStackTrace();
+			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+				CrashHandler.writeCrashlog(e, appContext);
+		}
+		deletionQueue = queue;
+		queue.start();
+		if (pending.isEmpty()) {
+			return null;
+		}
+		return "finishing " + pending.size() + " file deletions left pending by the previous process";
+	}
+	
+	/** Moves the data files at the top of the files directory into their stream directories, see
+	 * StorageLayout.  This moves the whole backlog once, when upgrading from the flat layout, after
+	 * that the top of the files directory only holds a handful of files and this is cheap.
+	 * @return a statement for the debug log, null if nothing was moved. */
+	private static String migrateFlatFiles (TextFileManager[] files) {
+		long start = System.currentTimeMillis();
+		int moved = 0;
+		String[] names = layout.getRoot().list();
+		for (String fileName : (names == null) ? new String[0] : names) {
+			try {
+				if (layout.moveFromRoot(fileName, streamOf(fileName, files))) {
+					moved++;
+				}
+			} catch (IOException e) {
+				Log.e("TextFileManager", "could not move " + fileName + ": " + e.getMessage());
+				e.printStackTrace();
+				if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+					CrashHandler.writeCrashlog(e, appContext);
+			}
+		}
+		if (moved == 0) {
+			return null;
+		}
+		return "moved " + moved + " data files into per-stream directories in " + (System.currentTimeMillis() - start) + " ms";
+	}
+	
+	/** Cuts the torn tails off the data files that the previous process still had open, see FileRecovery.
+	 * @return a statement for the debug log, null if there were no such files. */
+	private static String recoverOpenFiles (Context appContext, TextFileManager[] files) {
+		String previouslyOpen = PersistentData.getOpenDataFiles();
+		if (previouslyOpen.length() == 0) {
+			return null;
+		}
+		long start = System.currentTimeMillis();
+		int fileCount = 0;
+		int unendedCount = 0;
+		long truncatedBytes = 0;
+		for (String fileName : previouslyOpen.split("\n")) {
+			if (fileName.length() == 0) {
+				continue;
+			}
+			File file = layout.fileOf(fileName, streamOf(fileName, files));
+			if (!file.exists()) {
+				continue;  // it may have been retired and uploaded
+			}
+			if (FileBundler.isBundle(fileName)) {
+				// the files of an unfinished bundle are still there, they get bundled again.
+				file.delete();
+				continue;
+			}
+			try {
+				String stream = streamOf(fileName, files);
+				// a mapped file ends in the zeros of its last segment, cut back to what was committed first.
+				long truncated = MappedAppendStream.recover(layout.fileOf(MappedAppendStream.HEADER_FILE_NAME, stream), file, fileName);
+				truncated += FileRecovery.truncateTornTail(file);
+				truncatedBytes += truncated;
+				fileCount++;
+				boolean audio = stream.equals(FileManifest.AUDIO_STREAM) || stream.equals(FileManifest.AMBIENT_AUDIO_STREAM);
+				if (file.length() == 0) {
+					file.delete();  // nothing of it survived, not even the key
+				} else if (audio && truncated > 0 && !FileFormat.isContainerFile(fileName)) {
+					file.delete();  // a recording is one encrypted line, a partial one cannot be decrypted
+				} else {
+					if (!FileRecovery.endsInEndFrame(file)) {
+						unendedCount++;  // a container file the server will see was cut short, as it was
+					}
+					manifest.add(fileName, stream, file.length(), file.lastModified(), FileManifest.checksumOf(new FileInputStream(file)));
+				}
+			} catch (IOException e) {
+				Log.e("TextFileManager", "could not recover " + fileName + ": " + e.getMessage());
+				e.printStackTrace();
+				if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+					CrashHandler.writeCrashlog(e, appContext);
+			}
+		}
+		PersistentData.setOpenDataFiles("");
+		return "recovered " + fileCount + " data files left open by the previous process, truncated "
+			+ truncatedBytes + " bytes, " + unendedCount + " container files without an end frame, in "
+			+ (System.currentTimeMillis() - start) + " ms";
+	}
+	
+	/** Adds the finished files in the stream directories, and any left at the top of the files
+	 * directory, to a new manifest, for upgrades from versions without one.  This is the only full
+	 * directory listing, checksums are not computed. */
+	private static void seedManifest (Context appContext, TextFileManager[] files) {
+		if (!PersistentData.getIsRegistered()) {
+			return;  // there are no data files before registration
+		}
+		String patientId = PersistentData.getPatientID();
+		ArrayList<File> directories = new ArrayList<File>();
+		directories.add(layout.getRoot());
+		Collections.addAll(directories, layout.streamDirectories());
+		for (File directory : directories) {
+			String[] names = directory.list();
+			for (String fileName : (names == null) ? new String[0] : names) {
+				if (!fileName.startsWith(patientId) || fileName.equals(AmbientAudioListener.currentlyWritingEncryptedFilename)
+						|| manifest.contains(fileName)) {
+					continue;
+				}
+				File file = new File(directory, fileName);
+				try {
+					manifest.add(fileName, streamOf(fileName, files), file.length(), file.lastModified(), FileManifest.UNKNOWN_CHECKSUM);
+				} catch (IOException e) {
+					Log.e("TextFileManager", "could not add " + fileName + " to the file manifest: " + e.getMessage());
+					e.printStackTrace();
+					if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+						CrashHandler.writeCrashlog(e, appContext);
+				}
+			}
+		}
+	}
+	
+	/** @return the stream tag of a data file, worked out from its name: [USERID]_[NAME]_[TIMESTAMP].csv,
+	 * or an empty string for files of no known stream, which have no "_" in their names.
+	 * @param files the TextFileManager instances, entries may be null during initialize(). */
+	private static String streamOf (String fileName, TextFileManager[] files) {
+		int patientIdEnd = fileName.indexOf('_');
+		if (patientIdEnd == -1) {
+			return "";
+		}
+		String rest = fileName.substring(patientIdEnd + 1);
+		String bundleStream = FileBundler.streamOfBundle(rest);
+		if (bundleStream != null) {
+			return bundleStream;
+		}
+		for (TextFileManager file : files) {
+			// survey file names end in "_" and are followed by the survey id
+			if (file != null && !file.persistent && rest.startsWith(file.name.endsWith("_") ? file.name : file.name + "_")) {
+				return file.stream.name();
+			}
+		}
+		if (rest.startsWith("voiceRecording_")) {
+			return FileManifest.AUDIO_STREAM;
+		}
+		if (rest.startsWith("ambientAudio_")) {
+			return FileManifest.AMBIENT_AUDIO_STREAM;
+		}
+		return "";
+	}
+	
+	/** @return where a file is in the app's internal storage, whether or not it exists, see StorageLayout.
+	 * @param fileName a file name, as returned by getAllUploadableFiles() */
+	public static File getFile (String fileName) {
+		return layout.fileOf(fileName, streamOf(fileName, allInstances()));
+	}
+	
+	/** Opens a file that is not written by a TextFileManager, e.g. an audio recording, for appending. */
+	static OutputStream openForAppend (String fileName) throws IOException {
+		return backend.openAppend(streamOf(fileName, allInstances()), fileName);
+	}
+	
+	/** Puts the app's files on a different storage backend, e.g. a MemoryStorageBackend so that the
+	 * write path can be benchmarked on a desktop JVM.  Must be called before initialize(), the app
+	 * itself never calls this and gets an InternalStorageBackend. */
+	public static synchronized void setStorageBackend (StorageBackend storageBackend) {
+		backend = storageBackend;
+		layout = null;
+	}
+	
+	/** @return where this instance's current file is, see StorageLayout. */
+	private String streamTag () {
+		// the key file is opened while initialize() is still setting streams.
+		return (this.persistent || this.stream == null) ? "" : this.stream.name();
+	}
+	
+	/** Adds a finished file that was not written by a TextFileManager, e.g. an audio recording, to
+	 * the manifest so that it gets uploaded. */
+	static void addFinishedFile (String fileName, String stream) {
+		try {
+			long checksum = FileManifest.checksumOf(backend.openRead(stream, fileName));
+			manifest.add(fileName, stream, backend.length(stream, fileName), backend.lastModified(stream, fileName), checksum);
+		} catch (IOException e) {
+			Log.e("TextFileManager", "could not add " + fileName + " to the file manifest: " + e.getMessage());
+			e.printStackTrace();
+			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+				CrashHandler.writeCrashlog(e, appContext);
+		}
+	}
+	
+	/** Records that the process has (or no longer has) a stream open to fileName, so that the next
+	 * process repairs the file if this one dies while writing it.  Also used for files that are not
+	 * written by a TextFileManager, e.g. audio recordings. */
+	static void setFileOpen (String fileName, boolean open) {
+		synchronized (openFilesLock) {
+			boolean changed = open ? openFiles.add(fileName) : openFiles.remove(fileName);
+			if (!changed) {
+				return;
+			}
+			StringBuilder names = new StringBuilder();
+			for (String name : openFiles) {
+				names.append(name).append('\n');
+			}
+			PersistentData.setOpenDataFiles(names.toString());
+		}
 	}
 	
 	/*###############################################################################
@@ -297,8 +697,12 @@ public class TextFileManager {
 	 * @param header The first line of the file.  Leave empty if you don't want a header, remember to include a new line at the end of the header.
 	 * @param persistent Set this to true for a persistent file.  Persistent files are not currently encryptable.
 	 * @param openOnInstantiation This boolean value dictates whether the file should be opened, mostly this is used in conjunction persistent files so that they can be read from.
-	 * @param encrypted Set this to True if the file will have encrypted writes. */
-	private TextFileManager (Context appContext, String name, String header, Boolean persistent, Boolean openOnInstantiation, Boolean encrypted, Boolean isDummy) {
+	 * @param encrypted Set this to True if the file will have encrypted writes.
+	 * @param flushPolicy When buffered writes are pushed through to the file.
+	 * @param format Whether encrypted lines are written individually or in blocks.
+	 * @param rotationPolicy When the file is retired and the next write starts a new file.
+	 * @param syncPolicy When flushed data is forced to storage. */
+	private TextFileManager (Context appContext, String name, String header, Boolean persistent, Boolean openOnInstantiation, Boolean encrypted, Boolean isDummy, FlushPolicy flushPolicy, FileFormat format, RotationPolicy rotationPolicy, SyncPolicy syncPolicy) {
 		TextFileManager.appContext = appContext;
 		if (persistent && encrypted) {
 			throw new NullPointerException("Persistent files do not support encryption.");
@@ -308,6 +712,22 @@ public class TextFileManager {
 		this.persistent = persistent;
 		this.encrypted = encrypted;
 		this.isDummy = isDummy;
+		this.flushPolicy = flushPolicy;
+		this.format = format;
+		this.rotationPolicy = rotationPolicy;
+		this.syncPolicy = syncPolicy;
+		if (!format.isLegacy()) {
+			this.pendingBlock = new ByteArrayOutputStream();
+		}
+		if (format.isCompressed()) {
+			this.deflater = new Deflater(format.getCompressionLevel());
+			this.compressedBlock = new ByteArrayOutputStream();
+			this.deflateBuffer = new byte[8192];
+		}
+		if (format.isMotionBinary()) {
+			this.motionCodec = new MotionBinaryCodec();
+			this.recordBuffer = new byte[MotionBinaryCodec.MAX_RECORD_BYTES];
+		}
 		//if (isDummy) { Log.e("TextFileManager", "creating dummy handle for " + this.name); }
 		if (openOnInstantiation) {
 			this.newFile();
@@ -324,6 +744,9 @@ public class TextFileManager {
 		if (this.isDummy) {
 			return false;
 		}
+		// the old file is finished, push out anything still buffered before we lose track of it.
+		this.closeStream();
+		
 		//handle the naming cases for persistent vs. non-persistent files
 		if (this.persistent) {
 			this.fileName = this.name;
@@ -333,40 +756,58 @@ public class TextFileManager {
 				return false;
 			}
 			this.fileName = PersistentData.getPatientID() + "_" + this.name + "_" + System.currentTimeMillis() + ".csv";
+			if (this.format.isContainer()) {
+				this.fileName += FileFormat.CONTAINER_EXTENSION;
+			}
 		}
+		this.bytesInFile = 0;
+		this.recordsInFile = 0;
+		this.framesInFile = 0;
+		this.fileOpenedMillis = System.currentTimeMillis();
+		this.checksum.reset();
 		
 		try {
 			//write the key to the file (if it has one)
 			if (this.encrypted) {
-				this.AESKey = EncryptionEngine.newAESKey();
-				this.unsafeWritePlaintext(EncryptionEngine.encryptRSA(this.AESKey));
+				FileKeyPool.FileKey fileKey = FileKeyPool.take();
+				this.AESKey = fileKey.aesKey;
+				this.unsafeWritePlaintext(fileKey.encryptedKey);
+				if (!this.format.isLegacy()) {
+					this.unsafeWritePlaintext(this.format.formatLine());
+				}
 			}
 			//write the csv header, if the file has a header
 			if (header != null && header.length() > 0) {
 				// We will not call writeEncrypted here because we need to handle the specific case of the new file not being created properly.
-				this.unsafeWritePlaintext(EncryptionEngine.encryptAES(header, this.AESKey));
+				if (this.format.isContainer()) {
+					this.unsafeWrite(this.containerFrame(header.getBytes(), false), false);
+				} else {
+					this.unsafeWritePlaintext(this.frame(EncryptionEngine.encryptAES(header, this.AESKey)));
+				}
 			}
 		} catch (FileNotFoundException e) {
 			if (e.getMessage().toLowerCase().contains("enospc")) { // If the device is out of storage
 				Log.e("ENOSPC", "Out of storage space");
+				enforceStorageBudget();  // make room by evicting old, less important data, the next write retries.
 			} else {
 				Log.e("TextFileManager", "could not find file to write to, " + this.fileName);
 				e.printStackTrace();
 				if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
 					CrashHandler.writeCrashlog(e, appContext);
 			}
-			this.fileName = null;  // Set filename null so that the system tries to create the file again later
+			this.discardNewFile();  // sets filename null so that the system tries to create the file again later
 			return false;
 		} catch (IOException e) {
 			if (e.getMessage().toLowerCase().contains("enospc")) { // If the device is out of storage
 				Log.e("ENOSPC", "Out of storage space");
+				enforceStorageBudget();  // make room by evicting old, less important data, the next write retries.
 			} else {
 				Log.e("TextFileManager", "error in the write operation: " + e.getMessage());
 				e.printStackTrace();
 				if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
 					CrashHandler.writeCrashlog(e, appContext);
 			}
-			this.fileName = null;
+			this.discardNewFile();
 			return false;
 		} catch (InvalidKeyException e) {
 			Log.e("TextFileManager", "encrypted write operation without an AES key: " + this.name + ", " + this.fileName);
@@ -383,6 +824,35 @@ public class TextFileManager {
 		return true;
 	}
 	
+	/** Closes the stream of a file whose key or header could not be written, without adding the file
+	 * to the manifest as closeStream() would: a file cut off in its header is of no use to the server.
+	 * What was written of a non-persistent file is shredded, and fileName is set to null. */
+	private synchronized void discardNewFile () {
+		if (this.fileStream != null) {
+			try {
+				// not outStream.close(), flushing the buffer is what just failed.
+				this.fileStream.close();
+			} catch (IOException e) {
+				Log.e("TextFileManager", "could not close " + this.fileName + ": " + e.getMessage());
+			}
+		}
+		this.outStream = null;
+		this.fileStream = null;
+		this.unflushedBytes = 0;
+		this.unsyncedBytes = 0;
+		if (!this.persistent && this.fileName != null) {
+			// at most a key and a header, shredded here rather than on the deletion queue because its
+			// journal may be failing for the same reason, e.g. a full disk.
+			backend.shred(this.streamTag(), this.fileName);
+			if (backend.length(this.streamTag(), this.fileName) < 0) {  // gone, or never created
+				setFileOpen(this.fileName, false);
+			} else {
+				Log.e("TextFileManager", "could not shred " + this.fileName + ", it is left to recovery");
+			}
+		}
+		this.fileName = null;
+	}
+	
 	/** If it's a SurveyAnswers or SurveyTimings file, we want to append the
 	 * Survey ID so that the file name reads like this:
 	 * [USERID]_SurveyAnswers[SURVEYID]_[TIMESTAMP].csv
@@ -402,26 +872,170 @@ public class TextFileManager {
 	/** Takes a string. writes that to the file, adds a new line to the string.
 	 * Prints a stacktrace on a write error, but does not crash. If there is no
 	 * file, a new file will be created.
+	 * The output stream stays open between writes, it is flushed according to the flush policy.
 	 * @param data any unicode valid string*/
 	private synchronized void unsafeWritePlaintext (String data) throws FileNotFoundException, IOException {
-		FileOutputStream outStream;
-		//write the output, we always want mode append
-		outStream = appContext.openFileOutput(this.fileName, Context.MODE_APPEND);
-		outStream.write((data).getBytes());
-		outStream.write("\n".getBytes());
-		outStream.flush();
-		outStream.close();
+		this.unsafeWrite(data.getBytes(), true);
+	}
+	
+	/** Writes bytes to the file, followed by a new line for text files, see unsafeWritePlaintext(). */
+	private synchronized void unsafeWrite (byte[] bytes, boolean newLine) throws FileNotFoundException, IOException {
+		if (this.outStream == null) {
+			//write the output, we always want mode append
+			if (!this.persistent) {
+				setFileOpen(this.fileName, true);  // before the first byte, so that a crash at any point is covered
+			}
+			this.fileStream = null;
+			if (this.mappedSegmentBytes > 0) {
+				try {
+					this.fileStream = backend.openMappedAppend(this.streamTag(), this.fileName, this.mappedSegmentBytes);
+					this.outStream = this.fileStream;  // writes land in the mapping directly, a buffer would only add a copy.
+				} catch (IOException e) {
+					Log.w("TextFileManager", "could not map " + this.fileName + ", appending to it instead: " + e.getMessage());
+				}
+			}
+			if (this.fileStream == null) {
+				this.fileStream = backend.openAppend(this.streamTag(), this.fileName);
+				this.outStream = new BufferedOutputStream(this.fileStream, this.flushPolicy.bufferSize());
+			}
+			this.unflushedBytes = 0;
+			this.lastFlushMillis = System.currentTimeMillis();
+			this.unsyncedBytes = 0;
+			this.lastSyncMillis = this.lastFlushMillis;
+		}
+		this.outStream.write(bytes);
+		this.checksum.update(bytes);
+		if (newLine) {
+			this.outStream.write('\n');
+			this.checksum.update('\n');
+		}
+		int written = bytes.length + (newLine ? 1 : 0);
+		this.unflushedBytes += written;
+		this.bytesInFile += written;
+		
+		long now = System.currentTimeMillis();
+		if (this.flushPolicy.shouldFlush(this.unflushedBytes, this.lastFlushMillis, now)) {
+			this.outStream.flush();
+			this.unsyncedBytes += this.unflushedBytes;
+			this.unflushedBytes = 0;
+			this.lastFlushMillis = now;
+			if (this.syncPolicy.shouldSync(this.unsyncedBytes, this.lastSyncMillis, now)) {
+				this.syncToStorage();
+			}
+		}
+	}
+	
+	/** Pushes any buffered data through to the file. */
+	public synchronized void flush () {
+		this.sealBlock();
+		if (this.outStream == null || this.unflushedBytes == 0) {
+			return;
+		}
+		try {
+			this.outStream.flush();
+		} catch (IOException e) {
+			Log.e("TextFileManager", "could not flush " + this.fileName + ": " + e.getMessage());
+			e.printStackTrace();
+			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+				CrashHandler.writeCrashlog(e, appContext);
+		}
+		this.unsyncedBytes += this.unflushedBytes;
+		this.unflushedBytes = 0;
+		this.lastFlushMillis = System.currentTimeMillis();
+		if (this.syncPolicy.shouldSync(this.unsyncedBytes, this.lastSyncMillis, this.lastFlushMillis)) {
+			this.syncToStorage();
+		}
+	}
+	
+	/** Flushes buffered data and forces everything written so far to storage. */
+	public synchronized void sync () {
+		this.flush();
+		this.syncToStorage();
+	}
+	
+	/** Forces the flushed data of the open file to storage, if there is any, see StorageBackend.AppendStream.sync(). */
+	private synchronized void syncToStorage () {
+		if (this.fileStream == null || this.unsyncedBytes == 0) {
+			return;
+		}
+		try {
+			// file metadata like the modification time does not matter to us, only the contents.
+			this.fileStream.sync();
+		} catch (IOException e) {
+			Log.e("TextFileManager", "could not sync " + this.fileName + ": " + e.getMessage());
+			e.printStackTrace();
+			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+				CrashHandler.writeCrashlog(e, appContext);
+		}
+		this.unsyncedBytes = 0;
+		this.lastSyncMillis = System.currentTimeMillis();
+	}
+	
+	/** Flushes, syncs and closes the output stream, if there is one.  Does not touch fileName. */
+	private synchronized void closeStream () {
+		this.sealBlock();
+		if (this.outStream == null) {
+			return;
+		}
+		if (this.format.isContainer() && !this.persistent) {
+			this.writeEndFrame();
+		}
+		// a closed file is finished, sync it so that what gets uploaded later is what we wrote.
+		this.flush();
+		this.syncToStorage();
+		try {
+			this.outStream.close();
+		} catch (IOException e) {
+			Log.e("TextFileManager", "could not close " + this.fileName + ": " + e.getMessage());
+			e.printStackTrace();
+			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+				CrashHandler.writeCrashlog(e, appContext);
+		}
+		this.outStream = null;
+		this.fileStream = null;
+		this.unflushedBytes = 0;
+		this.unsyncedBytes = 0;
+		if (!this.persistent) {
+			// the file is finished, index it for upload before we stop treating it as open.
+			try {
+				manifest.add(this.fileName, this.stream.name(), this.bytesInFile, this.fileOpenedMillis, this.checksum.getValue());
+			} catch (IOException e) {
+				Log.e("TextFileManager", "could not add " + this.fileName + " to the file manifest: " + e.getMessage());
+				e.printStackTrace();
+				if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+					CrashHandler.writeCrashlog(e, appContext);
+			}
+			setFileOpen(this.fileName, false);
+		}
+	}
+	
+	/** Ends a container format file, so that the server can tell that nothing was cut off its end.
+	 * Without it the file is still uploaded, it is then treated as cut short by a crash. */
+	private synchronized void writeEndFrame () {
+		try {
+			this.unsafeWrite(this.containerFrame(new byte[0], true), false);
+		} catch (IOException | InvalidKeyException | InvalidKeySpecException e) {
+			Log.e("TextFileManager", "could not end " + this.fileName + ": " + e.getMessage());
+			e.printStackTrace();
+			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+				CrashHandler.writeCrashlog(e, appContext);
+		}
 	}
 	
 	public synchronized void safeWritePlaintext (String data) {
 		if (this.isDummy) {
 			return;
 		}
+		this.safeWrite(data.getBytes(), true);
+	}
+	
+	/** Writes bytes as unsafeWrite() does, creating a file if there is none, and logs errors. */
+	private synchronized void safeWrite (byte[] bytes, boolean newLine) {
 		if (fileName == null) {
 			this.newFile();
 		}
 		try {
-			unsafeWritePlaintext(data);
+			unsafeWrite(bytes, newLine);
 		} catch (FileNotFoundException e) {
 			Log.e("TextFileManager", "could not find file to write to, " + this.fileName);
 			e.printStackTrace();
@@ -439,58 +1053,204 @@ public class TextFileManager {
 	}
 	
 	/**Encrypts string data and writes it to a file.
+	 * Block format files hold the line in memory until the block is full or the file is flushed.
 	 * @param data any unicode valid string */
 	public synchronized void writeEncrypted (String data) {
+		if (this.isDummy) {
+			return;
+		}
+		byte[] bytes = data.getBytes();
+		this.writeEncrypted(bytes, bytes.length);
+	}
+	
+	/**Encrypts one line that is already encoded, the first length bytes of data, and writes it to a file.
+	 * Block format files copy the bytes straight into the pending block, so a caller that reuses
+	 * its buffer (see AsciiRowBuilder) writes a line without allocating anything.
+	 * @param data the line, in the default (utf-8) encoding, without a newline
+	 * @param length the number of bytes of data to write */
+	public synchronized void writeEncrypted (byte[] data, int length) {
 		if (this.isDummy) {
 			return;
 		}
 		if (!this.encrypted) {
 			throw new NullPointerException(this.name + "is not supposed to have encrypted writes!");
 		}
-		if (fileName == null) {  // when newFile fails we are not allowed to write to files.
-			if (!this.newFile()) {
+		if (this.skipForStorage() || !this.prepareFileForRecord()) {
+			return;
+		}
+		
+		if (this.format.isLegacy()) {
+			this.encryptAndWrite(length == data.length ? data : Arrays.copyOf(data, length));
+		} else {
+			if (this.pendingLines > 0) {
+				this.pendingBlock.write('\n');
+			}
+			this.pendingBlock.write(data, 0, length);
+			this.pendingLines++;
+			this.afterBlockAppend();
+		}
+		this.afterRecord();
+	}
+	
+	/** Binary motion files take records instead of text lines.
+	 * @return whether this file wants writeEncryptedRecords instead of writeEncrypted. */
+	public boolean writesRecords () {
+		return this.format.isMotionBinary();
+	}
+	
+	/**Encodes records start through end - 1 with the MotionBinaryCodec, and writes them to the
+	 * current block.  Only valid when writesRecords() is true. */
+	public synchronized void writeEncryptedRecords (RecordQueue.Record[] records, int start, int end) {
+		if (this.isDummy) {
+			return;
+		}
+		if (!this.format.isMotionBinary()) {
+			throw new NullPointerException(this.name + " does not take binary records!");
+		}
+		for (int i = start; i < end; i++) {
+			if (this.skipForStorage()) {
+				continue;
+			}
+			if (!this.prepareFileForRecord()) {
 				return;
 			}
+			int length = this.motionCodec.encode(records[i], this.recordBuffer, 0);
+			this.pendingBlock.write(this.recordBuffer, 0, length);
+			this.pendingLines++;
+			this.afterBlockAppend();
+			this.afterRecord();
 		}
-
+	}
+	
+	/** While storage is low, drops all but every n'th record of the streams StoragePolicy downsamples.
+	 * @return whether to drop this record. */
+	private boolean skipForStorage () {
+		int factor = storageBudget.downsampleFactor(this.stream);
+		return factor > 1 && this.downsampleCounter++ % factor != 0;
+	}
+	
+	/** Retires the current file if it has expired, and makes a new file if there is none.
+	 * @return false if there is no file to write to, when newFile fails we are not allowed to write to files. */
+	private boolean prepareFileForRecord () {
+		if (this.fileName != null && this.rotationPolicy.isExpired(this.fileOpenedMillis, System.currentTimeMillis(), studyFileAgeMillis)) {
+			this.closeFile();
+		}
+		if (this.fileName == null) {
+			return this.newFile();
+		}
+		return true;
+	}
+	
+	/** Counts a record written to the current file, retires the file if that made it full. */
+	private void afterRecord () {
+		this.recordsInFile++;
+		if (this.rotationPolicy.isFull(this.bytesInFile, this.recordsInFile)) {
+			this.closeFile();
+		}
+	}
+	
+	/** Seals the block if it is full, or flushes if the flush policy asks for it. */
+	private void afterBlockAppend () {
+		if (this.format.isBlockFull(this.pendingLines, this.pendingBlock.size())) {
+			this.sealBlock();
+		} else if (this.flushPolicy.shouldFlush(
+			this.unflushedBytes + this.pendingBlock.size(), this.lastFlushMillis, System.currentTimeMillis()
+		)) {
+			// the block is not full but the flush policy wants the data on disk.
+			this.flush();
+		}
+	}
+	
+	/** Encrypts and writes out any lines waiting in the pending block. */
+	private synchronized void sealBlock () {
+		if (this.pendingLines == 0) {
+			return;
+		}
+		byte[] block = this.pendingBlock.toByteArray();
+		this.pendingBlock.reset();
+		this.pendingLines = 0;
+		if (this.motionCodec != null) {
+			this.motionCodec.reset();
+		}
+		if (this.deflater != null) {
+			block = this.compress(block);
+		}
+		this.encryptAndWrite(block);
+	}
+	
+	/** @return the block compressed with zlib, on its own so that every block can be decompressed by itself. */
+	private byte[] compress (byte[] block) {
+		this.deflater.reset();
+		this.deflater.setInput(block);
+		this.deflater.finish();
+		this.compressedBlock.reset();
+		while (!this.deflater.finished()) {
+			int length = this.deflater.deflate(this.deflateBuffer);
+			this.compressedBlock.write(this.deflateBuffer, 0, length);
+		}
+		return this.compressedBlock.toByteArray();
+	}
+	
+	/** @return the encrypted line with its frame if the format has frames, see FileFormat. */
+	private String frame (String encryptedLine) {
+		return this.format.isFramed() ? FileFormat.frameLine(encryptedLine) : encryptedLine;
+	}
+	
+	/** @return the data encrypted in the next frame of a container format file, see FileFormat.
+	 * @param endFrame whether this is the end frame, data must then be empty. */
+	private byte[] containerFrame (byte[] data, boolean endFrame) throws InvalidKeyException, InvalidKeySpecException {
+		byte[] sealed = EncryptionEngine.encryptAESGCM(data, 0, data.length, this.AESKey, this.framesInFile, endFrame);
+		this.framesInFile++;
+		return FileFormat.containerFrame(sealed, endFrame);
+	}
+	
+	/** Encrypts the data as a single line of the file, or a single frame of a container format file. */
+	private synchronized void encryptAndWrite (byte[] data) {
 		try {
-			this.safeWritePlaintext(EncryptionEngine.encryptAES(data, this.AESKey));
+			if (this.format.isContainer()) {
+				this.safeWrite(this.containerFrame(data, false), false);
+			} else {
+				this.safeWritePlaintext(this.frame(EncryptionEngine.encryptAES(data, this.AESKey)));
+			}
 		} catch (InvalidKeyException e) {
 			Log.e("TextFileManager", "encrypted write operation without an AES key: " + this.name + ", " + this.fileName);
 			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
 				CrashHandler.writeCrashlog(e, appContext);
 //			throw new NullPointerException("encrypted write operation without an AES key: " + this.fileName );
 		} catch (InvalidKeySpecException e) { //this occurs when an encrypted write operation occurs without an RSA key file, we eat this error because it only happens during registration/initial config.
-			Log.e("TextFileManager", "EncryptionEngine.AES_TOO_EARLY_ERROR: " + this.name + ", " + data);
+			Log.e("TextFileManager", "EncryptionEngine.AES_TOO_EARLY_ERROR: " + this.name + ", " + data.length + " bytes");
 			e.printStackTrace();
 			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
 				CrashHandler.writeCrashlog(e, appContext);
 		}
 	}
 	
-	/**@return A string of the file contents. */
+	/**@return A string of the file contents, decoded as utf-8. */
 	public synchronized String read () {
 		if (this.isDummy) {
 			return this.name + " is a dummy file.";
 		}
-		
-		BufferedInputStream bufferedInputStream;
-		StringBuffer stringBuffer = new StringBuffer();
-		int data;
+		this.flush();  // anything still in our buffer is part of the file contents
 		
 		try {
-			// Read through the (buffered) input stream, append to a stringbuffer.  Catch exceptions
-			bufferedInputStream = new BufferedInputStream(appContext.openFileInput(fileName));
+			// Read the whole file in one go into an array of its size, then decode it in one go.
+			InputStream inputStream = backend.openRead(this.streamTag(), this.fileName);
 			try {
-				while ((data = bufferedInputStream.read()) != -1)
-					stringBuffer.append((char) data);
+				byte[] contents = new byte[(int) Math.max(0, backend.length(this.streamTag(), this.fileName))];
+				int length = 0;
+				int count;
+				while (length < contents.length && (count = inputStream.read(contents, length, contents.length - length)) != -1) {
+					length += count;
+				}
+				return new String(contents, 0, length, UTF_8);
 			} catch (IOException e) {
 				Log.e("Upload", "read error in " + this.fileName);
 				e.printStackTrace();
 				if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
 					CrashHandler.writeCrashlog(e, appContext);
+			} finally {
+				inputStream.close();
 			}
-			bufferedInputStream.close();
 		} catch (FileNotFoundException e) {
 			Log.e("TextFileManager", "file " + this.fileName + " does not exist");
 			e.printStackTrace();
@@ -502,8 +1262,53 @@ public class TextFileManager {
 			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
 				CrashHandler.writeCrashlog(e, appContext);
 		}
+		return "";
+	}
+	
+	/** Receives the lines of a file from forEachLine(). */
+	public interface LineHandler {
+		void handleLine(String line);
+	}
+	
+	/** Reads the file line by line, decoded as utf-8, and hands each line (without its newline) to
+	 * handler.  Only one buffer's worth of the file is in memory at a time, so this is the way to
+	 * scan large files like the debug log.  The file is flushed first but is not locked while it is
+	 * read, lines written in the meantime may or may not be included. */
+	public void forEachLine (LineHandler handler) {
+		String readFileName;
+		String readStream;
+		synchronized (this) {
+			if (this.isDummy || this.fileName == null) {
+				return;
+			}
+			this.flush();
+			readFileName = this.fileName;
+			readStream = this.streamTag();
+		}
 		
-		return stringBuffer.toString();
+		try {
+			BufferedReader reader = new BufferedReader(
+				new InputStreamReader(backend.openRead(readStream, readFileName), UTF_8), READ_BUFFER_SIZE
+			);
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					handler.handleLine(line);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (FileNotFoundException e) {
+			Log.e("TextFileManager", "file " + readFileName + " does not exist");
+			e.printStackTrace();
+			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+				CrashHandler.writeCrashlog(e, appContext);
+		} catch (IOException e) {
+			Log.e("TextFileManager", "read error in " + readFileName);
+			e.printStackTrace();
+			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+				CrashHandler.writeCrashlog(e, appContext);
+		}
 	}
 	
 	
@@ -513,34 +1318,48 @@ public class TextFileManager {
 	
 	/** Delete the reference to the file so that it can be uploaded */
 	public synchronized void closeFile () {
+		this.closeStream();
 		this.fileName = null;
 	}
 	
+	/** Retires the current file if it is older than the rotation policy allows. */
+	public synchronized void rotateIfExpired (long now) {
+		if (this.fileName != null && this.rotationPolicy.isExpired(this.fileOpenedMillis, now, studyFileAgeMillis)) {
+			this.closeFile();
+		}
+	}
+	
 	/** Deletes a file in the safest possible way, based on the file type (persistent-nonpersistent). */
 	public synchronized void deleteSafely () {
 		if (this.isDummy) {
 			return;
 		}
 		String oldFileName = this.fileName;
+		this.closeStream();
 		
 		// For files that are persistant we have to do a slightly unsafe deletion, for everything else
 		// we allocate the new file and then delete the old file.
 		//delete then create (unsafe, potential threading issues)
 		if (this.persistent) {
-			TextFileManager.delete(oldFileName);
+			// the new file has the same name, it cannot wait for the deletion queue.
+			backend.delete(streamOf(oldFileName, allInstances()), oldFileName);
 			this.newFile();
 		} else {
-			// create then delete
-			// this.newFile();
+			// the next write starts a new file, it must not append to the name that is being deleted.
+			this.fileName = null;
 			TextFileManager.delete(oldFileName);
 		}
 	}
 	
-	/** Deletes a file.  Exists to make file deletion thread-safe.
+	/** Drops a file from the manifest and queues it for deletion, see DeletionQueue.  Not
+	 * synchronized on the class, the uploader calls this after every file and must not hold up the
+	 * write path.  The name must not be reused, the file is deleted some time later.
 	 * @param fileName */
-	public static synchronized void delete (String fileName) {
+	public static void delete (String fileName) {
 		try {
-			appContext.deleteFile(fileName);
+			// queued first, so that a crash in between leaves a pending deletion and not a file no one knows about.
+			deletionQueue.delete(streamOf(fileName, allInstances()), fileName);
+			manifest.remove(fileName);
 		} catch (Exception e) {
 			Log.e("TextFileManager", "cannot delete file " + fileName);
 			e.printStackTrace();
@@ -549,69 +1368,198 @@ public class TextFileManager {
 		}
 	}
 	
+	/** Overwrites and deletes a file that is not encrypted, such as a temporary audio recording, on
+	 * the deletion queue.  The name can be written again as soon as this returns.
+	 * @param fileName */
+	public static void shred (String fileName) {
+		try {
+			deletionQueue.shred(streamOf(fileName, allInstances()), fileName);
+		} catch (Exception e) {
+			Log.e("TextFileManager", "cannot shred file " + fileName);
+			e.printStackTrace();
+			if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+				CrashHandler.writeCrashlog(e, appContext);
+		}
+	}
+	
+	/** Retires the files of all streams that are older than their rotation policy allows, so that
+	 * the data of quiet streams gets uploaded.  Streams that are being written to retire their own
+	 * files on their write path, so this is cheap when nothing has expired.  Not synchronized on the
+	 * class, each file is only locked while it is checked.
+	 * @param now the current time in milliseconds */
+	public static void rotateExpiredFiles (long now) {
+		studyFileAgeMillis = PersistentData.getCreateNewDataFilesFrequency();
+		for (TextFileManager file : allInstances()) {
+			if (file != null) {
+				file.rotateIfExpired(now);
+			}
+		}
+	}
+	
+	/** Evicts finished files while storage is low, see StoragePolicy.  When there is enough storage this
+	 * is a free space query and a comparison, when there is not it evicts a few files per call.  Every
+	 * change of the low storage state and every eviction is written to the debug log.  Not
+	 * synchronized on the class so that it can run from a stream's write path when the device is out
+	 * of space, concurrent and reentrant calls return immediately. */
+	public static void enforceStorageBudget () {
+		StorageBudget budget = storageBudget;
+		if (budget == null || !enforcingStorageBudget.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			boolean wasLow = budget.isLow();
+			long freeBytes = DeviceInfo.freeSpaceBytes();
+			ArrayList<FileManifest.Entry> evictions = budget.plan(freeBytes);
+			if (budget.isLow() != wasLow) {
+				writeDebugLogStatement("storage budget: storage " + (budget.isLow() ? "low" : "recovered") + ", "
+					+ freeBytes + " bytes free, " + manifest.totalBytes() + " bytes of data files by stream "
+					+ manifest.bytesByStream());
+			}
+			for (FileManifest.Entry entry : evictions) {
+				try {
+					backend.delete(entry.stream, entry.name);
+					manifest.remove(entry.name);
+					writeDebugLogStatement("storage budget: evicted " + entry.name + ", " + entry.stream + ", " + entry.size + " bytes");
+				} catch (Exception e) {
+					Log.e("TextFileManager", "cannot evict file " + entry.name);
+					e.printStackTrace();
+					if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+						CrashHandler.writeCrashlog(e, appContext);
+				}
+			}
+		} finally {
+			enforcingStorageBudget.set(false);
+		}
+	}
+	
+	/** Packs small finished files into bundles, when the study allows it and there are enough of
+	 * them, see BundlePolicy.  A bundle is written and synced, then added to the manifest, and only
+	 * then are its files deleted, so a crash at any point loses nothing.  Call this from the upload
+	 * thread before an upload, the files it reads must not be uploaded and deleted underneath it. */
+	public static void bundleSmallFiles () {
+		FileBundler bundler = fileBundler;
+		if (bundler == null || !PersistentData.getBundleSmallFiles()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		String patientId = PersistentData.getPatientID();
+		long bundleMillis = 0;
+		int bundleCount = 0;
+		int fileCount = 0;
+		for (ArrayList<FileManifest.Entry> bundle : bundler.plan()) {
+			String stream = bundle.get(0).stream;
+			// bundles of a stream made in the same millisecond still need their own names.
+			bundleMillis = Math.max(System.currentTimeMillis(), bundleMillis + 1);
+			String bundleName = FileBundler.bundleName(patientId, stream, bundleMillis);
+			setFileOpen(bundleName, true);
+			try {
+				CRC32 bundleChecksum = new CRC32();
+				StorageBackend.AppendStream out = backend.openAppend(stream, bundleName);
+				long size;
+				try {
+					BufferedOutputStream buffered = new BufferedOutputStream(new CheckedOutputStream(out, bundleChecksum), 64 * 1024);
+					size = FileBundler.writeBundle(buffered, backend, bundle);
+					buffered.flush();
+					out.sync();
+				} finally {
+					out.close();
+				}
+				manifest.add(bundleName, stream, size, bundleMillis, bundleChecksum.getValue());
+			} catch (IOException e) {
+				// a file that was evicted since the plan is not an error, the rest get bundled next time.
+				Log.w("TextFileManager", "could not bundle " + bundleName + ": " + e.getMessage());
+				if (!(e instanceof FileNotFoundException) && (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG))
+					CrashHandler.writeCrashlog(e, appContext);
+				backend.delete(stream, bundleName);
+				continue;
+			} finally {
+				setFileOpen(bundleName, false);
+			}
+			for (FileManifest.Entry entry : bundle) {
+				try {
+					deletionQueue.delete(entry.stream, entry.name);
+					manifest.remove(entry.name);
+				} catch (IOException e) {
+					Log.e("TextFileManager", "cannot delete bundled file " + entry.name);
+					e.printStackTrace();
+					if (BuildConfig.APP_IS_DEV || BuildConfig.APP_IS_BETA || BuildConfig.DEBUG)
+						CrashHandler.writeCrashlog(e, appContext);
+				}
+			}
+			bundleCount++;
+			fileCount += bundle.size();
+		}
+		if (bundleCount > 0) {
+			writeDebugLogStatement("bundled " + fileCount + " small data files into " + bundleCount + " bundles in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+	
 	/** Make new files for all the non-persistent files. */
 	public static synchronized void makeNewFilesForEverything () {
 		// Log.d("TextFileManager.java", "makeNewFilesForEverything() called");
-		GPSFile.newFile();
-		accelFile.newFile();
-		gyroFile.newFile();
-		powerStateLog.newFile();
-		callLog.newFile();
-		textsLog.newFile();
-		bluetoothLog.newFile();
-		debugLogFile.newFile();
+		for (DataStream stream : DataStream.values()) {
+			if (stream.periodic) {
+				get(stream).newFile();
+			}
+		}
+	}
+	
+	/** Writes any queued records and flushes buffered data for every file, call this when the app
+	 * may be about to get killed. */
+	public static void flushAll () {
+		AsyncStreamWriter.drainAll();
+		for (TextFileManager file : allInstances()) {
+			if (file != null) {
+				file.flush();
+			}
+		}
+	}
+	
+	/** As flushAll, and also forces every file to storage, call this when the service is going
+	 * away or the system is short on memory. */
+	public static void syncAll () {
+		AsyncStreamWriter.drainAll();
+		for (TextFileManager file : allInstances()) {
+			if (file != null) {
+				file.sync();
+			}
+		}
+	}
+	
+	/** @return all the static TextFileManager instances, entries are null before initialize() is called. */
+	private static TextFileManager[] allInstances () {
+		TextFileManager[] files = new TextFileManager[streams.length()];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = streams.get(i);
+		}
+		return files;
 	}
 	
 	/** Very simple function, exists to make any function that needs to grab all extant files thread-safe.
 	 * DO NOT USE THIS FUNCTION, USE getAllFilesSafely() INSTEAD.
-	 * @return a string array of all files in the app's file directory. */
+	 * Lists the few files at the top of the files directory and takes the rest from the manifest
+	 * and the open files, it does not list the stream directories.
+	 * @return a string array of all files the app knows about, use getFile() to find them. */
 	public static synchronized String[] getAllFiles () {
-		return appContext.getFilesDir().list();
-	}
-	
-	/** @return a list of all files in the app's file directory that are allowed to be uploaded.
-	 *  The definition of an uploadable file is one that starts with the patient id. */
-	private static synchronized ArrayList<String> getUploadableFilesList () {
-		String patient_id = PersistentData.getPatientID();
-		String[] allFiles = getAllFiles();
-		ArrayList<String> uploadableFiles = new ArrayList<String>();
-		for (String file : allFiles) {
-			if (file.startsWith(patient_id)) {
-				uploadableFiles.add(file);
+		Set<String> files = new LinkedHashSet<String>();
+		Collections.addAll(files, backend.list(""));
+		files.addAll(manifest.names(""));
+		for (TextFileManager file : allInstances()) {
+			if (file != null && file.fileName != null) {
+				files.add(file.fileName);
 			}
 		}
-		return uploadableFiles;
+		return files.toArray(new String[files.size()]);
 	}
 	
-	/** Returns all data that are not currently in use
+	/** Returns all data that are not currently in use, oldest first.
+	 * These are the finished files in the manifest that start with the patient id: files only get
+	 * there once they are closed, the key file, temporary audio files and audio files still being
+	 * encrypted never do.  Does not list the files directory and does not take the class lock.
 	 * @return String[] a list of file names */
-	public static synchronized String[] getAllUploadableFiles () {
-		// add all the uploadable files to the files set
-		Set<String> files = new HashSet<String>(getUploadableFilesList());
-		
-		// These files should never be uploaded
-		files.remove(TextFileManager.getKeyFile().fileName);
-		files.remove(AudioRecorderActivity.unencryptedTempAudioFileName);
-		files.remove(AudioRecorderEnhancedActivity.unencryptedRawAudioFileName);
-		files.remove(AudioRecorderEnhancedActivity.unencryptedTempAudioFileName); //should be identical to regular audiorecording file, but keep in case it changes.
-		files.remove(ambientTempAudioFilename);
-		
-		// These files are currently being written to, so they shouldn't be uploaded now
-		files.remove(TextFileManager.getGPSFile().fileName);
-		files.remove(TextFileManager.getAccelFile().fileName);
-		files.remove(TextFileManager.getGyroFile().fileName);
-		files.remove(TextFileManager.getPowerStateFile().fileName);
-		files.remove(TextFileManager.getCallLogFile().fileName);
-		files.remove(TextFileManager.getTextsLogFile().fileName);
-		files.remove(TextFileManager.getDebugLogFile().fileName);
-		files.remove(TextFileManager.getBluetoothLogFile().fileName);
-		files.remove(AmbientAudioListener.currentlyWritingEncryptedFilename);
-		
-		// These files are only occasionally open, but they may be currently open. If they are, don't upload them
-		files.remove(TextFileManager.getSurveyAnswersFile().fileName);
-		files.remove(TextFileManager.getSurveyTimingsFile().fileName);
-		files.remove(TextFileManager.getWifiLogFile().fileName);
-		
+	public static String[] getAllUploadableFiles () {
+		ArrayList<String> files = manifest.names(PersistentData.getPatientID());
 		return files.toArray(new String[files.size()]);
 	}
 	
@@ -637,16 +1585,13 @@ public class TextFileManager {
 		files.remove(TextFileManager.getDebugLogFile().fileName);
 		TextFileManager.getDebugLogFile().deleteSafely();
 		files.remove(TextFileManager.getKeyFile().fileName);
+		files.remove(FileManifest.MANIFEST_FILE_NAME);
+		files.remove(DeletionQueue.JOURNAL_FILE_NAME);
 		
 		//and delete things
 		for (String file_name: files) {
 //			Log.i("deleting file", file_name);
-			try {
-				appContext.deleteFile(file_name);
-			} catch (Exception e) {
-				Log.e("TextFileManager", "could not delete file " + file_name);
-				e.printStackTrace();
-			}
+			delete(file_name);
 		}
 	}
 }
@@ -0,0 +1,143 @@
+package org.beiwe.app.storage;
+
+/**Summarizes a 3 axis sensor stream into one row per time window, for studies that only need
+ * per-second or per-minute features instead of the raw samples.
+ *
+ * Windows are aligned to multiples of windowMillis since the epoch.  For each window and axis we
+ * keep the running mean, variance, minimum and maximum, plus the mean magnitude and the sample
+ * count.  Mean and variance use Welford's single pass algorithm, which stays accurate over long
+ * windows where the naive sum of squares loses precision.  Nothing is allocated per sample.
+ *
+ * A window is finished when a sample from a later (or, if the clock moved, an earlier) window
+ * arrives, or when finish() is called at the end of a recording session.
+ *
+ * Has no Android dependencies so that it can be run on a desktop JVM with synthetic signals.
+ * Not thread safe, the AsyncStreamWriter only uses it on its writer thread. */
+public class WindowAggregator {
+
+	public static final String HEADER = "timestamp,window_milliseconds,count,"
+		+ "x_mean,x_variance,x_min,x_max,"
+		+ "y_mean,y_variance,y_min,y_max,"
+		+ "z_mean,z_variance,z_min,z_max,"
+		+ "magnitude_mean";
+
+	private static final int AXES = 3;
+
+	private final long windowMillis;
+	private long windowStart = 0;
+	private long count = 0;
+	private final double[] mean = new double[AXES];
+	private final double[] m2 = new double[AXES];  // sum of squared differences from the mean
+	private final double[] min = new double[AXES];
+	private final double[] max = new double[AXES];
+	private double magnitudeMean = 0;
+
+	public WindowAggregator (long windowMillis) {
+		if (windowMillis <= 0) {
+			throw new IllegalArgumentException("window must be positive, was " + windowMillis);
+		}
+		this.windowMillis = windowMillis;
+	}
+
+	public long getWindowMillis () {
+		return this.windowMillis;
+	}
+
+	/** Adds a sample.  If it does not belong to the current window the current window is finished first.
+	 * @param row receives the summary row of the finished window, if there is one.
+	 * @return whether a window was finished and its row appended to row. */
+	public boolean add (long timestamp, double x, double y, double z, AsciiRowBuilder row) {
+		long offset = timestamp % this.windowMillis;  // Math.floorMod is not available on api 23
+		long sampleWindowStart = timestamp - (offset < 0 ? offset + this.windowMillis : offset);
+		boolean finished = false;
+		if (this.count > 0 && sampleWindowStart != this.windowStart) {
+			finished = this.finish(row);
+		}
+		if (this.count == 0) {
+			this.windowStart = sampleWindowStart;
+		}
+		this.count++;
+		this.update(0, x);
+		this.update(1, y);
+		this.update(2, z);
+		double magnitude = Math.sqrt(x * x + y * y + z * z);
+		this.magnitudeMean += (magnitude - this.magnitudeMean) / this.count;
+		return finished;
+	}
+
+	/** Welford's update of the statistics of one axis, count already includes the new value. */
+	private void update (int axis, double value) {
+		double delta = value - this.mean[axis];
+		this.mean[axis] += delta / this.count;
+		this.m2[axis] += delta * (value - this.mean[axis]);
+		if (this.count == 1) {
+			this.min[axis] = value;
+			this.max[axis] = value;
+		} else {
+			this.min[axis] = Math.min(this.min[axis], value);
+			this.max[axis] = Math.max(this.max[axis], value);
+		}
+	}
+
+	/** Ends the current window, e.g. at the end of a recording session.
+	 * @param row receives the summary row of the window, if it had any samples.
+	 * @return whether a row was appended to row. */
+	public boolean finish (AsciiRowBuilder row) {
+		if (this.count == 0) {
+			return false;
+		}
+		row.append(this.windowStart).append(',').append(this.windowMillis).append(',').append(this.count);
+		for (int axis = 0; axis < AXES; axis++) {
+			row.append(',').appendFixed(this.mean[axis], 16);
+			row.append(',').appendFixed(this.getVariance(axis), 16);
+			row.append(',').appendFixed(this.min[axis], 16);
+			row.append(',').appendFixed(this.max[axis], 16);
+		}
+		row.append(',').appendFixed(this.magnitudeMean, 16);
+		this.reset();
+		return true;
+	}
+
+	private void reset () {
+		this.count = 0;
+		this.magnitudeMean = 0;
+		for (int axis = 0; axis < AXES; axis++) {
+			this.mean[axis] = 0;
+			this.m2[axis] = 0;
+		}
+	}
+
+	/*###############################################################################
+	############## Statistics of the current (unfinished) window ###################
+	###############################################################################*/
+
+	public long getWindowStart () {
+		return this.windowStart;
+	}
+
+	public long getCount () {
+		return this.count;
+	}
+
+	/** @param axis 0, 1 or 2 for x, y and z. */
+	public double getMean (int axis) {
+		return this.mean[axis];
+	}
+
+	/** @return the population variance of the axis, 0 for an empty window. */
+	public double getVariance (int axis) {
+		return this.count == 0 ? 0 : this.m2[axis] / this.count;
+	}
+
+	public double getMin (int axis) {
+		return this.min[axis];
+	}
+
+	public double getMax (int axis) {
+		return this.max[axis];
+	}
+
+	public double getMagnitudeMean () {
+		return this.magnitudeMean;
+	}
+}
@@ -104,10 +104,8 @@ class DebugInterfaceActivity : SessionActivity() {
     //raw debugging info
     fun printInternalLog(view: View?) {
         // printi("print log button pressed", "press.");
-        val log = TextFileManager.getDebugLogFile().read()
-        for (line in log.split("\n".toRegex()).toTypedArray()) {
-            printi("log file...", line)
-        }
+        // the log can get large, stream it instead of reading it into one string.
+        TextFileManager.getDebugLogFile().forEachLine { line -> printi("log file...", line) }
         //		printi("log file encrypted", EncryptionEngine.encryptAES(log) );
     }
 
@@ -152,6 +150,7 @@ class DebugInterfaceActivity : SessionActivity() {
         printi("test encrypt - output:", encrypted)
         printi("test hash:", EncryptionEngine.safeHash(encrypted))
         printi("test hash:", EncryptionEngine.hashMAC(encrypted))
+        printi("test hash:", EncryptionEngine.hashCacheReport())
     }
 
     fun logDataToggles(view: View?) {
@@ -343,7 +342,7 @@ class DebugInterfaceActivity : SessionActivity() {
         Arrays.sort(files)
 
         for (file in files) {
-            var len = this.applicationContext.getFileStreamPath(file).length()
+            var len = TextFileManager.getFile(file).length()
             printi("files...", "${prefix}${file} ${len}B")
         }
 
@@ -352,7 +351,7 @@ class DebugInterfaceActivity : SessionActivity() {
         Arrays.sort(files)
 
         for (file in files) {
-            var len = this.applicationContext.getFileStreamPath(file).length()
+            var len = TextFileManager.getFile(file).length()
             printi("files...", "${prefix}${file} ${len}B")
         }
     }
@@ -0,0 +1,117 @@
+package org.beiwe.app.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**Lines per second written to a real file, on a NioStorageBackend in a temporary directory, the
+ * way TextFileManager used to write them, opening, writing, flushing and closing the file for every
+ * line, against one long lived buffered stream per file flushed by a FlushPolicy. */
+public class AppendStreamBenchmark {
+
+	private static final int WARMUP_LINES = 10000;
+	private static final int MEASURED_LINES = 100000;
+	// an encrypted accelerometer row is about 150 bytes of base64.
+	private static final int LINE_BYTES = 150;
+
+	private Path directory;
+	private NioStorageBackend backend;
+	private byte[] line;
+
+	@Before
+	public void setUp () throws IOException {
+		Benchmarks.assumeEnabled();
+		this.directory = Files.createTempDirectory("appendbenchmark");
+		this.backend = new NioStorageBackend(this.directory);
+		this.line = new byte[LINE_BYTES];
+		Random random = new Random(1);
+		for (int i = 0; i < LINE_BYTES; i++) {
+			this.line[i] = (byte) ('a' + random.nextInt(26));
+		}
+		this.line[LINE_BYTES - 1] = '\n';
+	}
+
+	@After
+	public void tearDown () throws IOException {
+		if (this.directory == null) {
+			return;
+		}
+		// the deepest paths first, so that directories are empty when they are deleted.
+		List<Path> paths = Files.walk(this.directory).sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+		for (Path path : paths) {
+			Files.delete(path);
+		}
+	}
+
+	@Test
+	public void openPerLineAgainstLongLivedStream () throws IOException {
+		this.measureOpenPerLine("warmup");
+		this.measureOpenPerLine("open, write, close per line");
+		this.measureLongLived("warmup", FlushPolicy.everyWrite());
+		this.measureLongLived("long lived, flush every line", FlushPolicy.everyWrite());
+		this.measureLongLived("long lived, motion policy", FlushPolicy.byBytesOrTime(32 * 1024, 10000));
+		this.measureLongLived("long lived, explicit flush", FlushPolicy.explicit());
+	}
+
+	private void measureOpenPerLine (String label) throws IOException {
+		String name = "openPerLine_" + System.nanoTime() + ".csv";
+		int lines = label.equals("warmup") ? WARMUP_LINES : MEASURED_LINES;
+		Benchmarks.Timer timer = new Benchmarks.Timer(lines);
+		timer.begin();
+		for (int i = 0; i < lines; i++) {
+			timer.start();
+			OutputStream out = this.backend.openAppend("ACCELEROMETER", name);
+			try {
+				out.write(this.line);
+				out.flush();
+			} finally {
+				out.close();
+			}
+			timer.stop();
+		}
+		timer.end();
+		this.report(label, timer);
+	}
+
+	/** Writes as TextFileManager does, the policy decides when the buffer goes to the file. */
+	private void measureLongLived (String label, FlushPolicy policy) throws IOException {
+		String name = "longLived_" + System.nanoTime() + ".csv";
+		int lines = label.equals("warmup") ? WARMUP_LINES : MEASURED_LINES;
+		Benchmarks.Timer timer = new Benchmarks.Timer(lines);
+		timer.begin();
+		OutputStream out = new BufferedOutputStream(this.backend.openAppend("ACCELEROMETER", name), policy.bufferSize());
+		int unflushedBytes = 0;
+		long lastFlushMillis = System.currentTimeMillis();
+		for (int i = 0; i < lines; i++) {
+			timer.start();
+			out.write(this.line);
+			unflushedBytes += this.line.length;
+			long now = System.currentTimeMillis();
+			if (policy.shouldFlush(unflushedBytes, lastFlushMillis, now)) {
+				out.flush();
+				unflushedBytes = 0;
+				lastFlushMillis = now;
+			}
+			timer.stop();
+		}
+		out.close();
+		timer.end();
+		this.report(label, timer);
+	}
+
+	private void report (String label, Benchmarks.Timer timer) {
+		if (!label.equals("warmup")) {
+			Benchmarks.report("append", label, timer.summary());
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package org.beiwe.app.storage;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**Checks AsciiRowBuilder against what the sensor rows were built with before it,
+ * String.format(Locale.US, "%.16f", value), and Long.toString.
+ * The build's JDK 17 formats with the same FloatingDecimal algorithm as Android's Formatter. */
+public class AsciiRowBuilderTest {
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	private static final int PRECISION = 16;
+	private static final int RANDOM_VALUES = 100000;
+
+	// one builder, reset between values, like AsyncStreamWriter uses it.
+	private final AsciiRowBuilder row = new AsciiRowBuilder(16);
+
+	private static final double[] DOUBLES = {
+		0.0, -0.0, 1.0, -1.0, 0.5, -0.5, 0.1, -0.1, 1.0 / 3.0, -2.0 / 3.0,
+		// rounding at the 16th decimal place, some carry into the integer digits.
+		0.99999995, -0.99999995, 0.9999999999999999, 0.99999999999999995, 9.99999999999999995,
+		0.00000000000000005, 0.00000000000000015, 0.00000000000000025, -0.00000000000000005,
+		0.00000000000000004999, 1e-17, -1e-17, 1.5e-16, 2.5e-16, 0.12345678901234565,
+		// gravity and typical sensor readings.
+		9.80665, -9.80665, 0.0012345, -0.0012345, 123.456789, 359.99999999999994,
+		// large exponents, where the integer part has more digits than the double does.
+		123456789.123456789, 1e15, 1e16, 1e17, 1e21, 1e22, 1e23, -1e23, 4.35e100, 9007199254740993.0,
+		(double) Long.MAX_VALUE, (double) Long.MIN_VALUE, Math.pow(2, 63), Math.pow(2, 64), Math.pow(2, 100),
+		Double.MAX_VALUE, -Double.MAX_VALUE, Math.nextDown(Double.MAX_VALUE),
+		// small exponents and denormals.
+		Double.MIN_VALUE, -Double.MIN_VALUE, Double.MIN_NORMAL, Math.nextDown(Double.MIN_NORMAL), 1e-300, 4.9e-324,
+		Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+	};
+
+	private static final float[] FLOATS = {
+		0.0f, -0.0f, 1.0f, -1.0f, 0.1f, -0.1f, 1.0f / 3.0f,
+		0.99999995f, -0.99999995f, 0.9999999f, 9.999999f, 1e-8f, 5e-17f,
+		9.80665f, -9.80665f, 0.0012345f, 123.456789f, 16777217f,
+		1e10f, 1e20f, 1e30f, 3.4e38f, Float.MAX_VALUE, -Float.MAX_VALUE,
+		Float.MIN_VALUE, -Float.MIN_VALUE, Float.MIN_NORMAL, 1e-40f,
+		Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+	};
+
+	@Test
+	public void specialDoubles () {
+		for (double value : DOUBLES) {
+			this.assertFixed(value, PRECISION);
+		}
+	}
+
+	@Test
+	public void specialFloats () {
+		for (float value : FLOATS) {
+			this.assertFixed(value, PRECISION);
+		}
+	}
+
+	@Test
+	public void otherPrecisions () {
+		for (int precision = 0; precision <= 20; precision++) {
+			for (double value : DOUBLES) {
+				this.assertFixed(value, precision);
+			}
+			for (float value : FLOATS) {
+				this.assertFixed(value, precision);
+			}
+		}
+	}
+
+	@Test
+	public void randomSensorRangeValues () {
+		Random random = new Random(5);
+		for (int i = 0; i < RANDOM_VALUES; i++) {
+			double value = (random.nextDouble() - 0.5) * 80;
+			this.assertFixed(value, PRECISION);
+			this.assertFixed((float) value, PRECISION);
+		}
+	}
+
+	@Test
+	public void randomBitPatterns () {
+		Random random = new Random(55);
+		for (int i = 0; i < RANDOM_VALUES; i++) {
+			this.assertFixed(Double.longBitsToDouble(random.nextLong()), PRECISION);
+			this.assertFixed(Float.intBitsToFloat(random.nextInt()), PRECISION);
+		}
+	}
+
+	@Test
+	public void longs () {
+		long[] values = { 0, 1, -1, 9, 10, -10, 1234567890123L, System.currentTimeMillis(), Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1 };
+		for (long value : values) {
+			this.row.reset();
+			this.row.append(value);
+			assertEquals(Long.toString(value), this.contents());
+		}
+		Random random = new Random(555);
+		for (int i = 0; i < RANDOM_VALUES; i++) {
+			long value = random.nextLong();
+			this.row.reset();
+			this.row.append(value);
+			assertEquals(Long.toString(value), this.contents());
+		}
+	}
+
+	@Test
+	public void rowsAppendTogether () {
+		this.row.reset();
+		this.row.append(1700000000000L).append(',').append("accuracy").append(',').appendFixed(-9.80665f, PRECISION).append(',').appendFixed(0.99999995, PRECISION);
+		assertEquals(String.format(Locale.US, "%d,accuracy,%.16f,%.16f", 1700000000000L, -9.80665f, 0.99999995), this.contents());
+	}
+
+	private void assertFixed (double value, int precision) {
+		this.row.reset();
+		this.row.appendFixed(value, precision);
+		String expected = String.format(Locale.US, "%." + precision + "f", value);
+		assertEquals("double " + Double.toString(value) + " to " + precision + " places", expected, this.contents());
+	}
+
+	private void assertFixed (float value, int precision) {
+		this.row.reset();
+		this.row.appendFixed(value, precision);
+		String expected = String.format(Locale.US, "%." + precision + "f", value);
+		assertEquals("float " + Float.toString(value) + " to " + precision + " places", expected, this.contents());
+	}
+
+	private String contents () {
+		return new String(this.row.buffer(), 0, this.row.length(), US_ASCII);
+	}
+}
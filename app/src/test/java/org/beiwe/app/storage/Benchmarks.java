@@ -0,0 +1,75 @@
+package org.beiwe.app.storage;
+
+import org.junit.Assume;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**Shared parts of the benchmarks in this directory.  They are JUnit tests so that they build with
+ * the rest, but they take a while and only run when asked for, with the beiwe.benchmarks system
+ * property that -Pbenchmarks=true sets.  Results are printed, one line per measurement.
+ * Numbers from a desktop JVM are for comparing the alternatives with each other, not with a phone. */
+class Benchmarks {
+
+	/** Skips the calling test unless benchmarks were asked for. */
+	static void assumeEnabled () {
+		Assume.assumeTrue("benchmarks run with -Pbenchmarks=true", Boolean.getBoolean("beiwe.benchmarks"));
+	}
+
+	/** Records the latency of each of a fixed number of operations. */
+	static class Timer {
+		private final long[] nanos;
+		private int count = 0;
+		private long startedNanos = 0;
+		private long totalStartedNanos = 0;
+		private long totalNanos = 0;
+
+		Timer (int operations) {
+			this.nanos = new long[operations];
+		}
+
+		/** Starts the whole run, the time spent outside of operations is counted in the throughput. */
+		void begin () {
+			this.totalStartedNanos = System.nanoTime();
+		}
+
+		void start () {
+			this.startedNanos = System.nanoTime();
+		}
+
+		void stop () {
+			this.nanos[this.count++] = System.nanoTime() - this.startedNanos;
+		}
+
+		void end () {
+			this.totalNanos = System.nanoTime() - this.totalStartedNanos;
+		}
+
+		double operationsPerSecond () {
+			return this.count * 1e9 / this.totalNanos;
+		}
+
+		double totalMillis () {
+			return this.totalNanos / 1e6;
+		}
+
+		/** @return the latency below which the given fraction of the operations finished, in microseconds. */
+		double percentileMicros (double fraction) {
+			long[] sorted = Arrays.copyOf(this.nanos, this.count);
+			Arrays.sort(sorted);
+			int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+			return sorted[Math.max(0, index)] / 1e3;
+		}
+
+		/** @return throughput and p50, p99 and p99.9 latency, for report(). */
+		String summary () {
+			return String.format(Locale.US, "%,12.0f ops/s  p50 %8.2f us  p99 %8.2f us  p99.9 %9.2f us",
+				this.operationsPerSecond(), this.percentileMicros(0.5), this.percentileMicros(0.99), this.percentileMicros(0.999));
+		}
+	}
+
+	/** Prints one result line, labelled with the benchmark and the case. */
+	static void report (String benchmark, String label, String result) {
+		System.out.println(String.format(Locale.US, "[%s] %-32s %s", benchmark, label, result));
+	}
+}
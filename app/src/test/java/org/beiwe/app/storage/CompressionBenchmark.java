@@ -0,0 +1,185 @@
+package org.beiwe.app.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**Compression ratio and CPU time per megabyte of each Deflater level, over synthetic accelerometer,
+ * GPS and wifi rows cut into the blocks their streams use, each block compressed on its own with
+ * one reused Deflater as TextFileManager does.  For choosing the level of each stream, see
+ * MOTION_COMPRESSION_LEVEL and SMALL_STREAM_COMPRESSION_LEVEL in TextFileManager. */
+public class CompressionBenchmark {
+
+	// about this much csv of each stream.
+	private static final int DATA_BYTES = 4 * 1024 * 1024;
+	private static final int ROUNDS = 3;
+
+	// the default block size of the motion streams, and TextFileManager's wifi block size.
+	private static final FileFormat MOTION_BLOCKS = FileFormat.blocks(100, 8192);
+	private static final FileFormat WIFI_BLOCKS = FileFormat.blocks(100, 64 * 1024);
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	@Before
+	public void setUp () {
+		Benchmarks.assumeEnabled();
+	}
+
+	@Test
+	public void accelerometer () {
+		this.measure("accel", toBlocks(accelerometerRows(), MOTION_BLOCKS));
+	}
+
+	@Test
+	public void gps () {
+		this.measure("gps", toBlocks(gpsRows(), MOTION_BLOCKS));
+	}
+
+	@Test
+	public void wifi () {
+		this.measure("wifi", toBlocks(wifiRows(), WIFI_BLOCKS));
+	}
+
+	private void measure (String stream, ArrayList<byte[]> blocks) {
+		long rawBytes = 0;
+		for (byte[] block : blocks) {
+			rawBytes += block.length;
+		}
+		double megabytes = rawBytes / (1024.0 * 1024.0);
+		byte[] buffer = new byte[8192];
+		for (int level = 1; level <= 9; level++) {
+			Deflater deflater = new Deflater(level);
+			long compressedBytes = 0;
+			long bestNanos = Long.MAX_VALUE;
+			try {
+				for (int round = 0; round < ROUNDS; round++) {
+					compressedBytes = 0;
+					long started = this.cpuNanos();
+					for (byte[] block : blocks) {
+						deflater.reset();
+						deflater.setInput(block);
+						deflater.finish();
+						while (!deflater.finished()) {
+							compressedBytes += deflater.deflate(buffer);
+						}
+					}
+					bestNanos = Math.min(bestNanos, this.cpuNanos() - started);
+				}
+			} finally {
+				deflater.end();
+			}
+			Benchmarks.report("compression", stream + ", level " + level, String.format(Locale.US,
+				"ratio %5.2f  %7.2f ms cpu per MB  (%d blocks, %,d -> %,d bytes)",
+				(double) rawBytes / compressedBytes, bestNanos / 1e6 / megabytes, blocks.size(), rawBytes, compressedBytes));
+		}
+	}
+
+	/** The CPU time of this thread where the JVM measures it, the wall clock time where it does not. */
+	private long cpuNanos () {
+		return this.threads.isCurrentThreadCpuTimeSupported() ? this.threads.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	/** Joins rows with '\n' into blocks, as TextFileManager fills its pending block. */
+	private static ArrayList<byte[]> toBlocks (ArrayList<byte[]> rows, FileFormat format) {
+		ArrayList<byte[]> blocks = new ArrayList<byte[]>();
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		int lines = 0;
+		for (byte[] row : rows) {
+			if (lines > 0) {
+				block.write('\n');
+			}
+			block.write(row, 0, row.length);
+			lines++;
+			if (format.isBlockFull(lines, block.size())) {
+				blocks.add(block.toByteArray());
+				block.reset();
+				lines = 0;
+			}
+		}
+		if (lines > 0) {
+			blocks.add(block.toByteArray());
+		}
+		return blocks;
+	}
+
+	/** Rows as AccelerometerListener writes them at 100 Hz, a phone lying on a table. */
+	private static ArrayList<byte[]> accelerometerRows () {
+		ArrayList<byte[]> rows = new ArrayList<byte[]>();
+		AsciiRowBuilder row = new AsciiRowBuilder(256);
+		Random random = new Random(13);
+		long timestamp = 1700000000000L;
+		for (int bytes = 0; bytes < DATA_BYTES; ) {
+			row.reset();
+			row.append(timestamp += 10).append(',').append("unknown");
+			row.append(',').appendFixed((float) (random.nextGaussian() * 0.05), 16);
+			row.append(',').appendFixed((float) (9.80665 + random.nextGaussian() * 0.05), 16);
+			row.append(',').appendFixed((float) (random.nextGaussian() * 0.05), 16);
+			bytes += addRow(rows, row);
+		}
+		return rows;
+	}
+
+	/** Rows as GPSListener writes them once a second, someone walking. */
+	private static ArrayList<byte[]> gpsRows () {
+		ArrayList<byte[]> rows = new ArrayList<byte[]>();
+		AsciiRowBuilder row = new AsciiRowBuilder(256);
+		Random random = new Random(1313);
+		long timestamp = 1700000000000L;
+		double latitude = 42.3355;
+		double longitude = -71.1036;
+		for (int bytes = 0; bytes < DATA_BYTES; ) {
+			latitude += random.nextGaussian() * 0.00001;
+			longitude += random.nextGaussian() * 0.00001;
+			row.reset();
+			row.append(timestamp += 1000).append(TextFileManager.DELIMITER)
+				.appendFixed(latitude, 16).append(TextFileManager.DELIMITER)
+				.appendFixed(longitude, 16).append(TextFileManager.DELIMITER)
+				.appendFixed(20 + random.nextGaussian() * 2, 16).append(TextFileManager.DELIMITER)
+				.appendFixed((float) (5 + random.nextInt(20)), 16);
+			bytes += addRow(rows, row);
+		}
+		return rows;
+	}
+
+	/** Rows as WifiListener writes them, scans of a few dozen networks, most of them seen every time. */
+	private static ArrayList<byte[]> wifiRows () {
+		Random random = new Random(131313);
+		String[] networks = new String[40];
+		int[] frequencies = new int[networks.length];
+		for (int i = 0; i < networks.length; i++) {
+			// a hashed MAC is 44 characters of url safe base64.
+			byte[] hash = new byte[32];
+			random.nextBytes(hash);
+			networks[i] = Base64.getUrlEncoder().encodeToString(hash);
+			frequencies[i] = random.nextBoolean() ? 2412 + 5 * random.nextInt(13) : 5180 + 20 * random.nextInt(30);
+		}
+		ArrayList<byte[]> rows = new ArrayList<byte[]>();
+		AsciiRowBuilder row = new AsciiRowBuilder(256);
+		for (int bytes = 0; bytes < DATA_BYTES; ) {
+			for (int i = 0; i < networks.length; i++) {
+				if (random.nextInt(4) == 0) {
+					continue;
+				}
+				row.reset();
+				row.append(networks[i]).append(TextFileManager.DELIMITER).append(frequencies[i]).append(TextFileManager.DELIMITER).append(-30 - random.nextInt(60));
+				bytes += addRow(rows, row);
+			}
+		}
+		return rows;
+	}
+
+	private static int addRow (ArrayList<byte[]> rows, AsciiRowBuilder row) {
+		byte[] copy = new byte[row.length()];
+		System.arraycopy(row.buffer(), 0, copy, 0, row.length());
+		rows.add(copy);
+		return copy.length;
+	}
+}
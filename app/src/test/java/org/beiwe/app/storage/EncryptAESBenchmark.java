@@ -0,0 +1,89 @@
+package org.beiwe.app.storage;
+
+import android.util.Base64;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**Operations per second and latency of EncryptionEngine.encryptAES, which keeps a Cipher and key
+ * spec per thread and takes IVs from one SecureRandom, against the way it used to work: a new
+ * SecureRandom, generateSeed(16) for the IV, Cipher.getInstance and a new SecretKeySpec on every
+ * call.  For an accelerometer row and for a full block of rows. */
+@RunWith(RobolectricTestRunner.class)
+public class EncryptAESBenchmark {
+
+	private static final int WARMUP_OPERATIONS = 5000;
+	private static final int MEASURED_OPERATIONS = 50000;
+
+	@Before
+	public void setUp () throws Exception {
+		Benchmarks.assumeEnabled();
+		StorageTestEnvironment.setUp();
+	}
+
+	@Test
+	public void row () throws Exception {
+		this.measure("80 byte row", 80);
+	}
+
+	@Test
+	public void block () throws Exception {
+		this.measure("8 KB block", 8192);
+	}
+
+	private void measure (String label, int size) throws Exception {
+		byte[] plainText = StorageTestEnvironment.sampleData(size, size);
+		byte[] aesKey = EncryptionEngine.newAESKey();
+		SecretKeySpec keySpec = new SecretKeySpec(aesKey, "AES");
+
+		// the same output format, both decrypt to the plain text.
+		assertArrayEquals(plainText, EncryptedFileDecoder.decryptLine(EncryptionEngine.encryptAES(plainText, aesKey), keySpec));
+		assertArrayEquals(plainText, EncryptedFileDecoder.decryptLine(encryptAESPerCall(plainText, aesKey), keySpec));
+
+		for (int i = 0; i < WARMUP_OPERATIONS; i++) {
+			encryptAESPerCall(plainText, aesKey);
+			EncryptionEngine.encryptAES(plainText, aesKey);
+		}
+
+		Benchmarks.Timer perCall = new Benchmarks.Timer(MEASURED_OPERATIONS);
+		perCall.begin();
+		for (int i = 0; i < MEASURED_OPERATIONS; i++) {
+			perCall.start();
+			encryptAESPerCall(plainText, aesKey);
+			perCall.stop();
+		}
+		perCall.end();
+		Benchmarks.report("encryptAES", label + ", set up per call", perCall.summary());
+
+		Benchmarks.Timer reused = new Benchmarks.Timer(MEASURED_OPERATIONS);
+		reused.begin();
+		for (int i = 0; i < MEASURED_OPERATIONS; i++) {
+			reused.start();
+			EncryptionEngine.encryptAES(plainText, aesKey);
+			reused.stop();
+		}
+		reused.end();
+		Benchmarks.report("encryptAES", label + ", reused context", reused.summary());
+	}
+
+	/** EncryptionEngine.encryptAES as it was before the cipher and randomness were reused. */
+	private static String encryptAESPerCall (byte[] plainText, byte[] aesKey) throws GeneralSecurityException {
+		SecureRandom random = new SecureRandom();
+		IvParameterSpec ivSpec = new IvParameterSpec(random.generateSeed(16));
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(aesKey, "AES"), ivSpec);
+		return Base64.encodeToString(ivSpec.getIV(), Base64.NO_WRAP | Base64.URL_SAFE) + ":" +
+			Base64.encodeToString(cipher.doFinal(plainText), Base64.NO_WRAP | Base64.URL_SAFE);
+	}
+}
@@ -0,0 +1,342 @@
+package org.beiwe.app.storage;
+
+import org.spongycastle.asn1.ASN1Sequence;
+import org.spongycastle.asn1.pkcs.RSAPrivateKey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**Reference decoder for the files written by TextFileManager, runs on a desktop JVM.
+ * It is not part of the app, it lives with the JVM tests, which check the app's output with it, and
+ * documents the file formats (see FileFormat) in runnable form so that server side code can be
+ * checked against it.
+ *
+ * Usage, with the compiled test and app classes on the class path:
+ * java org.beiwe.app.storage.EncryptedFileDecoder private_key.pem data_file.csv [more files...]
+ * Each file is decrypted to data_file.csv.decrypted next to it.  Container format audio recordings
+ * (names ending in .mp4.gcm or .wav.gcm) are decrypted to the recording itself.
+ *
+ * The private key may be PEM or DER, PKCS#1 ("BEGIN RSA PRIVATE KEY") or PKCS#8 ("BEGIN PRIVATE KEY").
+ * The AES key line was made with the device's default "RSA" cipher, which on Android is RSA with no
+ * padding, so we decrypt without padding and strip the leading zero bytes. */
+public class EncryptedFileDecoder {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final PrivateKey privateKey;
+
+	public EncryptedFileDecoder (PrivateKey privateKey) {
+		this.privateKey = privateKey;
+	}
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("usage: EncryptedFileDecoder private_key_file data_file [data_file ...]");
+			System.exit(1);
+		}
+		EncryptedFileDecoder decoder = new EncryptedFileDecoder(readPrivateKey(new File(args[0])));
+		for (int i = 1; i < args.length; i++) {
+			File in = new File(args[i]);
+			File out = new File(args[i] + ".decrypted");
+			InputStream inStream = new FileInputStream(in);
+			OutputStream outStream = new FileOutputStream(out);
+			try {
+				int version = decoder.decode(inStream, outStream);
+				System.out.println(in.getName() + ": format version " + version + " -> " + out.getName());
+			} finally {
+				inStream.close();
+				outStream.close();
+			}
+		}
+	}
+
+	/** Decrypts one file, writes the plaintext lines, each followed by '\n', to out.
+	 * Lines that fail to decrypt are reported on stderr and skipped, like the server does.
+	 * Container format files are decoded by decodeContainer().
+	 * @return the format version of the file. */
+	public int decode (InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+		// the first two lines are text in every format, what follows may be binary.
+		BufferedInputStream bufferedIn = new BufferedInputStream(in);
+		String keyLine = readAsciiLine(bufferedIn);
+		if (keyLine == null) {
+			return FileFormat.LEGACY_VERSION;  // empty file
+		}
+		SecretKeySpec aesKey = this.decryptAESKey(keyLine);
+		String secondLine = readAsciiLine(bufferedIn);
+		if (FileFormat.versionOf(secondLine) == FileFormat.CONTAINER_VERSION) {
+			decodeContainer(bufferedIn, secondLine, aesKey, out);
+			return FileFormat.CONTAINER_VERSION;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(bufferedIn, UTF_8));
+
+		int version = FileFormat.LEGACY_VERSION;
+		String encoding = FileFormat.ENCODING_TEXT;
+		boolean framed = false;
+		boolean compressed = false;
+		boolean headerWritten = false;
+		String line = secondLine;
+		int lineNumber = 1;
+		for (; line != null; line = reader.readLine()) {
+			lineNumber++;
+			if (lineNumber == 2 && line.startsWith(FileFormat.FORMAT_LINE_PREFIX)) {
+				version = FileFormat.versionOf(line);
+				encoding = FileFormat.encodingOf(line);
+				framed = FileFormat.framedOf(line);
+				compressed = FileFormat.compressedOf(line);
+				continue;
+			}
+			if (line.length() == 0) {
+				continue;
+			}
+			if (framed) {
+				String unframed = FileFormat.unframeLine(line);
+				if (unframed == null) {
+					System.err.println("line " + lineNumber + " has a bad frame, it was torn by a crash, skipped");
+					continue;
+				}
+				line = unframed;
+			}
+			byte[] plaintext;
+			try {
+				plaintext = decryptLine(line, aesKey);
+			} catch (GeneralSecurityException | IllegalArgumentException e) {
+				System.err.println("line " + lineNumber + " could not be decrypted: " + e);
+				continue;
+			}
+			if (headerWritten && compressed) {
+				try {
+					plaintext = decompress(plaintext);
+				} catch (DataFormatException e) {
+					System.err.println("line " + lineNumber + " could not be decompressed: " + e);
+					continue;
+				}
+			}
+			if (headerWritten && FileFormat.ENCODING_MOTION_BINARY.equals(encoding)) {
+				MotionBinaryCodec.decodeBlock(plaintext, out);
+			} else {
+				// a legacy line is one line of data, a block is several lines already joined with '\n'.
+				out.write(plaintext);
+				out.write('\n');
+			}
+			headerWritten = true;
+		}
+		out.flush();
+		return version;
+	}
+
+	/**Decrypts the frames of a container format file, the first two lines already read, and writes
+	 * them to out as decode() writes the blocks of a block format file.  Frames of the raw encoding
+	 * are written as they are, one after the other.  A torn frame ends the file, as does a frame that
+	 * fails to authenticate: the frames after it cannot be trusted to be the ones the device wrote.
+	 * Both are reported on stderr, as is a file that does not end in its end frame, and anything
+	 * after the end frame, which is skipped.
+	 * @return whether the file ended in its end frame, false if it was cut short or changed. */
+	public static boolean decodeContainer (BufferedInputStream in, String formatLine, SecretKeySpec aesKey, OutputStream out) throws IOException, GeneralSecurityException {
+		DataInputStream frames = new DataInputStream(in);
+		String encoding = FileFormat.encodingOf(formatLine);
+		boolean compressed = FileFormat.compressedOf(formatLine);
+		boolean raw = FileFormat.ENCODING_RAW.equals(encoding);
+		long frameIndex = 0;
+		boolean ended = false;
+		while (true) {
+			FileFormat.ContainerFrame frame;
+			try {
+				// a clean end of the file, not one inside a frame.
+				in.mark(1);
+				if (in.read() == -1) {
+					break;
+				}
+				in.reset();
+				frame = FileFormat.readContainerFrame(frames, Long.MAX_VALUE);
+			} catch (EOFException e) {
+				frame = null;
+			}
+			if (frame == null) {
+				System.err.println("frame " + frameIndex + " is torn, it and the rest of the file were cut short by a crash, skipped");
+				break;
+			}
+			byte[] plaintext;
+			try {
+				plaintext = decryptFrame(frame.sealed, aesKey, frameIndex, frame.end);
+			} catch (AEADBadTagException e) {
+				System.err.println("frame " + frameIndex + " failed authentication, the file was changed, the rest of it is skipped");
+				break;
+			}
+			if (frame.end) {
+				ended = true;
+				if (in.read() != -1) {
+					System.err.println("the file goes on after its end frame, the device did not write that, skipped");
+					ended = false;
+				}
+				break;
+			}
+			if (compressed && (raw || frameIndex > 0)) {
+				try {
+					plaintext = decompress(plaintext);
+				} catch (DataFormatException e) {
+					System.err.println("frame " + frameIndex + " could not be decompressed: " + e);
+					frameIndex++;
+					continue;
+				}
+			}
+			if (raw) {
+				out.write(plaintext);
+			} else if (frameIndex > 0 && FileFormat.ENCODING_MOTION_BINARY.equals(encoding)) {
+				MotionBinaryCodec.decodeBlock(plaintext, out);
+			} else {
+				out.write(plaintext);
+				out.write('\n');
+			}
+			frameIndex++;
+		}
+		if (!ended) {
+			System.err.println("the file does not end in its end frame after " + frameIndex + " frames, it was cut short or changed");
+		}
+		out.flush();
+		return ended;
+	}
+
+	/** Decrypts and authenticates the nonce, ciphertext and tag of one frame of a container format file.
+	 * @param endFrame whether the frame's header says it is the end frame.
+	 * @throws AEADBadTagException if the frame, its place in the file or whether it is the end frame
+	 * is not what the device wrote. */
+	public static byte[] decryptFrame (byte[] sealed, SecretKeySpec aesKey, long frameIndex, boolean endFrame) throws GeneralSecurityException {
+		Cipher gcm = Cipher.getInstance("AES/GCM/NoPadding");
+		gcm.init(Cipher.DECRYPT_MODE, aesKey, new GCMParameterSpec(128, sealed, 0, 12));
+		gcm.updateAAD(FileFormat.containerAssociatedData(frameIndex, endFrame));
+		return gcm.doFinal(sealed, 12, sealed.length - 12);
+	}
+
+	/** @return the next line of in, which must be ascii, without its newline, or null at the end of in. */
+	private static String readAsciiLine (InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c == -1) {
+				return line.length() == 0 ? null : line.toString();
+			}
+			line.append((char) c);
+		}
+		return line.toString();
+	}
+
+	/** Inflates one zlib compressed block. */
+	private static byte[] decompress (byte[] block) throws DataFormatException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(block);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(block.length * 4);
+			byte[] chunk = new byte[8192];
+			while (!inflater.finished()) {
+				int count = inflater.inflate(chunk);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new DataFormatException("truncated block");
+				}
+				out.write(chunk, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/** Decrypts the first line of a file into the file's AES key. */
+	public SecretKeySpec decryptAESKey (String keyLine) throws GeneralSecurityException {
+		Cipher rsa = Cipher.getInstance("RSA/ECB/NoPadding");
+		rsa.init(Cipher.DECRYPT_MODE, this.privateKey);
+		byte[] padded = rsa.doFinal(fromBase64(keyLine));
+		int start = 0;
+		while (start < padded.length && padded[start] == 0) {
+			start++;
+		}
+		// the device base64 encoded the key before encrypting it.
+		byte[] base64Key = Arrays.copyOfRange(padded, start, padded.length);
+		return new SecretKeySpec(fromBase64(new String(base64Key, UTF_8)), "AES");
+	}
+
+	/** Decrypts one "base64(iv):base64(ciphertext)" line. */
+	public static byte[] decryptLine (String line, SecretKeySpec aesKey) throws GeneralSecurityException {
+		int colon = line.indexOf(':');
+		if (colon == -1) {
+			throw new IllegalArgumentException("no iv separator");
+		}
+		Cipher aes = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		aes.init(Cipher.DECRYPT_MODE, aesKey, new IvParameterSpec(fromBase64(line.substring(0, colon))));
+		return aes.doFinal(fromBase64(line.substring(colon + 1)));
+	}
+
+	/** The app writes url-safe base64, older files may contain the standard alphabet. */
+	private static byte[] fromBase64 (String data) {
+		return Base64.getUrlDecoder().decode(data.trim().replace('+', '-').replace('/', '_'));
+	}
+
+	/** Reads an RSA private key from a PEM or DER file in PKCS#1 or PKCS#8 form. */
+	public static PrivateKey readPrivateKey (File file) throws IOException, GeneralSecurityException {
+		byte[] contents = readAll(new FileInputStream(file));
+		String text = new String(contents, UTF_8);
+		boolean pkcs1 = text.contains("BEGIN RSA PRIVATE KEY");
+		byte[] der = contents;
+		if (text.contains("-----BEGIN")) {
+			StringBuilder base64 = new StringBuilder();
+			for (String line : text.split("\n")) {
+				if (!line.startsWith("-----")) {
+					base64.append(line.trim());
+				}
+			}
+			der = Base64.getMimeDecoder().decode(base64.toString());
+		}
+		KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+		if (!pkcs1) {
+			try {
+				return keyFactory.generatePrivate(new PKCS8EncodedKeySpec(der));
+			} catch (GeneralSecurityException e) {
+				// probably a PKCS#1 DER file, fall through.
+			}
+		}
+		RSAPrivateKey key = RSAPrivateKey.getInstance(ASN1Sequence.getInstance(der));
+		return keyFactory.generatePrivate(new RSAPrivateCrtKeySpec(
+			key.getModulus(), key.getPublicExponent(), key.getPrivateExponent(), key.getPrime1(),
+			key.getPrime2(), key.getExponent1(), key.getExponent2(), key.getCoefficient()
+		));
+	}
+
+	private static byte[] readAll (InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			byte[] chunk = new byte[8192];
+			int read;
+			while ((read = in.read(chunk)) != -1) {
+				buffer.write(chunk, 0, read);
+			}
+			return buffer.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package org.beiwe.app.storage;
+
+import org.beiwe.app.survey.SurveyTimingsRecorder;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**Checks that encrypting a stream a buffer at a time gives what encrypting it in memory gives, for
+ * inputs of several megabytes and for the sizes around the buffer and block boundaries, and that
+ * audio recordings, which are encrypted that way, decrypt to the recording in both the line format
+ * and the container format.  Also checks that container files end in an end frame, and that a
+ * container file cut short or changed at its end is detected. */
+@RunWith(RobolectricTestRunner.class)
+public class EncryptionStreamingTest {
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	/** Larger than the stream buffer, the container frame and the key, and not a multiple of any of them. */
+	private static final int LARGE_INPUT_BYTES = 5 * 1024 * 1024 + 7;
+
+	private MemoryStorageBackend backend;
+
+	@Before
+	public void setUp () throws Exception {
+		this.backend = StorageTestEnvironment.setUp();
+		PersistentData.setUseGcmContainerFormat(false);
+	}
+
+	@Test
+	public void streamedMatchesInMemory () throws Exception {
+		int[] sizes = { 0, 1, 15, 16, 17, 64 * 1024 - 1, 64 * 1024, 64 * 1024 + 1, LARGE_INPUT_BYTES };
+		for (int size : sizes) {
+			byte[] plainText = StorageTestEnvironment.sampleData(size, size);
+			byte[] aesKey = EncryptionEngine.newAESKey();
+			SecretKeySpec keySpec = new SecretKeySpec(aesKey, "AES");
+
+			String inMemory = EncryptionEngine.encryptAES(plainText, aesKey);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			EncryptionEngine.encryptAES(new ByteArrayInputStream(plainText), out, aesKey);
+			String streamed = new String(out.toByteArray(), US_ASCII);
+
+			// the IVs are random, so the lines differ, but not in their shape or what they decrypt to.
+			assertEquals("length of the line for " + size + " bytes", inMemory.length(), streamed.length());
+			assertEquals("one separator for " + size + " bytes", streamed.indexOf(':'), streamed.lastIndexOf(':'));
+			assertArrayEquals("in memory, " + size + " bytes", plainText, EncryptedFileDecoder.decryptLine(inMemory, keySpec));
+			assertArrayEquals("streamed, " + size + " bytes", plainText, EncryptedFileDecoder.decryptLine(streamed, keySpec));
+		}
+	}
+
+	@Test
+	public void audioRoundTrip () throws Exception {
+		byte[] recording = StorageTestEnvironment.sampleData(LARGE_INPUT_BYTES, 1);
+		String fileName = this.encryptRecording(recording, ".mp4");
+
+		byte[] contents = StorageTestEnvironment.readFile(FileManifest.AUDIO_STREAM, fileName);
+		String[] lines = new String(contents, US_ASCII).split("\n");
+		assertEquals("the key line and the audio line", 2, lines.length);
+		SecretKeySpec aesKey = StorageTestEnvironment.decryptKeyLine(lines[0]);
+		assertArrayEquals(recording, EncryptedFileDecoder.decryptLine(lines[1], aesKey));
+	}
+
+	@Test
+	public void audioContainerRoundTrip () throws Exception {
+		byte[] recording = StorageTestEnvironment.sampleData(LARGE_INPUT_BYTES, 2);
+		String fileName = this.encryptRecording(recording, ".mp4" + FileFormat.CONTAINER_EXTENSION);
+
+		BufferedInputStream in = new BufferedInputStream(this.backend.openRead(FileManifest.AUDIO_STREAM, fileName));
+		try {
+			SecretKeySpec aesKey = StorageTestEnvironment.decryptKeyLine(readLine(in));
+			String formatLine = readLine(in);
+			assertEquals(FileFormat.CONTAINER_VERSION, FileFormat.versionOf(formatLine));
+			assertEquals(FileFormat.ENCODING_RAW, FileFormat.encodingOf(formatLine));
+			ByteArrayOutputStream decrypted = new ByteArrayOutputStream(recording.length);
+			assertTrue("ends in its end frame", EncryptedFileDecoder.decodeContainer(in, formatLine, aesKey, decrypted));
+			assertArrayEquals(recording, decrypted.toByteArray());
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void textContainerEndsInEndFrame () throws Exception {
+		PersistentData.setUseGcmContainerFormat(true);
+		try {
+			TextFileManager.initialize(StorageTestEnvironment.appContext());
+			// a stream that is never a dummy, its lines are frames of their own.
+			String stream = DataStream.SURVEY_TIMINGS.name();
+			HashSet<String> before = new HashSet<String>(Arrays.asList(this.backend.list(stream)));
+			TextFileManager timings = TextFileManager.getSurveyTimingsFile();
+			timings.newFile("survey");
+			for (int i = 0; i < 100; i++) {
+				timings.writeEncrypted(1700000000000L + 1000 * i + ",question " + i + ",answered");
+			}
+			timings.closeFile();
+			ArrayList<String> written = new ArrayList<String>();
+			for (String name : this.backend.list(stream)) {
+				if (!before.contains(name)) {
+					written.add(name);
+				}
+			}
+			assertEquals(1, written.size());
+			assertTrue(FileFormat.isContainerFile(written.get(0)));
+			byte[] contents = StorageTestEnvironment.readFile(stream, written.get(0));
+			String decoded = new String(decodeContainer(contents, true), US_ASCII);
+			assertTrue(decoded.startsWith(SurveyTimingsRecorder.header + "\n"));
+			assertTrue(decoded.endsWith(1700000000000L + 1000 * 99 + ",question 99,answered\n"));
+			assertTrue(FileRecovery.endsInEndFrame(toFile(contents)));
+		} finally {
+			PersistentData.setUseGcmContainerFormat(false);
+			TextFileManager.initialize(StorageTestEnvironment.appContext());
+		}
+	}
+
+	@Test
+	public void containerTruncationIsDetected () throws Exception {
+		byte[] recording = StorageTestEnvironment.sampleData(5 * 64 * 1024 + 3, 3);
+		byte[] contents = StorageTestEnvironment.readFile(FileManifest.AUDIO_STREAM,
+			this.encryptRecording(recording, ".mp4" + FileFormat.CONTAINER_EXTENSION));
+		long[] frameEnds = frameEnds(contents);
+		assertEquals("6 frames of audio and the end frame", 7, frameEnds.length);
+		int end = (int) frameEnds[frameEnds.length - 1];
+		int lastDataEnd = (int) frameEnds[frameEnds.length - 2];
+		int secondToLastDataEnd = (int) frameEnds[frameEnds.length - 3];
+		assertEquals(contents.length, end);
+		assertEquals(FileFormat.CONTAINER_END_FRAME_BYTES, end - lastDataEnd);
+		assertArrayEquals(recording, decodeContainer(contents, true));
+
+		// cut at frame boundaries, every frame that is left decrypts, but the file did not end.
+		for (int frames = frameEnds.length - 1; frames > 0; frames--) {
+			byte[] cut = Arrays.copyOf(contents, (int) frameEnds[frames - 1]);
+			assertArrayEquals(Arrays.copyOf(recording, Math.min(recording.length, frames * 64 * 1024)), decodeContainer(cut, false));
+			assertFalse(FileRecovery.endsInEndFrame(toFile(cut)));
+		}
+
+		// the end frame made into a data frame fails authentication.
+		byte[] unflagged = contents.clone();
+		unflagged[lastDataEnd] &= 0x7f;
+		decodeContainer(unflagged, false);
+
+		// the last data frame cannot pass for the end frame.
+		byte[] flagged = Arrays.copyOf(contents, lastDataEnd);
+		flagged[secondToLastDataEnd] |= (byte) 0x80;
+		decodeContainer(flagged, false);
+		assertFalse(FileRecovery.endsInEndFrame(toFile(flagged)));
+
+		// the end frame moved up in place of the last data frame is in the wrong place.
+		byte[] moved = Arrays.copyOf(contents, secondToLastDataEnd + (end - lastDataEnd));
+		System.arraycopy(contents, lastDataEnd, moved, secondToLastDataEnd, end - lastDataEnd);
+		decodeContainer(moved, false);
+
+		// anything after the end frame is not the device's, recovery cuts it off.
+		byte[] appended = Arrays.copyOf(contents, contents.length + 100);
+		decodeContainer(appended, false);
+		File appendedFile = toFile(appended);
+		assertEquals(100, FileRecovery.truncateTornTail(appendedFile));
+		assertTrue(FileRecovery.endsInEndFrame(appendedFile));
+	}
+
+	/** Decodes a whole container format file, checks whether the decoder found it complete.
+	 * @return the decoded data. */
+	private static byte[] decodeContainer (byte[] contents, boolean complete) throws Exception {
+		BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(contents));
+		SecretKeySpec aesKey = StorageTestEnvironment.decryptKeyLine(readLine(in));
+		String formatLine = readLine(in);
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream(contents.length);
+		assertEquals("ends in its end frame", complete, EncryptedFileDecoder.decodeContainer(in, formatLine, aesKey, decoded));
+		return decoded.toByteArray();
+	}
+
+	/** @return the position after each frame of a container format file. */
+	private static long[] frameEnds (byte[] contents) throws Exception {
+		int position = 0;
+		for (int lines = 0; lines < 2; position++) {
+			if (contents[position] == '\n') {
+				lines++;
+			}
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents, position, contents.length - position));
+		ArrayList<Long> ends = new ArrayList<Long>();
+		FileFormat.ContainerFrame frame;
+		while ((frame = FileFormat.readContainerFrame(in, contents.length - position)) != null) {
+			position += FileFormat.CONTAINER_FRAME_HEADER_BYTES + frame.sealed.length;
+			ends.add((long) position);
+		}
+		long[] array = new long[ends.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = ends.get(i);
+		}
+		return array;
+	}
+
+	private static File toFile (byte[] contents) throws Exception {
+		File file = File.createTempFile("container", FileFormat.CONTAINER_EXTENSION);
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/** Encrypts recording as the audio recorders do, checks that the result is finished and not open.
+	 * @return the name of the encrypted file. */
+	private String encryptRecording (byte[] recording, String extension) throws Exception {
+		File temporary = File.createTempFile("recording", ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(temporary);
+			try {
+				out.write(recording);
+			} finally {
+				out.close();
+			}
+			String fileName = StorageTestEnvironment.PATIENT_ID + "_voiceRecording_survey_" + System.nanoTime() + extension;
+			AudioFileManager.encryptAudioFile(temporary.getPath(), fileName, StorageTestEnvironment.appContext());
+			assertTrue(fileName + " was not written", this.backend.length(FileManifest.AUDIO_STREAM, fileName) > recording.length);
+			assertTrue(fileName + " is still open", !PersistentData.getOpenDataFiles().contains(fileName));
+			return fileName;
+		} finally {
+			temporary.delete();
+		}
+	}
+
+	private static String readLine (BufferedInputStream in) throws Exception {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n' && c != -1) {
+			line.append((char) c);
+		}
+		return line.toString();
+	}
+}
@@ -0,0 +1,114 @@
+package org.beiwe.app.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**Lines per second written to real files, on a NioStorageBackend in a temporary directory, the way
+ * TextFileManager writes the raw motion streams: a buffered stream flushed by the motion FlushPolicy,
+ * against a MappedAppendStream that commits its length on the same flushes.  Files are retired at
+ * 1MB like motion files.  The desktop backend allocates segments by writing a byte per page, the
+ * app reserves them with posix_fallocate, which costs less. */
+public class MappedAppendBenchmark {
+
+	private static final int WARMUP_LINES = 50000;
+	private static final int MEASURED_LINES = 500000;
+	private static final int FILE_BYTES = 1024 * 1024;
+	private static final int SEGMENT_BYTES = 256 * 1024;
+	private static final FlushPolicy MOTION_FLUSH_POLICY = FlushPolicy.byBytesOrTime(32 * 1024, 10000);
+
+	private Path directory;
+	private NioStorageBackend backend;
+	private int fileCount = 0;
+
+	@Before
+	public void setUp () throws IOException {
+		Benchmarks.assumeEnabled();
+		this.directory = Files.createTempDirectory("mappedbenchmark");
+		this.backend = new NioStorageBackend(this.directory);
+	}
+
+	@After
+	public void tearDown () throws IOException {
+		if (this.directory == null) {
+			return;
+		}
+		// the deepest paths first, so that directories are empty when they are deleted.
+		List<Path> paths = Files.walk(this.directory).sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+		for (Path path : paths) {
+			Files.delete(path);
+		}
+	}
+
+	@Test
+	public void bufferedAgainstMapped () throws IOException {
+		// an encrypted text row is about 150 bytes of base64, a binary motion block a few KB.
+		for (int lineBytes : new int[] { 40, 150, 4096 }) {
+			byte[] line = lineOf(lineBytes);
+			this.measure("warmup", line, false);
+			this.measure("warmup", line, true);
+			this.measure(lineBytes + " byte lines, buffered", line, false);
+			this.measure(lineBytes + " byte lines, mapped", line, true);
+		}
+	}
+
+	private void measure (String label, byte[] line, boolean mapped) throws IOException {
+		int lines = label.equals("warmup") ? WARMUP_LINES : MEASURED_LINES;
+		Benchmarks.Timer timer = new Benchmarks.Timer(lines);
+		timer.begin();
+		OutputStream out = null;
+		int bytesInFile = 0;
+		int unflushedBytes = 0;
+		long lastFlushMillis = System.currentTimeMillis();
+		for (int i = 0; i < lines; i++) {
+			timer.start();
+			if (out == null) {
+				String name = "motion_" + this.fileCount++ + ".csv";
+				out = mapped ? this.backend.openMappedAppend("ACCELEROMETER", name, SEGMENT_BYTES)
+					: new BufferedOutputStream(this.backend.openAppend("ACCELEROMETER", name), MOTION_FLUSH_POLICY.bufferSize());
+				bytesInFile = 0;
+			}
+			out.write(line);
+			unflushedBytes += line.length;
+			bytesInFile += line.length;
+			long now = System.currentTimeMillis();
+			if (MOTION_FLUSH_POLICY.shouldFlush(unflushedBytes, lastFlushMillis, now)) {
+				out.flush();
+				unflushedBytes = 0;
+				lastFlushMillis = now;
+			}
+			if (bytesInFile >= FILE_BYTES) {
+				out.close();
+				out = null;
+			}
+			timer.stop();
+		}
+		if (out != null) {
+			out.close();
+		}
+		timer.end();
+		if (!label.equals("warmup")) {
+			Benchmarks.report("mapped append", label, timer.summary());
+		}
+	}
+
+	private static byte[] lineOf (int length) {
+		byte[] line = new byte[length];
+		Random random = new Random(length);
+		for (int i = 0; i < length; i++) {
+			line[i] = (byte) ('a' + random.nextInt(26));
+		}
+		line[length - 1] = '\n';
+		return line;
+	}
+}
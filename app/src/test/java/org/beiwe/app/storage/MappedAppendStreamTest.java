@@ -0,0 +1,121 @@
+package org.beiwe.app.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**Writes files through MappedAppendStream on a NioStorageBackend in a temporary directory, and
+ * checks the length they are closed with, and the length recover() cuts a file left open back to. */
+public class MappedAppendStreamTest {
+
+	private static final String STREAM = "ACCELEROMETER";
+	private static final int SEGMENT_BYTES = 64 * 1024;
+
+	private Path directory;
+	private NioStorageBackend backend;
+
+	@Before
+	public void setUp () throws IOException {
+		this.directory = Files.createTempDirectory("mappedappend");
+		this.backend = new NioStorageBackend(this.directory);
+	}
+
+	@After
+	public void tearDown () throws IOException {
+		// the deepest paths first, so that directories are empty when they are deleted.
+		List<Path> paths = Files.walk(this.directory).sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+		for (Path path : paths) {
+			Files.delete(path);
+		}
+	}
+
+	@Test
+	public void closedFilesHaveTheLengthWritten () throws IOException {
+		byte[] data = randomBytes(3 * SEGMENT_BYTES + 1234, 1);
+		StorageBackend.AppendStream out = this.backend.openMappedAppend(STREAM, "a.csv", SEGMENT_BYTES);
+		// writes of every size, across segment boundaries.
+		int written = 0;
+		Random random = new Random(2);
+		while (written < data.length - 1) {
+			int count = Math.min(data.length - 1 - written, random.nextInt(5000));
+			out.write(data, written, count);
+			written += count;
+		}
+		out.write(data[written]);
+		out.close();
+		assertArrayEquals(data, this.contentsOf("a.csv"));
+
+		// reopened files are appended to.
+		out = this.backend.openMappedAppend(STREAM, "a.csv", SEGMENT_BYTES);
+		out.write(data, 0, 10);
+		out.close();
+		assertEquals(data.length + 10, this.fileOf("a.csv").length());
+		assertEquals(0, MappedAppendStream.recover(this.headerFile(), this.fileOf("a.csv"), "a.csv"));
+	}
+
+	@Test
+	public void recoveryCutsBackToTheCommittedLength () throws IOException {
+		byte[] data = randomBytes(SEGMENT_BYTES + 100, 3);
+		StorageBackend.AppendStream out = this.backend.openMappedAppend(STREAM, "b.csv", SEGMENT_BYTES);
+		out.write(data, 0, 5000);
+		out.flush();
+		out.write(data, 5000, data.length - 5000);  // not committed, as if the process died here
+		assertEquals(2 * SEGMENT_BYTES, this.fileOf("b.csv").length());
+
+		// the header only applies to the file it names.
+		assertEquals(0, MappedAppendStream.recover(this.headerFile(), this.fileOf("b.csv"), "other.csv"));
+		assertEquals(2 * SEGMENT_BYTES - 5000, MappedAppendStream.recover(this.headerFile(), this.fileOf("b.csv"), "b.csv"));
+		assertArrayEquals(Arrays.copyOf(data, 5000), this.contentsOf("b.csv"));
+	}
+
+	@Test
+	public void aTornCommitLeavesThePreviousOne () throws IOException {
+		byte[] data = randomBytes(1000, 4);
+		StorageBackend.AppendStream out = this.backend.openMappedAppend(STREAM, "c.csv", SEGMENT_BYTES);
+		out.write(data, 0, 300);
+		out.flush();  // the second commit, in the first slot; the first was on opening
+		out.write(data, 300, 700);
+		out.flush();  // the third, in the second slot
+		RandomAccessFile header = new RandomAccessFile(this.headerFile(), "rw");
+		try {
+			header.seek(MappedAppendStream.FIRST_SLOT_OFFSET + MappedAppendStream.SLOT_BYTES + 15);
+			header.write(0x55);  // the last byte of the second slot's length
+		} finally {
+			header.close();
+		}
+		MappedAppendStream.recover(this.headerFile(), this.fileOf("c.csv"), "c.csv");
+		assertArrayEquals(Arrays.copyOf(data, 300), this.contentsOf("c.csv"));
+	}
+
+	private File fileOf (String name) {
+		return this.directory.resolve(StorageLayout.DATA_DIRECTORY_NAME).resolve(STREAM).resolve(name).toFile();
+	}
+
+	private File headerFile () {
+		return this.fileOf(MappedAppendStream.HEADER_FILE_NAME);
+	}
+
+	private byte[] contentsOf (String name) throws IOException {
+		return Files.readAllBytes(this.fileOf(name).toPath());
+	}
+
+	private static byte[] randomBytes (int length, long seed) {
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+}
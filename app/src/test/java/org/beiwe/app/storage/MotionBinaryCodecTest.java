@@ -0,0 +1,150 @@
+package org.beiwe.app.storage;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**Encodes records with MotionBinaryCodec and checks that the decoder reproduces, byte for byte, the
+ * csv rows the text format writes for the same records (AccelerometerListener.formatRow). */
+public class MotionBinaryCodecTest {
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	private static final long MAX_TIMESTAMP = (1L << 62) - 1;
+
+	private static final int[] ACCURACIES = { RecordQueue.UNKNOWN_ACCURACY, 0, 1, 2, 3 };
+
+	private static final float[] SPECIAL_FLOATS = {
+		0.0f, -0.0f, 9.80665f, -9.80665f, 0.99999995f, Float.MAX_VALUE, -Float.MAX_VALUE, Float.MIN_VALUE,
+		Float.MIN_NORMAL, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+	};
+
+	@Test
+	public void sensorBlocksReproduceTheCsv () throws IOException {
+		Random random = new Random(4);
+		long timestamp = 1700000000000L;
+		int accuracy = RecordQueue.UNKNOWN_ACCURACY;
+		for (int block = 0; block < 50; block++) {
+			RecordQueue.Record[] records = RecordQueue.newRecordArray(1 + random.nextInt(500));
+			for (RecordQueue.Record record : records) {
+				// mostly a steady rate, sometimes a gap, a repeated or an earlier timestamp.
+				int kind = random.nextInt(100);
+				timestamp += (kind < 90) ? 5 + random.nextInt(10) : (kind < 95) ? random.nextInt(3600000) : -random.nextInt(1000);
+				if (random.nextInt(200) == 0) {
+					accuracy = ACCURACIES[random.nextInt(ACCURACIES.length)];
+				}
+				record.timestamp = timestamp;
+				record.accuracy = accuracy;
+				// the values come from the float fields of a SensorEvent.
+				record.v0 = (float) (random.nextGaussian() * 2);
+				record.v1 = (float) (9.80665 + random.nextGaussian());
+				record.v2 = (float) (random.nextGaussian() * 2);
+			}
+			assertRoundTrip(records);
+		}
+	}
+
+	@Test
+	public void extremeValuesReproduceTheCsv () throws IOException {
+		// the codec takes deltas up to 2^62 milliseconds either way, see MotionBinaryCodec.
+		long[] timestamps = { 0, 1, MAX_TIMESTAMP, 0, -MAX_TIMESTAMP, -1, 1700000000000L, 1700000000000L, 0 };
+		RecordQueue.Record[] records = RecordQueue.newRecordArray(timestamps.length * SPECIAL_FLOATS.length);
+		int i = 0;
+		for (long timestamp : timestamps) {
+			for (int j = 0; j < SPECIAL_FLOATS.length; j++) {
+				RecordQueue.Record record = records[i++];
+				record.timestamp = timestamp;
+				record.accuracy = (j % 3 == 0) ? Integer.MAX_VALUE : ACCURACIES[j % ACCURACIES.length];
+				record.v0 = SPECIAL_FLOATS[j];
+				record.v1 = SPECIAL_FLOATS[(j + 1) % SPECIAL_FLOATS.length];
+				record.v2 = SPECIAL_FLOATS[(j + 5) % SPECIAL_FLOATS.length];
+			}
+		}
+		assertRoundTrip(records);
+	}
+
+	@Test
+	public void blocksDecodeOnTheirOwn () throws IOException {
+		MotionBinaryCodec codec = new MotionBinaryCodec();
+		RecordQueue.Record[] first = steadyRecords(100, 1700000000000L, 2);
+		RecordQueue.Record[] second = steadyRecords(100, 1700000001000L, 3);
+		encode(codec, first);
+		// the writer resets the codec between blocks, the second block does not need the first.
+		codec.reset();
+		assertEquals(csvOf(second), MotionBinaryCodec.decodeBlockToString(encode(codec, second)));
+	}
+
+	@Test
+	public void steadyRecordsAreThirteenBytes () {
+		RecordQueue.Record[] records = steadyRecords(1000, 1700000000000L, 3);
+		byte[] block = encode(new MotionBinaryCodec(), records);
+		// the first record carries the full timestamp and the accuracy.
+		int firstRecordBytes = encode(new MotionBinaryCodec(), Arrays.copyOf(records, 1)).length;
+		assertEquals(firstRecordBytes + 13 * (records.length - 1), block.length);
+	}
+
+	@Test
+	public void truncatedBlocksAreRejected () {
+		byte[] block = encode(new MotionBinaryCodec(), steadyRecords(10, 1700000000000L, 1));
+		for (int length = 1; length < 13; length++) {
+			try {
+				MotionBinaryCodec.decodeBlockToString(Arrays.copyOf(block, block.length - length));
+				fail("a block missing its last " + length + " bytes decoded");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	private static void assertRoundTrip (RecordQueue.Record[] records) throws IOException {
+		byte[] block = encode(new MotionBinaryCodec(), records);
+		assertEquals(csvOf(records), MotionBinaryCodec.decodeBlockToString(block));
+	}
+
+	/** Encodes the records into one block, as TextFileManager.writeEncryptedRecords does. */
+	private static byte[] encode (MotionBinaryCodec codec, RecordQueue.Record[] records) {
+		byte[] block = new byte[records.length * MotionBinaryCodec.MAX_RECORD_BYTES];
+		int length = 0;
+		for (RecordQueue.Record record : records) {
+			length += codec.encode(record, block, length);
+		}
+		return Arrays.copyOf(block, length);
+	}
+
+	/** The rows AccelerometerListener.formatRow writes for the records, each followed by '\n'. */
+	private static String csvOf (RecordQueue.Record[] records) {
+		AsciiRowBuilder row = new AsciiRowBuilder(128);
+		for (RecordQueue.Record record : records) {
+			row.append(record.timestamp).append(',');
+			if (record.accuracy == RecordQueue.UNKNOWN_ACCURACY) {
+				row.append("unknown");
+			} else {
+				row.append(record.accuracy);
+			}
+			row.append(',').appendFixed((float) record.v0, 16);
+			row.append(',').appendFixed((float) record.v1, 16);
+			row.append(',').appendFixed((float) record.v2, 16);
+			row.append('\n');
+		}
+		return new String(row.buffer(), 0, row.length(), US_ASCII);
+	}
+
+	private static RecordQueue.Record[] steadyRecords (int count, long start, int accuracy) {
+		RecordQueue.Record[] records = RecordQueue.newRecordArray(count);
+		Random random = new Random(start);
+		for (int i = 0; i < count; i++) {
+			records[i].timestamp = start + 10 * i;
+			records[i].accuracy = accuracy;
+			records[i].v0 = (float) random.nextGaussian();
+			records[i].v1 = (float) random.nextGaussian();
+			records[i].v2 = (float) random.nextGaussian();
+		}
+		return records;
+	}
+}
@@ -0,0 +1,92 @@
+package org.beiwe.app.storage;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Random;
+
+/**Accelerometer rows formatted per second, and bytes allocated per row, by AsciiRowBuilder against
+ * the way AccelerometerListener used to build them: three String.format(Locale.US, "%.16f") calls,
+ * a string template and getBytes() for the encryption.  Allocations are counted by the HotSpot
+ * thread allocation counter, on other JVMs the benchmark is skipped. */
+public class RowFormattingBenchmark {
+
+	private static final int WARMUP_ROWS = 200000;
+	private static final int MEASURED_ROWS = 1000000;
+	private static final int SAMPLES = 4096;  // a power of two
+
+	private com.sun.management.ThreadMXBean threads;
+	private final long[] timestamps = new long[SAMPLES];
+	private final float[][] values = new float[SAMPLES][3];
+	private long sink = 0;  // keeps the JIT from dropping the work
+
+	@Before
+	public void setUp () {
+		Benchmarks.assumeEnabled();
+		Assume.assumeTrue("needs the HotSpot allocation counter", ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		this.threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue("needs the HotSpot allocation counter", this.threads.isThreadAllocatedMemorySupported());
+		this.threads.setThreadAllocatedMemoryEnabled(true);
+		Random random = new Random(5);
+		for (int i = 0; i < SAMPLES; i++) {
+			this.timestamps[i] = 1700000000000L + 10 * i;
+			this.values[i][0] = (float) (random.nextGaussian() * 0.05);
+			this.values[i][1] = (float) (9.80665 + random.nextGaussian() * 0.05);
+			this.values[i][2] = (float) (random.nextGaussian() * 0.05);
+		}
+	}
+
+	@Test
+	public void accelerometerRows () {
+		this.stringFormat(WARMUP_ROWS);
+		this.asciiRowBuilder(WARMUP_ROWS);
+		this.measure("String.format", false);
+		this.measure("AsciiRowBuilder", true);
+	}
+
+	private void measure (String label, boolean builder) {
+		long allocatedBefore = this.threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		long started = System.nanoTime();
+		if (builder) {
+			this.asciiRowBuilder(MEASURED_ROWS);
+		} else {
+			this.stringFormat(MEASURED_ROWS);
+		}
+		long nanos = System.nanoTime() - started;
+		long allocated = this.threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+		Benchmarks.report("row formatting", label, String.format(Locale.US, "%,12.0f rows/s  %8.1f bytes allocated per row",
+			MEASURED_ROWS * 1e9 / nanos, (double) allocated / MEASURED_ROWS));
+	}
+
+	/** AccelerometerListener before AsciiRowBuilder. */
+	private void stringFormat (int rows) {
+		for (int i = 0; i < rows; i++) {
+			int sample = i & (SAMPLES - 1);
+			float[] v = this.values[sample];
+			String x = String.format(Locale.US, "%.16f", v[0]);
+			String y = String.format(Locale.US, "%.16f", v[1]);
+			String z = String.format(Locale.US, "%.16f", v[2]);
+			String row = this.timestamps[sample] + ",unknown," + x + "," + y + "," + z;
+			byte[] bytes = row.getBytes();
+			this.sink += bytes.length;
+		}
+	}
+
+	/** AccelerometerListener.formatRow, one builder reused for every row. */
+	private void asciiRowBuilder (int rows) {
+		AsciiRowBuilder row = new AsciiRowBuilder(256);
+		for (int i = 0; i < rows; i++) {
+			int sample = i & (SAMPLES - 1);
+			float[] v = this.values[sample];
+			row.reset();
+			row.append(this.timestamps[sample]).append(',').append("unknown");
+			row.append(',').appendFixed(v[0], 16);
+			row.append(',').appendFixed(v[1], 16);
+			row.append(',').appendFixed(v[2], 16);
+			this.sink += row.length();
+		}
+	}
+}
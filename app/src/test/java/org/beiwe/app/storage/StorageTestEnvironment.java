@@ -0,0 +1,95 @@
+package org.beiwe.app.storage;
+
+import android.content.Context;
+import android.util.Base64;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**Sets up the storage code for tests and benchmarks on a desktop JVM, under Robolectric: the app's
+ * files go to a MemoryStorageBackend and the key file holds the public half of a new RSA key.
+ * The private half is kept so that tests can decrypt what was written.
+ * The storage code is static and Robolectric gives each test a new application, so every test
+ * calls setUp(): the backend and the key are made once per JVM, the settings are put back each time. */
+class StorageTestEnvironment {
+
+	static final String PATIENT_ID = "testpatient";
+
+	private static MemoryStorageBackend backend = null;
+	private static KeyPair keyPair = null;
+
+	/** @return the backend the app's files are written to. */
+	static synchronized MemoryStorageBackend setUp () throws GeneralSecurityException {
+		Context appContext = ApplicationProvider.getApplicationContext();
+		PersistentData.INSTANCE.initialize(appContext);
+		PersistentData.setLoginCredentials(PATIENT_ID, "password");
+		PersistentData.setIsRegistered(true);
+		if (backend == null) {
+			backend = new MemoryStorageBackend();
+			TextFileManager.setStorageBackend(backend);
+		}
+		TextFileManager.initialize(appContext);
+
+		if (keyPair == null) {
+			// what PostRequest does with the key it gets at registration.
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(2048);
+			keyPair = generator.generateKeyPair();
+			TextFileManager.getKeyFile().deleteSafely();
+			TextFileManager.getKeyFile().safeWritePlaintext(Base64.encodeToString(keyPair.getPublic().getEncoded(), Base64.NO_WRAP));
+			EncryptionEngine.keyFileChanged();
+		}
+		return backend;
+	}
+
+	static Context appContext () {
+		return ApplicationProvider.getApplicationContext();
+	}
+
+	/**Decrypts the first line of a file into the file's AES key.  EncryptedFileDecoder expects the
+	 * "RSA" cipher of an Android device, this uses the one EncryptionEngine got on this JVM. */
+	static SecretKeySpec decryptKeyLine (String keyLine) throws GeneralSecurityException {
+		Cipher rsa = Cipher.getInstance("RSA");
+		rsa.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+		byte[] padded = rsa.doFinal(Base64.decode(keyLine, Base64.URL_SAFE));
+		int start = 0;
+		while (start < padded.length && padded[start] == 0) {
+			start++;
+		}
+		return new SecretKeySpec(Base64.decode(Arrays.copyOfRange(padded, start, padded.length), Base64.URL_SAFE), "AES");
+	}
+
+	/** @return the contents of a file on the backend. */
+	static byte[] readFile (String stream, String name) throws IOException {
+		InputStream in = backend.openRead(stream, name);
+		try {
+			ByteArrayOutputStream contents = new ByteArrayOutputStream();
+			byte[] chunk = new byte[64 * 1024];
+			int count;
+			while ((count = in.read(chunk)) != -1) {
+				contents.write(chunk, 0, count);
+			}
+			return contents.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/** @return count random bytes, the same ones for a given seed, like compressed audio they do not compress. */
+	static byte[] sampleData (int count, long seed) {
+		byte[] data = new byte[count];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}
@@ -0,0 +1,282 @@
+package org.beiwe.app.storage;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**Feeds WindowAggregator synthetic signals and checks its rows against a naive two pass computation
+ * of the same statistics over the samples of each window. */
+public class WindowAggregatorTest {
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	private static final long START = 1700000000000L;  // a multiple of 1000
+	private static final int COLUMNS = WindowAggregator.HEADER.split(",").length;
+
+	@Test
+	public void constantSignal () {
+		Samples samples = new Samples();
+		for (int i = 0; i < 100; i++) {
+			samples.add(START + 10 * i, 0.25, 9.80665, -3);
+		}
+		ArrayList<double[]> rows = aggregate(1000, samples);
+		assertEquals(1, rows.size());
+		double[] row = rows.get(0);
+		assertEquals(100, row[2], 0);
+		double[] values = { 0.25, 9.80665, -3 };
+		for (int axis = 0; axis < 3; axis++) {
+			assertEquals(values[axis], mean(row, axis), 1e-15);
+			assertEquals(0, variance(row, axis), 1e-15);
+			assertEquals(values[axis], min(row, axis), 0);
+			assertEquals(values[axis], max(row, axis), 0);
+		}
+		assertEquals(Math.sqrt(0.25 * 0.25 + 9.80665 * 9.80665 + 9), row[15], 1e-14);
+	}
+
+	@Test
+	public void rampSignal () {
+		// x = i over n samples has mean (n - 1) / 2 and population variance (n^2 - 1) / 12.
+		int n = 1000;
+		Samples samples = new Samples();
+		for (int i = 0; i < n; i++) {
+			samples.add(START + i, i, 2 * i + 1, -i);
+		}
+		ArrayList<double[]> rows = aggregate(n, samples);
+		assertEquals(1, rows.size());
+		double[] row = rows.get(0);
+		double rampVariance = (n * (double) n - 1) / 12;
+		assertEquals((n - 1) / 2.0, mean(row, 0), 1e-12);
+		assertEquals(rampVariance, variance(row, 0), 1e-8);
+		assertEquals(n, mean(row, 1), 1e-12);
+		assertEquals(4 * rampVariance, variance(row, 1), 1e-8);
+		assertEquals(-(n - 1) / 2.0, mean(row, 2), 1e-12);
+		assertEquals(rampVariance, variance(row, 2), 1e-8);
+		assertEquals(0, min(row, 0), 0);
+		assertEquals(n - 1, max(row, 0), 0);
+		assertEquals(-(n - 1), min(row, 2), 0);
+		assertEquals(0, max(row, 2), 0);
+		assertMatchesNaive(rows, samples, n);
+	}
+
+	@Test
+	public void knownVarianceFarFromZero () {
+		// alternating c + a and c - a has variance a^2, with c large enough that a sum of squares
+		// in doubles would lose it.  a is what is left of it after rounding c + a and c - a.
+		double c = 1e8;
+		double a = ((c + 0.001) - (c - 0.001)) / 2;
+		Samples samples = new Samples();
+		for (int i = 0; i < 10000; i++) {
+			double value = (i % 2 == 0) ? c + 0.001 : c - 0.001;
+			samples.add(START + i, value, -value, a * (i % 2));
+		}
+		ArrayList<double[]> rows = aggregate(10000, samples);
+		assertEquals(1, rows.size());
+		double[] row = rows.get(0);
+		assertEquals(c, mean(row, 0), 1e-6);
+		assertEquals(a * a, variance(row, 0), a * a * 1e-9);
+		assertEquals(a * a, variance(row, 1), a * a * 1e-9);
+		assertEquals(a / 2, mean(row, 2), 1e-15);
+		assertEquals(a * a / 4, variance(row, 2), 1e-15);
+	}
+
+	@Test
+	public void windowBoundaries () {
+		Samples samples = new Samples();
+		samples.add(START - 1, 1, 1, 1);     // the last millisecond of the window before START
+		samples.add(START, 2, 2, 2);         // the first millisecond of the window at START
+		samples.add(START + 999, 3, 3, 3);   // the last millisecond of the window at START
+		samples.add(START + 1000, 4, 4, 4);  // the next window
+		samples.add(START + 5000, 5, 5, 5);  // empty windows are skipped
+		samples.add(START + 4500, 6, 6, 6);  // the clock moved back
+		ArrayList<double[]> rows = aggregate(1000, samples);
+		long[] starts = { START - 1000, START, START + 1000, START + 5000, START + 4000 };
+		long[] counts = { 1, 2, 1, 1, 1 };
+		assertEquals(starts.length, rows.size());
+		for (int i = 0; i < starts.length; i++) {
+			assertEquals(starts[i], (long) rows.get(i)[0]);
+			assertEquals(1000, (long) rows.get(i)[1]);
+			assertEquals(counts[i], (long) rows.get(i)[2]);
+		}
+		assertMatchesNaive(rows, samples, 1000);
+	}
+
+	@Test
+	public void negativeTimestampsAlignToTheWindow () {
+		Samples samples = new Samples();
+		samples.add(-1, 1, 0, 0);
+		samples.add(-1000, 2, 0, 0);
+		samples.add(-1001, 3, 0, 0);
+		samples.add(0, 4, 0, 0);
+		ArrayList<double[]> rows = aggregate(1000, samples);
+		assertEquals(3, rows.size());
+		assertEquals(-1000, (long) rows.get(0)[0]);
+		assertEquals(2, (long) rows.get(0)[2]);
+		assertEquals(-2000, (long) rows.get(1)[0]);
+		assertEquals(0, (long) rows.get(2)[0]);
+		assertMatchesNaive(rows, samples, 1000);
+	}
+
+	@Test
+	public void noisySignalMatchesTheNaiveComputation () {
+		// a 100 Hz accelerometer with jitter and the odd gap, over several minutes.
+		Random random = new Random(7);
+		Samples samples = new Samples();
+		long timestamp = START;
+		for (int i = 0; i < 30000; i++) {
+			timestamp += (random.nextInt(500) == 0) ? random.nextInt(20000) : 8 + random.nextInt(5);
+			samples.add(timestamp, random.nextGaussian() * 0.05, 9.80665 + random.nextGaussian() * 0.2, Math.sin(i / 50.0));
+		}
+		for (long window : new long[] { 1000, 60000 }) {
+			assertMatchesNaive(aggregate(window, samples), samples, window);
+		}
+	}
+
+	@Test
+	public void unfinishedWindowStatistics () {
+		WindowAggregator aggregator = new WindowAggregator(1000);
+		AsciiRowBuilder row = new AsciiRowBuilder(512);
+		assertFalse(aggregator.finish(row));
+		assertEquals(0, aggregator.getVariance(0), 0);
+		assertFalse(aggregator.add(START + 10, 1, 2, 3, row));
+		assertFalse(aggregator.add(START + 20, 3, 2, 1, row));
+		assertEquals(0, row.length());
+		assertEquals(START, aggregator.getWindowStart());
+		assertEquals(2, aggregator.getCount());
+		assertEquals(2, aggregator.getMean(0), 0);
+		assertEquals(1, aggregator.getVariance(0), 0);
+		assertEquals(0, aggregator.getVariance(1), 0);
+		assertEquals(1, aggregator.getMin(0), 0);
+		assertEquals(3, aggregator.getMax(0), 0);
+		assertEquals(Math.sqrt(14), aggregator.getMagnitudeMean(), 1e-15);
+		assertTrue(aggregator.finish(row));
+		assertEquals(0, aggregator.getCount());
+		assertFalse(aggregator.finish(row));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void windowMustBePositive () {
+		new WindowAggregator(0);
+	}
+
+	/*###############################################################################
+	################################## helpers ######################################
+	###############################################################################*/
+
+	private static class Samples {
+		final ArrayList<Long> timestamps = new ArrayList<Long>();
+		final ArrayList<double[]> values = new ArrayList<double[]>();
+
+		void add (long timestamp, double x, double y, double z) {
+			this.timestamps.add(timestamp);
+			this.values.add(new double[] { x, y, z });
+		}
+
+		int size () {
+			return this.values.size();
+		}
+	}
+
+	/** Runs the samples through an aggregator as the AsyncStreamWriter does, parsing the rows. */
+	private static ArrayList<double[]> aggregate (long windowMillis, Samples samples) {
+		WindowAggregator aggregator = new WindowAggregator(windowMillis);
+		AsciiRowBuilder row = new AsciiRowBuilder(512);
+		ArrayList<double[]> rows = new ArrayList<double[]>();
+		for (int i = 0; i < samples.size(); i++) {
+			double[] v = samples.values.get(i);
+			row.reset();
+			if (aggregator.add(samples.timestamps.get(i), v[0], v[1], v[2], row)) {
+				rows.add(parse(row));
+			}
+		}
+		row.reset();
+		if (aggregator.finish(row)) {
+			rows.add(parse(row));
+		}
+		return rows;
+	}
+
+	private static double[] parse (AsciiRowBuilder row) {
+		String[] columns = new String(row.buffer(), 0, row.length(), US_ASCII).split(",");
+		assertEquals(COLUMNS, columns.length);
+		double[] parsed = new double[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			parsed[i] = Double.parseDouble(columns[i]);
+		}
+		return parsed;
+	}
+
+	/** Groups the samples into runs of the same window, in arrival order, and computes each run's
+	 * statistics in two passes: the mean, then the mean of squared differences from it. */
+	private static void assertMatchesNaive (ArrayList<double[]> rows, Samples samples, long windowMillis) {
+		int row = 0;
+		int first = 0;
+		while (first < samples.size()) {
+			long windowStart = Math.floorDiv(samples.timestamps.get(first), windowMillis) * windowMillis;
+			int end = first;
+			while (end < samples.size() && Math.floorDiv(samples.timestamps.get(end), windowMillis) * windowMillis == windowStart) {
+				end++;
+			}
+			int count = end - first;
+			double[] actual = rows.get(row++);
+			assertEquals(windowStart, (long) actual[0]);
+			assertEquals(windowMillis, (long) actual[1]);
+			assertEquals(count, (long) actual[2]);
+			double magnitude = 0;
+			for (int i = first; i < end; i++) {
+				double[] v = samples.values.get(i);
+				magnitude += Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+			}
+			assertClose(magnitude / count, actual[15]);
+			for (int axis = 0; axis < 3; axis++) {
+				double sum = 0;
+				double min = Double.POSITIVE_INFINITY;
+				double max = Double.NEGATIVE_INFINITY;
+				for (int i = first; i < end; i++) {
+					double value = samples.values.get(i)[axis];
+					sum += value;
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+				}
+				double mean = sum / count;
+				double squares = 0;
+				for (int i = first; i < end; i++) {
+					double difference = samples.values.get(i)[axis] - mean;
+					squares += difference * difference;
+				}
+				assertClose(mean, mean(actual, axis));
+				assertClose(squares / count, variance(actual, axis));
+				assertClose(min, min(actual, axis));
+				assertClose(max, max(actual, axis));
+			}
+			first = end;
+		}
+		assertEquals(row, rows.size());
+	}
+
+	/** Within rounding: the rows carry 16 decimal places, the two computations round differently. */
+	private static void assertClose (double expected, double actual) {
+		assertEquals(expected, actual, 1e-15 + Math.abs(expected) * 1e-12);
+	}
+
+	private static double mean (double[] row, int axis) {
+		return row[3 + 4 * axis];
+	}
+
+	private static double variance (double[] row, int axis) {
+		return row[4 + 4 * axis];
+	}
+
+	private static double min (double[] row, int axis) {
+		return row[5 + 4 * axis];
+	}
+
+	private static double max (double[] row, int axis) {
+		return row[6 + 4 * axis];
+	}
+}
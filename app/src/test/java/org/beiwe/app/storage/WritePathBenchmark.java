@@ -0,0 +1,83 @@
+package org.beiwe.app.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Random;
+
+/**Throughput and per-row latency of the full encrypt-and-write path of a motion stream, rows going
+ * through TextFileManager.writeEncrypted into a MemoryStorageBackend, for each file format a study
+ * can turn on.  The backend keeps the disk out of the numbers, what is left is the app's own work:
+ * formatting, blocking, compression, encryption, base64 and rotation. */
+@RunWith(RobolectricTestRunner.class)
+public class WritePathBenchmark {
+
+	private static final int WARMUP_ROWS = 50000;
+	private static final int MEASURED_ROWS = 200000;
+
+	@Before
+	public void setUp () throws Exception {
+		Benchmarks.assumeEnabled();
+		StorageTestEnvironment.setUp();
+		PersistentData.setAccelerometerEnabled(true);
+	}
+
+	@After
+	public void tearDown () {
+		setFormat(false, false, false);
+	}
+
+	@Test
+	public void motionStreamFormats () {
+		this.measure("legacy", false, false, false);
+		this.measure("block", true, false, false);
+		this.measure("block, compressed", true, true, false);
+		this.measure("legacy lines, container", false, false, true);
+		this.measure("block, compressed, container", true, true, true);
+	}
+
+	private void measure (String label, boolean block, boolean compressed, boolean container) {
+		setFormat(block, compressed, container);
+		TextFileManager.initialize(StorageTestEnvironment.appContext());
+		TextFileManager file = TextFileManager.getAccelFile();
+		AsciiRowBuilder row = new AsciiRowBuilder(256);
+		Random random = new Random(17);
+		long timestamp = 1700000000000L;
+
+		for (int i = 0; i < WARMUP_ROWS; i++) {
+			writeRow(file, row, random, timestamp += 10);
+		}
+		file.flush();
+
+		Benchmarks.Timer timer = new Benchmarks.Timer(MEASURED_ROWS);
+		timer.begin();
+		for (int i = 0; i < MEASURED_ROWS; i++) {
+			timer.start();
+			writeRow(file, row, random, timestamp += 10);
+			timer.stop();
+		}
+		file.flush();
+		timer.end();
+		file.closeFile();
+		Benchmarks.report("write path", label, timer.summary());
+	}
+
+	/** A row as AccelerometerListener writes it: timestamp, accuracy and three axes. */
+	private static void writeRow (TextFileManager file, AsciiRowBuilder row, Random random, long timestamp) {
+		row.reset();
+		row.append(timestamp).append(',').append("unknown");
+		row.append(',').appendFixed((float) (random.nextGaussian() * 0.05), 16);
+		row.append(',').appendFixed((float) (9.80665 + random.nextGaussian() * 0.05), 16);
+		row.append(',').appendFixed((float) (random.nextGaussian() * 0.05), 16);
+		file.writeEncrypted(row.buffer(), row.length());
+	}
+
+	private static void setFormat (boolean block, boolean compressed, boolean container) {
+		PersistentData.setUseBlockFileFormat(block);
+		PersistentData.setCompressDataFiles(compressed);
+		PersistentData.setUseGcmContainerFormat(container);
+	}
+}